@@ -0,0 +1,419 @@
+/* License added by: GRADLE-LICENSE-PLUGIN
+ *
+ * Copyright 2008-2012 XebiaLabs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xebialabs.overcast.host;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.Charset;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Sets;
+
+import static com.xebialabs.overcast.OvercastProperties.getOvercastProperty;
+import static com.xebialabs.overcast.PropertiesLoader.OVERCAST_USER_DIR;
+
+/**
+ * Limits the vCPUs, memory and concurrent boots of the VMs all JVMs of the user on this machine run. Setups of a JVM
+ * that do not fit in the budget wait in a first come, first served queue, so a large VM is not overtaken forever by
+ * smaller ones of the same JVM. A VM that is larger than the whole budget is admitted when nothing else is running. A
+ * budget of 0 is unlimited.
+ * <p>
+ * Each admitted VM is recorded in a ticket file in the admission directory that its JVM keeps locked, and the OS
+ * releases the lock when the JVM dies however it dies. Tickets are written and counted while holding the lock of the
+ * directory, so two JVMs do not both admit a VM into the last of the budget. JVMs do not notify each other, a setup
+ * waiting for VMs of other JVMs checks the tickets again every second.
+ * <p>
+ * The counters of {@link #getInstance()} tell how long setups of this JVM waited for admission, e.g. to report them
+ * at the end of a test run.
+ */
+public class AdmissionControl {
+    public static final String ADMISSION_VCPUS_PROPERTY = "admission.vcpus";
+    public static final String ADMISSION_MEMORY_PROPERTY = "admission.memory";
+    public static final String ADMISSION_BOOTS_PROPERTY = "admission.boots";
+    public static final String ADMISSION_DIR_PROPERTY = "admission.dir";
+
+    private static final Logger logger = LoggerFactory.getLogger(AdmissionControl.class);
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String TICKET_SUFFIX = ".ticket";
+    private static final long POLL_INTERVAL_MILLIS = 1000;
+
+    private static AdmissionControl instance;
+
+    private final int vcpuBudget;
+    private final long memoryBudget;
+    private final int bootBudget;
+    private final File dir;
+    private final String owner;
+
+    /**
+     * Tickets of this JVM. Closing any channel on a ticket may release the lock of this JVM on it, so they are not
+     * opened when counting the tickets of other JVMs.
+     */
+    private final Set<File> ownTickets = Sets.newHashSet();
+
+    /** Guarded by {@code AdmissionControl.class}. */
+    private static int ticketCount;
+
+    private final LinkedList<Admission> queue = new LinkedList<Admission>();
+    private int usedVcpus;
+    private long usedMemory;
+    private int usedBoots;
+
+    private long admitted;
+    private long totalWaitMillis;
+    private long maxWaitMillis;
+
+    /**
+     * Budget of this JVM only.
+     *
+     * @param memoryBudget in MiB.
+     */
+    AdmissionControl(int vcpuBudget, long memoryBudget, int bootBudget) {
+        this(vcpuBudget, memoryBudget, bootBudget, null);
+    }
+
+    /**
+     * @param memoryBudget in MiB.
+     * @param dir          of the tickets of the JVMs sharing the budget, {@code null} for a budget of this JVM only.
+     */
+    AdmissionControl(int vcpuBudget, long memoryBudget, int bootBudget, File dir) {
+        this.vcpuBudget = vcpuBudget;
+        this.memoryBudget = memoryBudget;
+        this.bootBudget = bootBudget;
+        this.dir = dir;
+        this.owner = ManagementFactory.getRuntimeMXBean().getName().replaceAll("[^A-Za-z0-9.@_-]", "_");
+    }
+
+    public static synchronized AdmissionControl getInstance() {
+        if (instance == null) {
+            File defaultDir = new File(new File(System.getProperty("user.home"), OVERCAST_USER_DIR), "admission");
+            instance = new AdmissionControl(
+                Integer.valueOf(getOvercastProperty(ADMISSION_VCPUS_PROPERTY, "0")),
+                Long.valueOf(getOvercastProperty(ADMISSION_MEMORY_PROPERTY, "0")),
+                Integer.valueOf(getOvercastProperty(ADMISSION_BOOTS_PROPERTY, "0")),
+                new File(getOvercastProperty(ADMISSION_DIR_PROPERTY, defaultDir.getPath())));
+        }
+        return instance;
+    }
+
+    public boolean isEnabled() {
+        return vcpuBudget > 0 || memoryBudget > 0 || bootBudget > 0;
+    }
+
+    /** Resources a VM holds from admission until it is released. */
+    class Admission {
+        private final String description;
+        private final int vcpus;
+        private final long memory;
+        private boolean booting;
+        private boolean released;
+        private long waitMillis;
+        private Ticket ticket;
+
+        private Admission(String description, int vcpus, long memory) {
+            this.description = description;
+            this.vcpus = vcpus;
+            this.memory = memory;
+        }
+
+        public long getWaitMillis() {
+            return waitMillis;
+        }
+
+        /** Free the boot slot, the vCPUs and memory stay in use until {@link #release()}. */
+        public void bootFinished() {
+            synchronized (AdmissionControl.this) {
+                if (booting) {
+                    booting = false;
+                    usedBoots--;
+                    if (ticket != null) {
+                        updateTicket(ticket, vcpus, memory, false);
+                    }
+                    AdmissionControl.this.notifyAll();
+                }
+            }
+        }
+
+        public void release() {
+            synchronized (AdmissionControl.this) {
+                bootFinished();
+                if (!released) {
+                    released = true;
+                    usedVcpus -= vcpus;
+                    usedMemory -= memory;
+                    if (ticket != null) {
+                        deleteTicket(ticket);
+                        ticket = null;
+                    }
+                    AdmissionControl.this.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Wait until the VM fits in the budget and all setups that came before it have been admitted.
+     *
+     * @param memory in MiB.
+     */
+    synchronized Admission admit(String description, int vcpus, long memory) {
+        Admission admission = new Admission(description, vcpus, memory);
+        long start = System.currentTimeMillis();
+        queue.add(admission);
+        try {
+            while (queue.getFirst() != admission || !tryAdmit(admission)) {
+                if (dir != null && isEnabled()) {
+                    // VMs of other JVMs are released without notifying this one
+                    wait(POLL_INTERVAL_MILLIS);
+                } else {
+                    wait();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for admission of " + description, e);
+        } finally {
+            queue.remove(admission);
+            // the next in line may fit as well
+            notifyAll();
+        }
+
+        usedVcpus += vcpus;
+        usedMemory += memory;
+        usedBoots++;
+        admission.booting = true;
+        admission.waitMillis = System.currentTimeMillis() - start;
+        admitted++;
+        totalWaitMillis += admission.waitMillis;
+        maxWaitMillis = Math.max(maxWaitMillis, admission.waitMillis);
+        if (admission.waitMillis > 0) {
+            logger.info("Admitted {} ({} vCPUs, {} MiB) after waiting {}ms, {} setups waiting", description, vcpus, memory,
+                admission.waitMillis, queue.size());
+        }
+        return admission;
+    }
+
+    /** Whether the VM fits, writing its ticket when it does. */
+    private boolean tryAdmit(Admission a) {
+        if (dir == null || !isEnabled()) {
+            return fits(a, new Usage());
+        }
+        synchronized (AdmissionControl.class) {
+            FileLock lock = lockDir();
+            try {
+                if (!fits(a, othersUsage())) {
+                    return false;
+                }
+                a.ticket = createTicket(a.vcpus, a.memory);
+                return true;
+            } finally {
+                unlock(lock);
+            }
+        }
+    }
+
+    private boolean fits(Admission a, Usage others) {
+        return fits(vcpuBudget, usedVcpus + others.vcpus, a.vcpus) && fits(memoryBudget, usedMemory + others.memory, a.memory)
+            && fits(bootBudget, usedBoots + others.boots, 1);
+    }
+
+    private static boolean fits(long budget, long used, long wanted) {
+        return budget <= 0 || used == 0 || used + wanted <= budget;
+    }
+
+    /** The VMs of other JVMs. */
+    private static class Usage {
+        int vcpus;
+        long memory;
+        int boots;
+    }
+
+    /** A ticket file of this JVM and the lock it holds on it. */
+    private static class Ticket {
+        private final File file;
+        private final FileLock lock;
+
+        private Ticket(File file, FileLock lock) {
+            this.file = file;
+            this.lock = lock;
+        }
+    }
+
+    /** Call holding the lock of the directory. Removes the tickets of JVMs that died. */
+    private Usage othersUsage() {
+        Usage usage = new Usage();
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return usage;
+        }
+        for (File file : files) {
+            if (!file.getName().endsWith(TICKET_SUFFIX) || ownTickets.contains(file)) {
+                continue;
+            }
+            try {
+                RandomAccessFile ticket = new RandomAccessFile(file, "rw");
+                try {
+                    FileLock lock = tryLock(ticket.getChannel());
+                    if (lock != null) {
+                        lock.release();
+                        ticket.close();
+                        logger.info("Removing admission ticket {} of a JVM that is gone", file.getName());
+                        file.delete();
+                        continue;
+                    }
+                    List<String> fields = ImmutableList.copyOf(Splitter.on(' ').omitEmptyStrings().split(String.valueOf(ticket.readLine())));
+                    if (fields.size() == 3) {
+                        usage.vcpus += Integer.valueOf(fields.get(0));
+                        usage.memory += Long.valueOf(fields.get(1));
+                        usage.boots += Integer.valueOf(fields.get(2));
+                    }
+                } finally {
+                    ticket.close();
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("Unable to read admission ticket " + file, e);
+            }
+        }
+        return usage;
+    }
+
+    /** @return the lock, or {@code null} when another process holds it. */
+    private static FileLock tryLock(FileChannel channel) throws IOException {
+        try {
+            return channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            // held by another AdmissionControl sharing the directory in this JVM
+            return null;
+        }
+    }
+
+    /** Call holding the lock of the directory. */
+    private Ticket createTicket(int vcpus, long memory) {
+        File file = new File(dir, owner + "-" + (++ticketCount) + TICKET_SUFFIX);
+        FileChannel channel = null;
+        try {
+            channel = new RandomAccessFile(file, "rw").getChannel();
+            Ticket ticket = new Ticket(file, channel.lock());
+            writeTicket(ticket, vcpus, memory, true);
+            ownTickets.add(file);
+            return ticket;
+        } catch (IOException e) {
+            closeQuietly(channel);
+            file.delete();
+            throw new RuntimeException("Unable to write admission ticket " + file, e);
+        }
+    }
+
+    private void updateTicket(Ticket ticket, int vcpus, long memory, boolean booting) {
+        synchronized (AdmissionControl.class) {
+            FileLock lock = lockDir();
+            try {
+                writeTicket(ticket, vcpus, memory, booting);
+            } catch (IOException e) {
+                logger.warn("Unable to update admission ticket " + ticket.file, e);
+            } finally {
+                unlock(lock);
+            }
+        }
+    }
+
+    private static void writeTicket(Ticket ticket, int vcpus, long memory, boolean booting) throws IOException {
+        FileChannel channel = ticket.lock.channel();
+        channel.truncate(0);
+        channel.write(ByteBuffer.wrap((vcpus + " " + memory + " " + (booting ? 1 : 0) + "\n").getBytes(UTF8)), 0);
+    }
+
+    private void deleteTicket(Ticket ticket) {
+        synchronized (AdmissionControl.class) {
+            FileLock lock = lockDir();
+            try {
+                unlock(ticket.lock);
+                ticket.file.delete();
+                ownTickets.remove(ticket.file);
+            } finally {
+                unlock(lock);
+            }
+        }
+    }
+
+    /**
+     * Lock the admission directory. FileLocks are held per JVM, callers serialize the threads of this JVM on
+     * {@code AdmissionControl.class}.
+     */
+    private FileLock lockDir() {
+        try {
+            dir.mkdirs();
+            return new RandomAccessFile(new File(dir, "admission.lock"), "rw").getChannel().lock();
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to lock admission directory " + dir, e);
+        }
+    }
+
+    private static void unlock(FileLock lock) {
+        try {
+            lock.release();
+            lock.channel().close();
+        } catch (IOException e) {
+            logger.warn("Unable to unlock admission file", e);
+        }
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+            //
+        }
+    }
+
+    /** Number of setups waiting for admission. */
+    public synchronized int getQueueLength() {
+        return queue.size();
+    }
+
+    /** Number of setups admitted so far. */
+    public synchronized long getAdmittedCount() {
+        return admitted;
+    }
+
+    /** Time all admitted setups waited together. */
+    public synchronized long getTotalWaitMillis() {
+        return totalWaitMillis;
+    }
+
+    /** Longest time a setup waited. */
+    public synchronized long getMaxWaitMillis() {
+        return maxWaitMillis;
+    }
+}
@@ -0,0 +1,133 @@
+/* License added by: GRADLE-LICENSE-PLUGIN
+ *
+ * Copyright 2008-2012 XebiaLabs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xebialabs.overcast.host;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * {@link CloudHost} whose setup waits for {@link AdmissionControl admission}. The boot slot is given back when setup
+ * returns, the vCPUs and memory when the host is torn down.
+ */
+public class AdmittedCloudHost implements WrappingCloudHost, PortReadyCloudHost {
+
+    private final CloudHost actualHost;
+    private final AdmissionControl admissionControl;
+    private final String description;
+    private final int vcpus;
+    private final long memory;
+
+    private AdmissionControl.Admission admission;
+
+    /**
+     * @param memory in MiB.
+     */
+    AdmittedCloudHost(CloudHost actualHost, AdmissionControl admissionControl, String description, int vcpus, long memory) {
+        this.actualHost = actualHost;
+        this.admissionControl = admissionControl;
+        this.description = description;
+        this.vcpus = vcpus;
+        this.memory = memory;
+    }
+
+    @Override
+    public void setup() {
+        admission = admissionControl.admit(description, vcpus, memory);
+        try {
+            actualHost.setup();
+        } catch (RuntimeException e) {
+            admission.release();
+            admission = null;
+            throw e;
+        } finally {
+            if (admission != null) {
+                admission.bootFinished();
+            }
+        }
+    }
+
+    @Override
+    public void teardown() {
+        try {
+            actualHost.teardown();
+        } finally {
+            if (admission != null) {
+                admission.release();
+                admission = null;
+            }
+        }
+    }
+
+    @Override
+    public boolean canReset() {
+        return CloudHostCapabilities.canReset(actualHost);
+    }
+
+    @Override
+    public boolean canCheckpoint() {
+        return CloudHostCapabilities.canCheckpoint(actualHost);
+    }
+
+    /** Resets the actual host, it keeps its admission. */
+    @Override
+    public void reset() {
+        if (!canReset()) {
+            throw new UnsupportedOperationException(description + " cannot be reset");
+        }
+        CloudHostCapabilities.reset(actualHost);
+    }
+
+    /** Checkpoints the actual host, hosts forked from it are admitted like this one. */
+    @Override
+    public HostCheckpoint checkpoint() {
+        if (!canCheckpoint()) {
+            throw new UnsupportedOperationException(description + " cannot be checkpointed");
+        }
+        final HostCheckpoint checkpoint = CloudHostCapabilities.checkpoint(actualHost);
+        return new HostCheckpoint() {
+            @Override
+            public CloudHost fork() {
+                return new AdmittedCloudHost(checkpoint.fork(), admissionControl, description + " fork", vcpus, memory);
+            }
+
+            @Override
+            public void delete() {
+                checkpoint.delete();
+            }
+        };
+    }
+
+    @Override
+    public String getHostName() {
+        return actualHost.getHostName();
+    }
+
+    @Override
+    public int getPort(int port) {
+        return actualHost.getPort(port);
+    }
+
+    @Override
+    public ListenableFuture<Void> whenPortReady(int port) {
+        return PortProbes.whenPortReady(actualHost, port);
+    }
+
+    /** Time the last setup waited for admission. */
+    public long getWaitMillis() {
+        return admission != null ? admission.getWaitMillis() : 0;
+    }
+}
@@ -0,0 +1,34 @@
+/* License added by: GRADLE-LICENSE-PLUGIN
+ *
+ * Copyright 2008-2012 XebiaLabs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xebialabs.overcast.host;
+
+/**
+ * A {@link CloudHost} whose state can be captured after it has been set up, e.g. once an application has been
+ * deployed on it, so any number of new hosts can start from that state instead of repeating the work. Hosts wrapping
+ * another one are checkpointed with {@link CloudHostCapabilities#checkpoint(CloudHost)}.
+ */
+public interface CheckpointableCloudHost extends CloudHost {
+
+    /**
+     * Captures the current state of the host, which keeps running. Can only be called after {@link #setup()} has been
+     * invoked.
+     *
+     * @throws UnsupportedOperationException when the host turns out not to support it.
+     */
+    HostCheckpoint checkpoint();
+}
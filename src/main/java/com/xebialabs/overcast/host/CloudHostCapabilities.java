@@ -0,0 +1,71 @@
+/* License added by: GRADLE-LICENSE-PLUGIN
+ *
+ * Copyright 2008-2012 XebiaLabs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.xebialabs.overcast.host;
+
+/**
+ * Resets and checkpoints any {@link CloudHost}. Hosts that wrap another one, e.g. for tunnels, admission control, sharing
+ * or lazy setup, do not implement {@link ResettableCloudHost} and {@link CheckpointableCloudHost} themselves. They pass
+ * these operations on to the host they wrap, so use these methods rather than {@code instanceof} for them. A lazy host
+ * does not know what it wraps until it is created, asking whether it can be reset or checkpointed creates it without
+ * setting it up.
+ */
+public final class CloudHostCapabilities {
+
+    private CloudHostCapabilities() {
+    }
+
+    public static boolean canReset(CloudHost host) {
+        if (host instanceof WrappingCloudHost) {
+            return ((WrappingCloudHost) host).canReset();
+        }
+        return host instanceof ResettableCloudHost;
+    }
+
+    public static boolean canCheckpoint(CloudHost host) {
+        if (host instanceof WrappingCloudHost) {
+            return ((WrappingCloudHost) host).canCheckpoint();
+        }
+        return host instanceof CheckpointableCloudHost;
+    }
+
+    /**
+     * @see ResettableCloudHost#reset()
+     * @throws UnsupportedOperationException when the host cannot be reset.
+     */
+    public static void reset(CloudHost host) {
+        if (host instanceof WrappingCloudHost) {
+            ((WrappingCloudHost) host).reset();
+        } else if (host instanceof ResettableCloudHost) {
+            ((ResettableCloudHost) host).reset();
+        } else {
+            throw new UnsupportedOperationException("Host " + host.getHostName() + " cannot be reset");
+        }
+    }
+
+    /**
+     * @see CheckpointableCloudHost#checkpoint()
+     * @throws UnsupportedOperationException when the host cannot be checkpointed.
+     */
+    public static HostCheckpoint checkpoint(CloudHost host) {
+        if (host instanceof WrappingCloudHost) {
+            return ((WrappingCloudHost) host).checkpoint();
+        } else if (host instanceof CheckpointableCloudHost) {
+            return ((CheckpointableCloudHost) host).checkpoint();
+        }
+        throw new UnsupportedOperationException("Host " + host.getHostName() + " cannot be checkpointed");
+    }
+}
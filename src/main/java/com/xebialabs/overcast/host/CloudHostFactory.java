@@ -17,15 +17,19 @@
 
 package com.xebialabs.overcast.host;
 
+import java.io.File;
 import java.util.Map;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.base.Supplier;
+
 import com.xebialabs.overcast.OvercastProperties;
 import com.xebialabs.overcast.command.Command;
 import com.xebialabs.overcast.command.CommandProcessor;
 import com.xebialabs.overcast.support.vagrant.VagrantDriver;
+import com.xebialabs.overcast.support.vagrant.VagrantfileSize;
 import com.xebialabs.overcast.support.virtualbox.VirtualboxDriver;
 import com.xebialabs.overthere.ConnectionOptions;
 import com.xebialabs.overthere.OperatingSystemFamily;
@@ -48,6 +52,14 @@ public class CloudHostFactory {
     public static final String TUNNEL_USERNAME_PROPERTY_SUFFIX = ".tunnel.username";
     public static final String TUNNEL_PASSWORD_PROPERTY_SUFFIX = ".tunnel" + OvercastProperties.PASSWORD_PROPERTY_SUFFIX;
     public static final String TUNNEL_PORTS_PROPERTY_SUFFIX = ".tunnel.ports";
+    public static final String TUNNEL_KEEP_ALIVE_INTERVAL_PROPERTY_SUFFIX = ".tunnel.keepAliveInterval";
+    public static final String TUNNEL_RECONNECT_TIMEOUT_PROPERTY_SUFFIX = ".tunnel.reconnectTimeout";
+    public static final String SHARED_PROPERTY_SUFFIX = ".shared";
+    public static final String SHARED_GRACE_PERIOD_PROPERTY_SUFFIX = ".sharedGracePeriod";
+    public static final String SHARED_GRACE_PERIOD_DEFAULT = "0";
+    public static final String LAZY_PROPERTY_SUFFIX = ".lazy";
+    public static final String ADMISSION_VCPUS_PROPERTY_SUFFIX = ".admissionVcpus";
+    public static final String ADMISSION_MEMORY_PROPERTY_SUFFIX = ".admissionMemory";
 
     private static final String VAGRANT_DIR_PROPERTY_SUFFIX = ".vagrantDir";
     private static final String VAGRANT_VM_PROPERTY_SUFFIX = ".vagrantVm";
@@ -69,14 +81,62 @@ public class CloudHostFactory {
         return getCloudHost(hostLabel, false);
     }
 
-    private static CloudHost getCloudHost(String hostLabel, boolean disableEc2) {
+    private static CloudHost getCloudHost(final String hostLabel, final boolean disableEc2) {
+        OrphanCollector.collectOnce();
+        if (Boolean.valueOf(getOvercastProperty(hostLabel + LAZY_PROPERTY_SUFFIX, "false"))) {
+            return new LazyCloudHost(hostLabel, new Supplier<CloudHost>() {
+                @Override
+                public CloudHost get() {
+                    return getEagerCloudHost(hostLabel, disableEc2);
+                }
+            });
+        }
+        return getEagerCloudHost(hostLabel, disableEc2);
+    }
+
+    private static CloudHost getEagerCloudHost(final String hostLabel, final boolean disableEc2) {
+        if (Boolean.valueOf(getOvercastProperty(PoolDaemon.DAEMON_ENABLED_PROPERTY, "false"))) {
+            int daemonPort = Integer.valueOf(getOvercastProperty(PoolDaemon.DAEMON_PORT_PROPERTY, PoolDaemon.DAEMON_PORT_DEFAULT));
+            File tokenFile = DaemonToken.getTokenFile();
+            if (DaemonCloudHost.isPooled(hostLabel, daemonPort, tokenFile)) {
+                logger.info("Leasing {} from the overcast daemon on port {}", hostLabel, daemonPort);
+                int leaseTimeout = Integer.valueOf(getOvercastProperty(PoolDaemon.DAEMON_LEASE_TIMEOUT_PROPERTY, PoolDaemon.DAEMON_LEASE_TIMEOUT_DEFAULT));
+                return new DaemonCloudHost(hostLabel, daemonPort, tokenFile, leaseTimeout);
+            }
+        }
+        return getLocalCloudHost(hostLabel, disableEc2);
+    }
+
+    /**
+     * A host created by this JVM that is not shared, as the {@link PoolDaemon} creates the hosts it pools. A host of a
+     * shared label would otherwise be leased to several JVMs at once.
+     */
+    static CloudHost getUnsharedCloudHost(String hostLabel) {
+        return createWrappedCloudHost(hostLabel, false);
+    }
+
+    private static CloudHost getLocalCloudHost(final String hostLabel, final boolean disableEc2) {
+        if (Boolean.valueOf(getOvercastProperty(hostLabel + SHARED_PROPERTY_SUFFIX, "false"))) {
+            int gracePeriod = Integer.valueOf(getOvercastProperty(hostLabel + SHARED_GRACE_PERIOD_PROPERTY_SUFFIX, SHARED_GRACE_PERIOD_DEFAULT));
+            return SharedCloudHosts.getInstance().get(hostLabel, new Supplier<CloudHost>() {
+                @Override
+                public CloudHost get() {
+                    return createWrappedCloudHost(hostLabel, disableEc2);
+                }
+            }, gracePeriod);
+        }
+        return createWrappedCloudHost(hostLabel, disableEc2);
+    }
+
+    private static CloudHost createWrappedCloudHost(String hostLabel, boolean disableEc2) {
         CloudHost host = createCloudHost(hostLabel, disableEc2);
+        host = admitCloudHost(hostLabel, host);
         return wrapCloudHost(hostLabel, host);
     }
 
     protected static CloudHost createCloudHost(String label, boolean disableEc2) {
         String hostName = getOvercastProperty(label + HOSTNAME_PROPERTY_SUFFIX);
-        if (hostName != null) {
+        if (hostName != null || getOvercastProperty(label + ExistingCloudHost.HOSTNAMES_PROPERTY_SUFFIX) != null) {
             return createExistingCloudHost(label);
         }
 
@@ -164,6 +224,41 @@ public class CloudHostFactory {
         return new LibvirtHost(label, baseDomain);
     }
 
+    /**
+     * Let the setup of a VM that runs on a local hypervisor wait for admission. The demand is read from the VM's
+     * definition unless configured for the label.
+     */
+    private static CloudHost admitCloudHost(String label, CloudHost actualHost) {
+        AdmissionControl admissionControl = AdmissionControl.getInstance();
+        if (!admissionControl.isEnabled() || actualHost instanceof ExistingCloudHost || actualHost instanceof Ec2CloudHost) {
+            return actualHost;
+        }
+        String vcpus = getOvercastProperty(label + ADMISSION_VCPUS_PROPERTY_SUFFIX);
+        String memory = getOvercastProperty(label + ADMISSION_MEMORY_PROPERTY_SUFFIX);
+        int hostVcpus = 1;
+        long hostMemory = 0;
+        if (vcpus == null || memory == null) {
+            if (actualHost instanceof LibvirtHost) {
+                hostVcpus = ((LibvirtHost) actualHost).getVcpus();
+                hostMemory = ((LibvirtHost) actualHost).getMemory();
+            } else if (actualHost instanceof VirtualboxHost) {
+                hostVcpus = ((VirtualboxHost) actualHost).getVcpus();
+                hostMemory = ((VirtualboxHost) actualHost).getMemory();
+            } else if (actualHost instanceof VagrantCloudHost) {
+                VagrantfileSize size = VagrantfileSize.read(new File(getOvercastProperty(label + VAGRANT_DIR_PROPERTY_SUFFIX)));
+                if (size.getCpus() == null || size.getMemory() == null) {
+                    logger.warn("The Vagrantfile of {} does not set both vCPUs and memory, set {} and {} to admit it by its size",
+                        label, label + ADMISSION_VCPUS_PROPERTY_SUFFIX, label + ADMISSION_MEMORY_PROPERTY_SUFFIX);
+                }
+                hostVcpus = size.getCpus() != null ? size.getCpus() : hostVcpus;
+                hostMemory = size.getMemory() != null ? size.getMemory() : hostMemory;
+            }
+        }
+        return new AdmittedCloudHost(actualHost, admissionControl, label,
+            vcpus != null ? Integer.valueOf(vcpus) : hostVcpus,
+            memory != null ? Long.valueOf(memory) : hostMemory);
+    }
+
     private static CloudHost wrapCloudHost(String label, CloudHost actualHost) {
         String tunnelUsername = getOvercastProperty(label + TUNNEL_USERNAME_PROPERTY_SUFFIX);
         if (tunnelUsername == null) {
@@ -175,6 +270,10 @@ public class CloudHostFactory {
         String tunnelPassword = getRequiredOvercastProperty(label + TUNNEL_PASSWORD_PROPERTY_SUFFIX);
         String ports = getRequiredOvercastProperty(label + TUNNEL_PORTS_PROPERTY_SUFFIX);
         Map<Integer, Integer> portForwardMap = parsePortsProperty(ports);
-        return new TunneledCloudHost(actualHost, tunnelUsername, tunnelPassword, portForwardMap);
+        int keepAliveInterval = Integer.valueOf(getOvercastProperty(label + TUNNEL_KEEP_ALIVE_INTERVAL_PROPERTY_SUFFIX,
+            String.valueOf(TunneledCloudHost.KEEP_ALIVE_INTERVAL_DEFAULT)));
+        int reconnectTimeout = Integer.valueOf(getOvercastProperty(label + TUNNEL_RECONNECT_TIMEOUT_PROPERTY_SUFFIX,
+            String.valueOf(TunneledCloudHost.RECONNECT_TIMEOUT_DEFAULT)));
+        return new TunneledCloudHost(actualHost, tunnelUsername, tunnelPassword, portForwardMap, keepAliveInterval, reconnectTimeout);
     }
 }
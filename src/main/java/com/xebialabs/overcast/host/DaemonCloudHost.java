@@ -0,0 +1,196 @@
+/* License added by: GRADLE-LICENSE-PLUGIN
+ *
+ * Copyright 2008-2012 XebiaLabs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xebialabs.overcast.host;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+
+import static com.google.common.base.Preconditions.checkState;
+import static com.xebialabs.overcast.host.PoolDaemon.UTF8;
+
+/**
+ * Host leased from the {@link PoolDaemon} on this machine. The connection to the daemon stays open while the host is
+ * set up; the daemon takes the host back when it closes, at teardown or when this JVM dies. A daemon that cannot
+ * prove it knows the {@link DaemonToken} is not trusted.
+ */
+class DaemonCloudHost implements CloudHost {
+    private static final Logger logger = LoggerFactory.getLogger(DaemonCloudHost.class);
+    private static final int CONNECT_TIMEOUT_MILLIS = 1000;
+
+    private final String label;
+    private final int daemonPort;
+    private final File tokenFile;
+    private final int leaseTimeoutSeconds;
+
+    private Socket socket;
+    private BufferedReader in;
+    private Writer out;
+    private String hostName;
+    private final Map<Integer, Integer> ports = Maps.newHashMap();
+
+    /**
+     * @param leaseTimeoutSeconds how long the daemon waits for a ready host, the daemon is given up on when it has
+     * not answered shortly after.
+     */
+    DaemonCloudHost(String label, int daemonPort, File tokenFile, int leaseTimeoutSeconds) {
+        this.label = label;
+        this.daemonPort = daemonPort;
+        this.tokenFile = tokenFile;
+        this.leaseTimeoutSeconds = leaseTimeoutSeconds;
+    }
+
+    /** @return whether a daemon that knows the token listens on the port and pools the label. */
+    static boolean isPooled(String label, int daemonPort, File tokenFile) {
+        Socket probe = new Socket();
+        try {
+            probe.connect(new InetSocketAddress(InetAddress.getByName(null), daemonPort), CONNECT_TIMEOUT_MILLIS);
+            probe.setSoTimeout(CONNECT_TIMEOUT_MILLIS);
+            BufferedReader probeIn = new BufferedReader(new InputStreamReader(probe.getInputStream(), UTF8));
+            Writer probeOut = new OutputStreamWriter(probe.getOutputStream(), UTF8);
+            authenticate(probeIn, probeOut, DaemonToken.read(tokenFile));
+            probeOut.write("HAS " + label + "\n");
+            probeOut.flush();
+            return "YES".equals(probeIn.readLine());
+        } catch (IOException e) {
+            return false;
+        } catch (RuntimeException e) {
+            logger.warn("Not leasing {} from the process on port {}: {}", label, daemonPort, e.getMessage());
+            return false;
+        } finally {
+            closeQuietly(probe);
+        }
+    }
+
+    /** Check the answer of the daemon to our challenge and answer its challenge. */
+    private static void authenticate(BufferedReader in, Writer out, DaemonToken token) throws IOException {
+        String challenge = DaemonToken.challenge();
+        List<String> reply = ImmutableList.copyOf(Splitter.on(' ').split(request(in, out, "HELLO " + challenge)));
+        if (reply.size() != 2 || !token.verify(DaemonToken.DAEMON, challenge, reply.get(1))) {
+            throw new IllegalStateException("The process on the daemon port does not know the overcast daemon token");
+        }
+        request(in, out, "AUTH " + token.answer(DaemonToken.CLIENT, reply.get(0)));
+    }
+
+    @Override
+    public synchronized void setup() {
+        if (socket != null) {
+            return;
+        }
+        try {
+            socket = new Socket();
+            socket.connect(new InetSocketAddress(InetAddress.getByName(null), daemonPort), CONNECT_TIMEOUT_MILLIS);
+            socket.setKeepAlive(true);
+            socket.setSoTimeout(leaseTimeoutSeconds * 1000 + CONNECT_TIMEOUT_MILLIS);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), UTF8));
+            out = new OutputStreamWriter(socket.getOutputStream(), UTF8);
+            authenticate(in, out, DaemonToken.read(tokenFile));
+            hostName = request("LEASE " + label);
+            logger.info("Leased host {} of {} from the overcast daemon", hostName, label);
+        } catch (IOException e) {
+            disconnect();
+            throw new RuntimeException("Unable to lease a host of " + label + " from the overcast daemon", e);
+        } catch (RuntimeException e) {
+            disconnect();
+            throw e;
+        }
+    }
+
+    @Override
+    public synchronized void teardown() {
+        if (socket == null) {
+            return;
+        }
+        try {
+            request("RELEASE");
+        } catch (IOException e) {
+            logger.debug("Unable to release host " + hostName + " of " + label + ", closing the connection releases it", e);
+        } finally {
+            disconnect();
+        }
+    }
+
+    @Override
+    public synchronized String getHostName() {
+        return hostName;
+    }
+
+    @Override
+    public synchronized int getPort(int port) {
+        checkState(socket != null, "Host of %s is not set up", label);
+        Integer mapped = ports.get(port);
+        if (mapped == null) {
+            try {
+                mapped = Integer.valueOf(request("PORT " + port));
+            } catch (IOException e) {
+                throw new RuntimeException("Unable to look up port " + port + " of " + label + " from the overcast daemon", e);
+            }
+            ports.put(port, mapped);
+        }
+        return mapped;
+    }
+
+    private String request(String command) throws IOException {
+        return request(in, out, command);
+    }
+
+    private static String request(BufferedReader in, Writer out, String command) throws IOException {
+        out.write(command + "\n");
+        out.flush();
+        String reply = in.readLine();
+        if (reply == null) {
+            throw new IOException("Overcast daemon closed the connection");
+        }
+        if (!reply.equals("OK") && !reply.startsWith("OK ")) {
+            throw new IllegalStateException("Overcast daemon refused '" + command + "': " + reply);
+        }
+        return reply.substring(2).trim();
+    }
+
+    private void disconnect() {
+        closeQuietly(socket);
+        socket = null;
+        in = null;
+        out = null;
+        hostName = null;
+        ports.clear();
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+            // nothing left to do
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/* License added by: GRADLE-LICENSE-PLUGIN
+ *
+ * Copyright 2008-2012 XebiaLabs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.xebialabs.overcast.host;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.google.common.io.Files;
+
+import static com.xebialabs.overcast.OvercastProperties.getOvercastProperty;
+import static com.xebialabs.overcast.PropertiesLoader.OVERCAST_USER_DIR;
+import static com.xebialabs.overcast.host.PoolDaemon.UTF8;
+
+/**
+ * Secret shared by the {@link PoolDaemon} and the JVMs of the user that started it, kept in a file only that user can
+ * read. Both sides of a connection prove they know it by answering a random challenge of the other side, so the token
+ * itself never goes over the connection and a process that happens to listen on the daemon port learns nothing.
+ */
+class DaemonToken {
+    public static final String DAEMON_TOKEN_FILE_PROPERTY = "daemon.tokenFile";
+
+    static final String DAEMON = "daemon";
+    static final String CLIENT = "client";
+
+    private static final String HMAC = "HmacSHA256";
+    private static final int SIZE = 32;
+    private static final SecureRandom random = new SecureRandom();
+
+    private final byte[] secret;
+
+    private DaemonToken(byte[] secret) {
+        this.secret = secret;
+    }
+
+    static File getTokenFile() {
+        File defaultFile = new File(new File(new File(System.getProperty("user.home"), OVERCAST_USER_DIR), "daemon"), "token");
+        return new File(getOvercastProperty(DAEMON_TOKEN_FILE_PROPERTY, defaultFile.getPath()));
+    }
+
+    /**
+     * Create a new token and write it to the file. The file and its directory are made accessible to the current user
+     * only, the directory first so nobody else can open the file before its permissions are set.
+     */
+    static DaemonToken create(File file) throws IOException {
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create directory " + dir);
+        }
+        if (!dir.setReadable(false, false) || !dir.setReadable(true, true)
+            || !dir.setWritable(false, false) || !dir.setWritable(true, true)
+            || !dir.setExecutable(false, false) || !dir.setExecutable(true, true)) {
+            throw new IOException("Unable to make directory " + dir + " of the token file accessible to its owner only");
+        }
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Unable to replace token file " + file);
+        }
+        if (!file.createNewFile()
+            || !file.setReadable(false, false) || !file.setReadable(true, true)
+            || !file.setWritable(false, false) || !file.setWritable(true, true)) {
+            throw new IOException("Unable to create token file " + file + " that only its owner can read");
+        }
+        DaemonToken token = new DaemonToken(toHex(randomBytes()).getBytes(UTF8));
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(token.secret);
+        } finally {
+            out.close();
+        }
+        return token;
+    }
+
+    static DaemonToken read(File file) throws IOException {
+        return new DaemonToken(Files.toString(file, UTF8).trim().getBytes(UTF8));
+    }
+
+    /** A random challenge for the other side. */
+    static String challenge() {
+        return toHex(randomBytes());
+    }
+
+    /** Answer a challenge as the given side of the connection. */
+    String answer(String side, String challenge) {
+        try {
+            Mac mac = Mac.getInstance(HMAC);
+            mac.init(new SecretKeySpec(secret, HMAC));
+            return toHex(mac.doFinal((side + " " + challenge).getBytes(UTF8)));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Unable to answer challenge", e);
+        }
+    }
+
+    /** Whether the answer to a challenge was given by a side that knows this token. */
+    boolean verify(String side, String challenge, String answer) {
+        return MessageDigest.isEqual(answer(side, challenge).getBytes(UTF8), answer.getBytes(UTF8));
+    }
+
+    private static byte[] randomBytes() {
+        byte[] bytes = new byte[SIZE];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    private static String toHex(byte[] bytes) {
+        return String.format("%0" + (bytes.length * 2) + "x", new BigInteger(1, bytes));
+    }
+}
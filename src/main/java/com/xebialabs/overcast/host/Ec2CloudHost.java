@@ -20,6 +20,7 @@ package com.xebialabs.overcast.host;
 import java.util.Date;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import com.amazonaws.AmazonServiceException;
 import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.services.ec2.AmazonEC2Client;
 import com.amazonaws.services.ec2.model.*;
@@ -28,7 +29,7 @@ import static com.google.common.collect.Lists.newArrayList;
 import static com.xebialabs.overcast.OvercastProperties.getOvercastProperty;
 import static com.xebialabs.overcast.OvercastProperties.getRequiredOvercastProperty;
 
-class Ec2CloudHost implements CloudHost {
+class Ec2CloudHost implements ResettableCloudHost, CheckpointableCloudHost {
 
     public static final String AMI_AVAILABILITY_ZONE_PROPERTY_SUFFIX = ".amiAvailabilityZone";
     public static final String AMI_BOOT_SECONDS_PROPERTY_SUFFIX = ".amiBootSeconds";
@@ -40,6 +41,8 @@ class Ec2CloudHost implements CloudHost {
     public static final String AWS_ENDPOINT_DEFAULT = "https://ec2.amazonaws.com";
     public static final String AWS_ENDPOINT_PROPERTY = "aws.endpoint";
     public static final String AWS_SECRET_KEY_PROPERTY = "aws.secretKey";
+    public static final String JOURNAL_TYPE = "ec2";
+    public static final String IMAGE_JOURNAL_TYPE = "ec2-image";
 
     private final String hostLabel;
     private final String amiId;
@@ -55,6 +58,7 @@ class Ec2CloudHost implements CloudHost {
     private AmazonEC2Client ec2;
     private String instanceId;
     private String publicDnsAddress;
+    private String journalId;
 
     private static final Logger logger = LoggerFactory.getLogger(Ec2CloudHost.class);
 
@@ -77,6 +81,7 @@ class Ec2CloudHost implements CloudHost {
     @Override
     public void setup() {
         instanceId = runInstance();
+        journalId = ProvisioningJournal.recordCreated(JOURNAL_TYPE, awsEndpointURL, instanceId);
 
         publicDnsAddress = waitUntilRunningAndGetPublicDnsName();
 
@@ -87,7 +92,175 @@ class Ec2CloudHost implements CloudHost {
 
     @Override
     public void teardown() {
-        ec2.terminateInstances(new TerminateInstancesRequest(newArrayList(instanceId)));
+        final String terminatedInstanceId = instanceId;
+        final String terminatedJournalId = journalId;
+        journalId = null;
+        TeardownReaper.getInstance().teardown("EC2 instance " + terminatedInstanceId, new Runnable() {
+            @Override
+            public void run() {
+                ec2.terminateInstances(new TerminateInstancesRequest(newArrayList(terminatedInstanceId)));
+                ProvisioningJournal.recordRemoved(terminatedJournalId);
+            }
+        });
+    }
+
+    /**
+     * Replace the root volume of the instance with a new one from the snapshot of the AMI and boot it again. This is
+     * quicker than running a new instance, which also keeps its id and private address. Only EBS backed instances can
+     * be reset.
+     */
+    @Override
+    public void reset() {
+        Instance instance = describeInstance();
+        if (!"ebs".equals(instance.getRootDeviceType())) {
+            throw new UnsupportedOperationException("Instance " + instanceId + " of " + amiId + " has no EBS root volume, it cannot be reset");
+        }
+        String rootDevice = instance.getRootDeviceName();
+        String oldVolumeId = null;
+        for (InstanceBlockDeviceMapping mapping : instance.getBlockDeviceMappings()) {
+            if (rootDevice.equals(mapping.getDeviceName())) {
+                oldVolumeId = mapping.getEbs().getVolumeId();
+            }
+        }
+        if (oldVolumeId == null) {
+            throw new IllegalStateException("Instance " + instanceId + " has no volume attached at " + rootDevice);
+        }
+        String snapshotId = getRootSnapshotId();
+
+        logger.info("Resetting instance {}, replacing root volume {} with a new one from {}", instanceId, oldVolumeId, snapshotId);
+        ec2.stopInstances(new StopInstancesRequest(newArrayList(instanceId)));
+        waitForInstanceState("stopped");
+        ec2.detachVolume(new DetachVolumeRequest(oldVolumeId));
+        waitForVolumeState(oldVolumeId, "available");
+
+        String newVolumeId = ec2.createVolume(new CreateVolumeRequest(snapshotId, instance.getPlacement().getAvailabilityZone()))
+            .getVolume().getVolumeId();
+        waitForVolumeState(newVolumeId, "available");
+        ec2.attachVolume(new AttachVolumeRequest(newVolumeId, instanceId, rootDevice));
+        waitForVolumeState(newVolumeId, "in-use");
+        ec2.modifyInstanceAttribute(new ModifyInstanceAttributeRequest().withInstanceId(instanceId).withBlockDeviceMappings(
+            new InstanceBlockDeviceMappingSpecification().withDeviceName(rootDevice)
+                .withEbs(new EbsInstanceBlockDeviceSpecification().withVolumeId(newVolumeId).withDeleteOnTermination(true))));
+        ec2.deleteVolume(new DeleteVolumeRequest(oldVolumeId));
+
+        ec2.startInstances(new StartInstancesRequest(newArrayList(instanceId)));
+        publicDnsAddress = waitUntilRunningAndGetPublicDnsName();
+        waitForAmiBoot();
+    }
+
+    /**
+     * Create an AMI of the instance without rebooting it, hosts forked from the checkpoint run that AMI. File systems
+     * are not frozen, so the image is what a sudden power off would leave behind.
+     */
+    @Override
+    public HostCheckpoint checkpoint() {
+        CreateImageRequest create = new CreateImageRequest(instanceId, hostLabel + " checkpoint " + System.currentTimeMillis())
+            .withDescription("Checkpoint of " + instanceId + " of " + amiId + " taken by Overcast")
+            .withNoReboot(true);
+        final String imageId = ec2.createImage(create).getImageId();
+        final String imageJournalId = ProvisioningJournal.recordCreated(IMAGE_JOURNAL_TYPE, awsEndpointURL, imageId);
+        logger.info("Creating AMI {} from instance {}", imageId, instanceId);
+        for (; ; ) {
+            Image image = describeImage(imageId);
+            if (image.getState().equals("available")) {
+                break;
+            }
+            if (image.getState().equals("failed")) {
+                deleteImage(ec2, imageId);
+                ProvisioningJournal.recordRemoved(imageJournalId);
+                throw new IllegalStateException("Creating AMI " + imageId + " from instance " + instanceId + " failed: " + image.getStateReason());
+            }
+            logger.info("AMI {} is still {}. Waiting...", imageId, image.getState());
+            sleep(5);
+        }
+        return new HostCheckpoint() {
+            @Override
+            public CloudHost fork() {
+                return new Ec2CloudHost(hostLabel, imageId);
+            }
+
+            @Override
+            public void delete() {
+                deleteImage(ec2, imageId);
+                ProvisioningJournal.recordRemoved(imageJournalId);
+            }
+        };
+    }
+
+    /** Deregister an AMI and delete the EBS snapshots backing it. */
+    private static void deleteImage(AmazonEC2Client client, String imageId) {
+        Image image = client.describeImages(new DescribeImagesRequest().withImageIds(imageId)).getImages().get(0);
+        client.deregisterImage(new DeregisterImageRequest(imageId));
+        for (BlockDeviceMapping mapping : image.getBlockDeviceMappings()) {
+            if (mapping.getEbs() != null && mapping.getEbs().getSnapshotId() != null) {
+                client.deleteSnapshot(new DeleteSnapshotRequest(mapping.getEbs().getSnapshotId()));
+            }
+        }
+    }
+
+    private Image describeImage(String imageId) {
+        return ec2.describeImages(new DescribeImagesRequest().withImageIds(imageId)).getImages().get(0);
+    }
+
+    private String getRootSnapshotId() {
+        Image image = describeImage(amiId);
+        for (BlockDeviceMapping mapping : image.getBlockDeviceMappings()) {
+            if (image.getRootDeviceName().equals(mapping.getDeviceName()) && mapping.getEbs() != null) {
+                return mapping.getEbs().getSnapshotId();
+            }
+        }
+        throw new IllegalStateException("Image " + amiId + " has no snapshot for its root device " + image.getRootDeviceName());
+    }
+
+    private Instance describeInstance() {
+        DescribeInstancesRequest describe = new DescribeInstancesRequest().withInstanceIds(newArrayList(instanceId));
+        return ec2.describeInstances(describe).getReservations().get(0).getInstances().get(0);
+    }
+
+    private void waitForInstanceState(String state) {
+        for (; ; ) {
+            String current = describeInstance().getState().getName();
+            if (current.equals(state)) {
+                return;
+            }
+            logger.info("Instance {} is still {}. Waiting...", instanceId, current);
+            sleep(1);
+        }
+    }
+
+    private void waitForVolumeState(String volumeId, String state) {
+        for (; ; ) {
+            Volume volume = ec2.describeVolumes(new DescribeVolumesRequest().withVolumeIds(volumeId)).getVolumes().get(0);
+            if (volume.getState().equals(state)) {
+                return;
+            }
+            logger.info("Volume {} is still {}. Waiting...", volumeId, volume.getState());
+            sleep(1);
+        }
+    }
+
+    /** Terminate an instance left running by a JVM that died. */
+    static void reclaim(String endpoint, String instanceId) {
+        reclaimClient(endpoint).terminateInstances(new TerminateInstancesRequest(newArrayList(instanceId)));
+    }
+
+    /** Delete an AMI of a checkpoint taken by a JVM that died. */
+    static void reclaimImage(String endpoint, String imageId) {
+        try {
+            deleteImage(reclaimClient(endpoint), imageId);
+        } catch (AmazonServiceException e) {
+            if (e.getErrorCode() == null || !e.getErrorCode().startsWith("InvalidAMIID")) {
+                throw e;
+            }
+            logger.debug("AMI {} is already gone", imageId);
+        }
+    }
+
+    private static AmazonEC2Client reclaimClient(String endpoint) {
+        AmazonEC2Client client = new AmazonEC2Client(new BasicAWSCredentials(getRequiredOvercastProperty(AWS_ACCESS_KEY_PROPERTY),
+            getRequiredOvercastProperty(AWS_SECRET_KEY_PROPERTY)));
+        client.setEndpoint(endpoint);
+        return client;
     }
 
     @Override
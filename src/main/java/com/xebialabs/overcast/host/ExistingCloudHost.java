@@ -17,29 +17,56 @@
 
 package com.xebialabs.overcast.host;
 
+import java.util.List;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
+
 import static com.xebialabs.overcast.OvercastProperties.getOvercastProperty;
 
+/**
+ * A host that is already running. With {@code .hostnames} the label stands for a pool of hosts, each setup leases one
+ * that no other JVM or host of this JVM uses until it is torn down.
+ */
 class ExistingCloudHost implements CloudHost {
 
+    public static final String HOSTNAMES_PROPERTY_SUFFIX = ".hostnames";
+    public static final String LEASE_TIMEOUT_PROPERTY_SUFFIX = ".leaseTimeout";
+    public static final String LEASE_TIMEOUT_DEFAULT = "600";
+
     private final String hostname;
+    private final List<String> hostnames;
+    private final int leaseTimeout;
+    private HostLeases.Lease lease;
 
     public ExistingCloudHost(String hostLabel) {
         this.hostname = getOvercastProperty(hostLabel + ".hostname", hostLabel);
+        this.hostnames = Lists.newArrayList(Splitter.on(',').trimResults().omitEmptyStrings().split(
+            getOvercastProperty(hostLabel + HOSTNAMES_PROPERTY_SUFFIX, "")));
+        this.leaseTimeout = Integer.valueOf(getOvercastProperty(hostLabel + LEASE_TIMEOUT_PROPERTY_SUFFIX, LEASE_TIMEOUT_DEFAULT));
     }
 
     @Override
     public void setup() {
-        // no-op
+        if (!hostnames.isEmpty() && lease == null) {
+            lease = HostLeases.getInstance().claim(hostnames, leaseTimeout);
+        }
     }
 
     @Override
     public void teardown() {
-        // no-op
+        if (lease != null) {
+            lease.release();
+            lease = null;
+        }
     }
 
     @Override
     public String getHostName() {
-        return hostname;
+        if (hostnames.isEmpty()) {
+            return hostname;
+        }
+        return lease != null ? lease.getHostname() : null;
     }
 
     @Override
@@ -48,4 +75,3 @@ class ExistingCloudHost implements CloudHost {
     }
 
 }
-
@@ -0,0 +1,36 @@
+/* License added by: GRADLE-LICENSE-PLUGIN
+ *
+ * Copyright 2008-2012 XebiaLabs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xebialabs.overcast.host;
+
+/**
+ * State of a host captured by {@link CheckpointableCloudHost#checkpoint()}.
+ */
+public interface HostCheckpoint {
+
+    /**
+     * @return a new, independent host that starts from the checkpoint when it is set up and is removed again when it
+     *         is torn down.
+     */
+    CloudHost fork();
+
+    /**
+     * Removes the checkpoint. Hosts forked from it have to be torn down first, and for libvirt also the host it was
+     * taken of, as their disks are backed by those of the checkpoint.
+     */
+    void delete();
+}
@@ -0,0 +1,172 @@
+/* License added by: GRADLE-LICENSE-PLUGIN
+ *
+ * Copyright 2008-2012 XebiaLabs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xebialabs.overcast.host;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Sets;
+
+import static com.xebialabs.overcast.OvercastProperties.getOvercastProperty;
+import static com.xebialabs.overcast.PropertiesLoader.OVERCAST_USER_DIR;
+
+/**
+ * Leases on existing hosts, shared by all JVMs of the user on this machine. A host is leased by whoever holds the lock
+ * on its lease file. Claiming tries the lock of each host without waiting for any of them, and the OS releases the
+ * lock when the JVM dies however it dies, so a killed test fork does not keep its host.
+ */
+class HostLeases {
+    public static final String LEASE_DIR_PROPERTY = "lease.dir";
+
+    private static final Logger logger = LoggerFactory.getLogger(HostLeases.class);
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final long POLL_INTERVAL_MILLIS = 1000;
+
+    private static HostLeases instance;
+
+    // shared by all claims, so claims in parallel do not all try the first host first
+    private final AtomicInteger nextHost = new AtomicInteger();
+    private final File dir;
+    private final String owner;
+
+    /**
+     * Hosts leased by this JVM. Closing any channel on a lease file may release the lock of this JVM on it, so a file
+     * is not opened again while this JVM holds its lock.
+     */
+    private final Set<String> leased = Sets.newHashSet();
+
+    HostLeases(File dir) {
+        this.dir = dir;
+        this.owner = ManagementFactory.getRuntimeMXBean().getName();
+    }
+
+    public static synchronized HostLeases getInstance() {
+        if (instance == null) {
+            File defaultDir = new File(new File(System.getProperty("user.home"), OVERCAST_USER_DIR), "leases");
+            instance = new HostLeases(new File(getOvercastProperty(LEASE_DIR_PROPERTY, defaultDir.getPath())));
+        }
+        return instance;
+    }
+
+    /** A claimed host, until {@link #release()}. */
+    class Lease {
+        private final String hostname;
+        private final FileLock lock;
+
+        private Lease(String hostname, FileLock lock) {
+            this.hostname = hostname;
+            this.lock = lock;
+        }
+
+        public String getHostname() {
+            return hostname;
+        }
+
+        public void release() {
+            synchronized (leased) {
+                try {
+                    lock.release();
+                    lock.channel().close();
+                    logger.info("Released lease on {}", hostname);
+                } catch (IOException e) {
+                    logger.warn("Unable to release lease on " + hostname, e);
+                } finally {
+                    leased.remove(hostname);
+                }
+            }
+        }
+    }
+
+    /**
+     * Claim one of the hosts, waiting at most timeoutSeconds for one of them to be released.
+     */
+    public Lease claim(List<String> hostnames, int timeoutSeconds) {
+        List<String> hosts = ImmutableList.copyOf(hostnames);
+        long deadline = System.currentTimeMillis() + timeoutSeconds * 1000L;
+        dir.mkdirs();
+        for (;;) {
+            int start = (nextHost.getAndIncrement() & Integer.MAX_VALUE) % hosts.size();
+            for (int i = 0; i < hosts.size(); i++) {
+                Lease lease = tryClaim(hosts.get((start + i) % hosts.size()));
+                if (lease != null) {
+                    return lease;
+                }
+            }
+            if (System.currentTimeMillis() > deadline) {
+                throw new IllegalStateException("None of the hosts " + hosts + " was released within " + timeoutSeconds + "s");
+            }
+            logger.debug("All of {} are leased, waiting", hosts);
+            try {
+                Thread.sleep(POLL_INTERVAL_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for a lease on one of " + hosts, e);
+            }
+        }
+    }
+
+    /** @return the lease, or {@code null} when another JVM or a host of this JVM holds it. */
+    Lease tryClaim(String hostname) {
+        synchronized (leased) {
+            if (leased.contains(hostname)) {
+                return null;
+            }
+            FileChannel channel = null;
+            try {
+                channel = new RandomAccessFile(leaseFile(hostname), "rw").getChannel();
+                FileLock lock = channel.tryLock();
+                if (lock == null) {
+                    channel.close();
+                    return null;
+                }
+                // tells who has the lease, the lock is what counts
+                channel.truncate(0);
+                channel.write(ByteBuffer.wrap((owner + "\n").getBytes(UTF8)), 0);
+                leased.add(hostname);
+                logger.info("Leased {}", hostname);
+                return new Lease(hostname, lock);
+            } catch (IOException e) {
+                if (channel != null) {
+                    try {
+                        channel.close();
+                    } catch (IOException ignored) {
+                        //
+                    }
+                }
+                throw new RuntimeException("Unable to lease " + hostname, e);
+            }
+        }
+    }
+
+    private File leaseFile(String hostname) {
+        return new File(dir, hostname.replaceAll("[^A-Za-z0-9.@_-]", "_") + ".lock");
+    }
+}
@@ -0,0 +1,206 @@
+/* License added by: GRADLE-LICENSE-PLUGIN
+ *
+ * Copyright 2008-2012 XebiaLabs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xebialabs.overcast.host;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Supplier;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * {@link CloudHost} whose setup only registers that the host is wanted. The host is created and set up when its name
+ * or a port is asked for first, callers asking in the meantime wait for it. A host that is never asked for is never
+ * created, so a base class can set up hosts a filtered test run does not use.
+ * <p>
+ * It cannot know whether the host it creates is resettable or checkpointable, so reset and checkpoint it with
+ * {@link CloudHostCapabilities}.
+ */
+class LazyCloudHost implements WrappingCloudHost, PortReadyCloudHost {
+    private static final Logger logger = LoggerFactory.getLogger(LazyCloudHost.class);
+
+    private static final ExecutorService activator = Executors.newCachedThreadPool(
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("overcast-lazy-setup-%d").build());
+
+    private final String label;
+    private final Supplier<CloudHost> factory;
+
+    // guarded by this
+    private boolean wanted;
+    private CloudHost actualHost;
+    private boolean active;
+    private RuntimeException failure;
+
+    LazyCloudHost(String label, Supplier<CloudHost> factory) {
+        this.label = label;
+        this.factory = factory;
+    }
+
+    @Override
+    public synchronized void setup() {
+        wanted = true;
+    }
+
+    @Override
+    public synchronized void teardown() {
+        wanted = false;
+        failure = null;
+        if (active) {
+            active = false;
+            actualHost.teardown();
+        } else {
+            logger.debug("Host {} was never used, nothing to tear down", label);
+        }
+    }
+
+    /** Creates the host without setting it up to find out. */
+    @Override
+    public synchronized boolean canReset() {
+        return CloudHostCapabilities.canReset(created());
+    }
+
+    /** Creates the host without setting it up to find out. */
+    @Override
+    public synchronized boolean canCheckpoint() {
+        return CloudHostCapabilities.canCheckpoint(created());
+    }
+
+    private synchronized CloudHost created() {
+        if (actualHost == null) {
+            actualHost = factory.get();
+        }
+        return actualHost;
+    }
+
+    /** Whether the host has been set up because it was used. */
+    public synchronized boolean isActive() {
+        return active;
+    }
+
+    private synchronized CloudHost activate() {
+        checkState(wanted, "Host %s has not been set up", label);
+        if (failure != null) {
+            // do not set it up again for every caller
+            throw new IllegalStateException("Setup of host " + label + " failed", failure);
+        }
+        if (!active) {
+            logger.info("Host {} is used, setting it up", label);
+            try {
+                created().setup();
+            } catch (RuntimeException e) {
+                failure = e;
+                throw e;
+            }
+            active = true;
+        }
+        return actualHost;
+    }
+
+    @Override
+    public String getHostName() {
+        return activate().getHostName();
+    }
+
+    @Override
+    public int getPort(int port) {
+        return activate().getPort(port);
+    }
+
+    /**
+     * Asking for a port counts as using the host. The future is returned right away, the host is set up in the
+     * background before the port is probed and a failed setup fails the future.
+     */
+    @Override
+    public ListenableFuture<Void> whenPortReady(final int port) {
+        synchronized (this) {
+            checkState(wanted, "Host %s has not been set up", label);
+        }
+        final SettableFuture<Void> ready = SettableFuture.create();
+        activator.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (ready.isDone()) {
+                    return;
+                }
+                final ListenableFuture<Void> probe;
+                try {
+                    probe = PortProbes.whenPortReady(activate(), port);
+                } catch (RuntimeException e) {
+                    ready.setException(e);
+                    return;
+                }
+                probe.addListener(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            probe.get();
+                            ready.set(null);
+                        } catch (ExecutionException e) {
+                            ready.setException(e.getCause());
+                        } catch (CancellationException e) {
+                            ready.cancel(false);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            ready.setException(e);
+                        }
+                    }
+                }, MoreExecutors.sameThreadExecutor());
+                ready.addListener(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (ready.isCancelled()) {
+                            probe.cancel(false);
+                        }
+                    }
+                }, MoreExecutors.sameThreadExecutor());
+            }
+        });
+        return ready;
+    }
+
+    @Override
+    public synchronized void reset() {
+        if (!active) {
+            // nothing has been done to it yet
+            return;
+        }
+        if (!CloudHostCapabilities.canReset(actualHost)) {
+            throw new UnsupportedOperationException("Host " + label + " cannot be reset");
+        }
+        CloudHostCapabilities.reset(actualHost);
+    }
+
+    @Override
+    public HostCheckpoint checkpoint() {
+        CloudHost host = activate();
+        if (!CloudHostCapabilities.canCheckpoint(host)) {
+            throw new UnsupportedOperationException("Host " + label + " cannot be checkpointed");
+        }
+        return CloudHostCapabilities.checkpoint(host);
+    }
+}
@@ -17,26 +17,66 @@
 
 package com.xebialabs.overcast.host;
 
+import java.io.File;
+import java.nio.channels.FileLock;
+import java.text.MessageFormat;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.libvirt.Connect;
+import org.libvirt.Domain;
 import org.libvirt.DomainInfo.DomainState;
 import org.libvirt.LibvirtException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
+
+import com.xebialabs.overcast.command.Command;
+import com.xebialabs.overcast.command.CommandProcessor;
+import com.xebialabs.overcast.support.libvirt.CloneOptions;
+import com.xebialabs.overcast.support.libvirt.DhcpReservations;
+import com.xebialabs.overcast.support.libvirt.DhcpReservations.Reservation;
+import com.xebialabs.overcast.support.libvirt.DomainCheckpoint;
+import com.xebialabs.overcast.support.libvirt.DomainTuning;
 import com.xebialabs.overcast.support.libvirt.DomainWrapper;
+import com.xebialabs.overcast.support.libvirt.GuestAgentIpLookupStrategy;
+import com.xebialabs.overcast.support.libvirt.HypervisorPlacement;
 import com.xebialabs.overcast.support.libvirt.IpLookupStrategy;
+import com.xebialabs.overcast.support.libvirt.KeptAliveClones;
+import com.xebialabs.overcast.support.libvirt.LayerCache;
+import com.xebialabs.overcast.support.libvirt.LeaseFileIpLookupStrategy;
+import com.xebialabs.overcast.support.libvirt.LibvirtRuntimeException;
+import com.xebialabs.overcast.support.libvirt.MemoryStateTemplate;
+import com.xebialabs.overcast.support.libvirt.OverlayPools;
+import com.xebialabs.overcast.support.libvirt.PageCachePrewarmer;
+import com.xebialabs.overcast.support.libvirt.RestoreHook;
 import com.xebialabs.overcast.support.libvirt.SshIpLookupStrategy;
 import com.xebialabs.overcast.support.libvirt.StaticIpLookupStrategy;
+import com.xebialabs.overcast.support.libvirt.VirshDriver;
 
+import static com.google.common.base.Preconditions.checkState;
 import static com.xebialabs.overcast.OvercastProperties.getOvercastProperty;
 import static com.xebialabs.overcast.OvercastProperties.getRequiredOvercastProperty;
+import static com.xebialabs.overcast.PropertiesLoader.OVERCAST_USER_DIR;
+import static com.xebialabs.overcast.support.libvirt.CloneOptions.cloneOptions;
+import static com.xebialabs.overcast.support.libvirt.DomainTuning.domainTuning;
 
-class LibvirtHost implements CloudHost {
+class LibvirtHost implements ResettableCloudHost, CheckpointableCloudHost {
     private static final Logger logger = LoggerFactory.getLogger(LibvirtHost.class);
 
     public static final String LIBVIRT_URL_PROPERTY_SUFFIX = ".libvirtURL";
+    public static final String LIBVIRT_URLS_PROPERTY_SUFFIX = ".libvirtURLs";
+    public static final String LIBVIRT_MAX_CLONES_PER_URL_PROPERTY_SUFFIX = ".libvirtMaxClonesPerURL";
+    public static final String LIBVIRT_PLACEMENT_TIMEOUT_PROPERTY_SUFFIX = ".libvirtPlacementTimeout";
+    public static final String LIBVIRT_PLACEMENT_TIMEOUT_DEFAULT = "600";
 
     public static final String LIBVIRT_START_TIMEOUT_PROPERTY_SUFFIX = ".libvirtStartTimeout";
     public static final String LIBVIRT_START_TIMEOUT_DEFAULT = "30";
@@ -47,37 +87,228 @@ class LibvirtHost implements CloudHost {
     public static final String LIBVIRT_BASE_DOMAIN_PROPERTY_SUFFIX = ".libvirtBaseDomain";
     public static final String LIBVIRT_NETWORK_DEVICE_ID_PROPERTY_SUFFIX = ".networkDeviceId";
     public static final String LIBVIRT_IP_LOOKUP_STRATEGY_PROPERTY_SUFFIX = ".ipLookupStrategy";
+    public static final String LIBVIRT_DHCP_NETWORK_PROPERTY_SUFFIX = ".libvirtDhcpNetwork";
+    public static final String LIBVIRT_DHCP_IP_RANGE_PROPERTY_SUFFIX = ".libvirtDhcpIpRange";
+    public static final String LIBVIRT_DHCP_RECLAIM_TIMEOUT_PROPERTY_SUFFIX = ".libvirtDhcpReclaimTimeout";
+    public static final String LIBVIRT_DHCP_RECLAIM_TIMEOUT_DEFAULT = "3600";
+    public static final String DHCP_CLAIM_DIR_PROPERTY = "dhcp.claimDir";
+    public static final String LAYER_LOCK_DIR_PROPERTY = "layer.lockDir";
+    public static final String MEMORY_STATE_LOCK_DIR_PROPERTY = "memoryState.lockDir";
+    public static final String PLACEMENT_SLOT_DIR_PROPERTY = "placement.slotDir";
+    public static final String KEEP_ALIVE_LOCK_FILE_PROPERTY = "keepAlive.lockFile";
+    public static final String LIBVIRT_TRANSIENT_PROPERTY_SUFFIX = ".libvirtTransient";
+    public static final String LIBVIRT_MEMORY_STATE_PROPERTY_SUFFIX = ".libvirtMemoryState";
+    public static final String LIBVIRT_MEMORY_STATE_DIR_PROPERTY_SUFFIX = ".libvirtMemoryStateDir";
+    public static final String LIBVIRT_MEMORY_STATE_DIR_DEFAULT = "/var/lib/libvirt/qemu/save";
+    public static final String LIBVIRT_MEMORY_STATE_BOOT_SECONDS_PROPERTY_SUFFIX = ".libvirtMemoryStateBootSeconds";
+    public static final String LIBVIRT_RESTORE_HOOKS_PROPERTY_SUFFIX = ".libvirtRestoreHooks";
+    public static final String LIBVIRT_RESTORE_HOOKS_DEFAULT = "link,clock";
+    public static final String LIBVIRT_PROVISION_STEPS_PROPERTY_SUFFIX = ".libvirtProvisionSteps";
+    public static final String LIBVIRT_PROVISION_PROPERTY_PREFIX = ".libvirtProvision.";
+    public static final String LIBVIRT_PROVISION_COMMAND_PROPERTY_SUFFIX = ".command";
+    public static final String LIBVIRT_PROVISION_EXPIRATION_COMMAND_PROPERTY_SUFFIX = ".expirationCommand";
+    public static final String LIBVIRT_PROVISION_MAX_DEPTH_PROPERTY_SUFFIX = ".libvirtProvisionMaxDepth";
+    public static final String LIBVIRT_PROVISION_MAX_DEPTH_DEFAULT = "4";
+    public static final String LIBVIRT_KEEP_ALIVE_PROPERTY_SUFFIX = ".libvirtKeepAlive";
+    public static final String LIBVIRT_KEEP_ALIVE_DEFAULT = "0";
+    public static final String LIBVIRT_KEEP_ALIVE_REVERT_PROPERTY_SUFFIX = ".libvirtKeepAliveRevert";
+    public static final String LIBVIRT_PROFILE_PROPERTY_SUFFIX = ".libvirtProfile";
+    public static final String LIBVIRT_PROFILE_DISPOSABLE = "disposable";
+    public static final String LIBVIRT_OVERLAY_CLUSTER_SIZE_PROPERTY_SUFFIX = ".libvirtOverlayClusterSize";
+    public static final String LIBVIRT_OVERLAY_POOLS_PROPERTY_SUFFIX = ".libvirtOverlayPools";
+    public static final String LIBVIRT_OVERLAY_POOL_MIN_FREE_PROPERTY_SUFFIX = ".libvirtOverlayPoolMinFree";
+    public static final String LIBVIRT_OVERLAY_POOL_MIN_FREE_DEFAULT = "1024";
+    public static final String LIBVIRT_PREWARM_PROPERTY_SUFFIX = ".libvirtPrewarm";
+    public static final String LIBVIRT_MEMORY_PROPERTY_SUFFIX = ".libvirtMemory";
+    public static final String LIBVIRT_CURRENT_MEMORY_PROPERTY_SUFFIX = ".libvirtCurrentMemory";
+    public static final String LIBVIRT_VCPUS_PROPERTY_SUFFIX = ".libvirtVcpus";
+    public static final String LIBVIRT_CPUSET_PROPERTY_SUFFIX = ".libvirtCpuset";
+    public static final String LIBVIRT_HUGEPAGES_PROPERTY_SUFFIX = ".libvirtHugepages";
+    public static final String LIBVIRT_SHARE_PAGES_PROPERTY_SUFFIX = ".libvirtSharePages";
+    public static final String LIBVIRT_BALLOON_PROPERTY_SUFFIX = ".libvirtBalloon";
+    public static final String LIBVIRT_BALLOON_STATS_PERIOD_PROPERTY_SUFFIX = ".libvirtBalloonStatsPeriod";
+    public static final String LIBVIRT_RESET_SNAPSHOT_PROPERTY_SUFFIX = ".libvirtResetSnapshot";
+    public static final String JOURNAL_TYPE = "libvirt";
+    public static final String LAYER_JOURNAL_TYPE = "libvirt-layer";
+
+    /** Snapshot of a fresh clone, a kept alive clone is reverted to it before it is adopted. */
+    private static final String FRESH_SNAPSHOT = "overcast-fresh";
 
     public static final String LIBVIRT_URL_DEFAULT = "qemu:///system";
     public static final String LIBVIRT_BOOT_SECONDS_DEFAULT = "60";
 
+    /** Clone disks younger than this may belong to a clone that is being started by another process. */
+    private static final int ORPHANED_DISK_MIN_AGE_SECONDS = 300;
+
+    /** Base domains (by libvirt URL) whose orphaned clone disks have been removed by this JVM. */
+    private static final Set<String> scannedBaseDomains = Collections.synchronizedSet(new HashSet<String>());
+
+    /** Base domains (by libvirt URL) whose images have been read into the page cache by this JVM. */
+    private static final ConcurrentMap<String, AtomicBoolean> prewarmedBaseDomains = new ConcurrentHashMap<String, AtomicBoolean>();
+
+    private final String hostLabel;
     private String libvirtURL = null;
     private final int startTimeout;
     private int bootDelay;
 
     private final String networkDeviceId;
+    private final boolean transientDomain;
+    private final boolean disposableProfile;
+    private final Integer overlayClusterSize;
+    private OverlayPools overlayPools;
+    private final boolean prewarm;
+    private final DomainTuning tuning;
+    private final boolean resetSnapshot;
+    private HypervisorPlacement placement;
+    /** Whether a clone is counted against {@link #libvirtURL} by the placement. */
+    private boolean placed;
+    /** Whether clones stay on {@link #libvirtURL} instead of being placed on the least loaded libvirt host. */
+    private boolean pinned;
+    private String memoryStateDir;
+    private int memoryStateBootSeconds;
+    private final List<RestoreHook> restoreHooks = Lists.newArrayList();
+    private boolean restored;
+    private final int keepAliveTtl;
+    private final boolean keepAliveRevert;
+    private KeptAliveClones keptAliveClones;
+    private String configHash;
+    /** Whether the disks of the clone are backed by those of a checkpoint. */
+    private boolean checkpointed;
 
     private Connect libvirt;
-    private final DomainWrapper libvirtBaseDomain;
+    private final String libvirtBaseDomainName;
+    private DomainWrapper libvirtBaseDomain;
+    private final List<ProvisioningStep> provisioningSteps = Lists.newArrayList();
+    private final int provisionMaxDepth;
+    private DomainWrapper source;
 
     private DomainWrapper clone;
     private String hostIp;
     private IpLookupStrategy ipLookupStrategy;
+    private DhcpReservations dhcpReservations;
+    private Reservation reservation;
+    private String journalId;
 
     public LibvirtHost(String hostLabel, String libvirtBaseDomain) {
-        this.libvirtURL = getOvercastProperty(hostLabel + LIBVIRT_URL_PROPERTY_SUFFIX, LIBVIRT_URL_DEFAULT);
+        this(hostLabel, libvirtBaseDomain, null);
+    }
+
+    /**
+     * @param checkpointURL the libvirt host of the checkpoint when the base domain is one. Clones of a checkpoint are
+     *                      not provisioned, restored from memory state or kept alive.
+     */
+    private LibvirtHost(String hostLabel, String libvirtBaseDomain, String checkpointURL) {
+        this.hostLabel = hostLabel;
+        this.libvirtBaseDomainName = libvirtBaseDomain;
+        List<String> urls = Lists.newArrayList(Splitter.on(',').trimResults().omitEmptyStrings().split(
+            getOvercastProperty(hostLabel + LIBVIRT_URLS_PROPERTY_SUFFIX, "")));
+        if (urls.isEmpty()) {
+            this.libvirtURL = checkpointURL != null ? checkpointURL : getOvercastProperty(hostLabel + LIBVIRT_URL_PROPERTY_SUFFIX, LIBVIRT_URL_DEFAULT);
+        } else {
+            this.placement = new HypervisorPlacement(urls, libvirtBaseDomain,
+                Integer.valueOf(getOvercastProperty(hostLabel + LIBVIRT_MAX_CLONES_PER_URL_PROPERTY_SUFFIX, "0")),
+                Integer.valueOf(getOvercastProperty(hostLabel + LIBVIRT_PLACEMENT_TIMEOUT_PROPERTY_SUFFIX, LIBVIRT_PLACEMENT_TIMEOUT_DEFAULT)),
+                placementSlotDir());
+            // connected to for now, the clone is placed in setup
+            this.libvirtURL = checkpointURL != null ? checkpointURL : placement.choose();
+            // the disks of the checkpoint are on its libvirt host
+            this.pinned = checkpointURL != null;
+        }
         this.startTimeout = Integer.valueOf(getOvercastProperty(hostLabel + LIBVIRT_START_TIMEOUT_PROPERTY_SUFFIX, LIBVIRT_START_TIMEOUT_DEFAULT));
         this.bootDelay = Integer.valueOf(getOvercastProperty(hostLabel + LIBVIRT_BOOT_DELAY_PROPERTY_SUFFIX, LIBVIRT_BOOT_DELAY_DEFAULT));
 
         this.networkDeviceId = getOvercastProperty(hostLabel + LIBVIRT_NETWORK_DEVICE_ID_PROPERTY_SUFFIX);
-        String strategy = getRequiredOvercastProperty(hostLabel + LIBVIRT_IP_LOOKUP_STRATEGY_PROPERTY_SUFFIX);
-        ipLookupStrategy = determineIpLookupStrategy(hostLabel, strategy);
+        this.transientDomain = Boolean.valueOf(getOvercastProperty(hostLabel + LIBVIRT_TRANSIENT_PROPERTY_SUFFIX, "false"));
+        this.disposableProfile = LIBVIRT_PROFILE_DISPOSABLE.equals(getOvercastProperty(hostLabel + LIBVIRT_PROFILE_PROPERTY_SUFFIX));
+        String clusterSize = getOvercastProperty(hostLabel + LIBVIRT_OVERLAY_CLUSTER_SIZE_PROPERTY_SUFFIX);
+        this.overlayClusterSize = clusterSize != null ? Integer.valueOf(clusterSize) : null;
+        this.prewarm = Boolean.valueOf(getOvercastProperty(hostLabel + LIBVIRT_PREWARM_PROPERTY_SUFFIX, "false"));
+        String memory = getOvercastProperty(hostLabel + LIBVIRT_MEMORY_PROPERTY_SUFFIX);
+        String currentMemory = getOvercastProperty(hostLabel + LIBVIRT_CURRENT_MEMORY_PROPERTY_SUFFIX);
+        String vcpus = getOvercastProperty(hostLabel + LIBVIRT_VCPUS_PROPERTY_SUFFIX);
+        String hugepages = getOvercastProperty(hostLabel + LIBVIRT_HUGEPAGES_PROPERTY_SUFFIX);
+        String sharePages = getOvercastProperty(hostLabel + LIBVIRT_SHARE_PAGES_PROPERTY_SUFFIX);
+        String balloonStatsPeriod = getOvercastProperty(hostLabel + LIBVIRT_BALLOON_STATS_PERIOD_PROPERTY_SUFFIX);
+        this.tuning = domainTuning()
+            .withMemory(memory != null ? Long.valueOf(memory) : null)
+            .withCurrentMemory(currentMemory != null ? Long.valueOf(currentMemory) : null)
+            .withVcpus(vcpus != null ? Integer.valueOf(vcpus) : null)
+            .withCpuset(getOvercastProperty(hostLabel + LIBVIRT_CPUSET_PROPERTY_SUFFIX))
+            .withHugepages(hugepages != null ? Boolean.valueOf(hugepages) : null)
+            .withSharePages(sharePages != null ? Boolean.valueOf(sharePages) : null)
+            .withBalloon(getOvercastProperty(hostLabel + LIBVIRT_BALLOON_PROPERTY_SUFFIX))
+            .withBalloonStatsPeriod(balloonStatsPeriod != null ? Integer.valueOf(balloonStatsPeriod) : null);
+        if (checkpointURL == null && Boolean.valueOf(getOvercastProperty(hostLabel + LIBVIRT_MEMORY_STATE_PROPERTY_SUFFIX, "false"))) {
+            if (getOvercastProperty(hostLabel + LIBVIRT_DHCP_NETWORK_PROPERTY_SUFFIX) != null) {
+                // a restored clone keeps the MAC of the template
+                logger.warn("Memory state restore cannot be combined with DHCP reservations, clones of {} will boot", hostLabel);
+            } else {
+                memoryStateDir = getOvercastProperty(hostLabel + LIBVIRT_MEMORY_STATE_DIR_PROPERTY_SUFFIX, LIBVIRT_MEMORY_STATE_DIR_DEFAULT);
+                memoryStateBootSeconds = Integer.valueOf(getOvercastProperty(hostLabel + LIBVIRT_MEMORY_STATE_BOOT_SECONDS_PROPERTY_SUFFIX,
+                    LIBVIRT_BOOT_SECONDS_DEFAULT));
+            }
+        }
+        // also run after reverting to the snapshot of a reset or of an adopted kept-alive clone
+        for (String hook : Splitter.on(',').trimResults().omitEmptyStrings().split(
+            getOvercastProperty(hostLabel + LIBVIRT_RESTORE_HOOKS_PROPERTY_SUFFIX, LIBVIRT_RESTORE_HOOKS_DEFAULT))) {
+            restoreHooks.add(RestoreHook.valueOf(hook.toUpperCase()));
+        }
+        this.resetSnapshot = Boolean.valueOf(getOvercastProperty(hostLabel + LIBVIRT_RESET_SNAPSHOT_PROPERTY_SUFFIX, "false"));
+        for (String step : Splitter.on(',').trimResults().omitEmptyStrings().split(
+            checkpointURL == null ? getOvercastProperty(hostLabel + LIBVIRT_PROVISION_STEPS_PROPERTY_SUFFIX, "") : "")) {
+            String prefix = hostLabel + LIBVIRT_PROVISION_PROPERTY_PREFIX + step;
+            provisioningSteps.add(new ProvisioningStep(step, getRequiredOvercastProperty(prefix + LIBVIRT_PROVISION_COMMAND_PROPERTY_SUFFIX),
+                getOvercastProperty(prefix + LIBVIRT_PROVISION_EXPIRATION_COMMAND_PROPERTY_SUFFIX)));
+        }
+        this.provisionMaxDepth = Integer.valueOf(getOvercastProperty(hostLabel + LIBVIRT_PROVISION_MAX_DEPTH_PROPERTY_SUFFIX,
+            LIBVIRT_PROVISION_MAX_DEPTH_DEFAULT));
+        this.keepAliveTtl = checkpointURL == null
+            ? Integer.valueOf(getOvercastProperty(hostLabel + LIBVIRT_KEEP_ALIVE_PROPERTY_SUFFIX, LIBVIRT_KEEP_ALIVE_DEFAULT)) : 0;
+        this.keepAliveRevert = Boolean.valueOf(getOvercastProperty(hostLabel + LIBVIRT_KEEP_ALIVE_REVERT_PROPERTY_SUFFIX, "true"));
+        connect(libvirtURL);
+    }
+
+    /** Connect to a libvirt host and set up everything that works on it. */
+    private void connect(String url) {
+        Connect previous = libvirt;
         try {
-            this.libvirt = new Connect(libvirtURL, false);
-            this.libvirtBaseDomain = DomainWrapper.newWrapper(libvirt.domainLookupByName(libvirtBaseDomain));
+            Connect connect = new Connect(url, false);
+            this.libvirtBaseDomain = DomainWrapper.newWrapper(connect.domainLookupByName(libvirtBaseDomainName));
+            this.libvirt = connect;
+            this.libvirtURL = url;
         } catch (LibvirtException e) {
             throw new RuntimeException(e);
         }
+        String dhcpNetwork = getOvercastProperty(hostLabel + LIBVIRT_DHCP_NETWORK_PROPERTY_SUFFIX);
+        List<String> overlayPoolNames = Lists.newArrayList(Splitter.on(',').trimResults().omitEmptyStrings().split(
+            getOvercastProperty(hostLabel + LIBVIRT_OVERLAY_POOLS_PROPERTY_SUFFIX, "")));
+        if (!overlayPoolNames.isEmpty()) {
+            long minFree = Long.valueOf(getOvercastProperty(hostLabel + LIBVIRT_OVERLAY_POOL_MIN_FREE_PROPERTY_SUFFIX,
+                LIBVIRT_OVERLAY_POOL_MIN_FREE_DEFAULT)) * 1024 * 1024;
+            overlayPools = new OverlayPools(libvirt, overlayPoolNames, minFree);
+        }
+        if (dhcpNetwork != null) {
+            // addresses are reserved up front, no lookup needed
+            String ipRange = getRequiredOvercastProperty(hostLabel + LIBVIRT_DHCP_IP_RANGE_PROPERTY_SUFFIX);
+            File defaultClaimDir = new File(new File(System.getProperty("user.home"), OVERCAST_USER_DIR), "dhcp");
+            int reclaimTimeout = Integer.valueOf(getOvercastProperty(hostLabel + LIBVIRT_DHCP_RECLAIM_TIMEOUT_PROPERTY_SUFFIX,
+                LIBVIRT_DHCP_RECLAIM_TIMEOUT_DEFAULT));
+            dhcpReservations = new DhcpReservations(libvirt, virsh(), dhcpNetwork, ipRange,
+                new File(getOvercastProperty(DHCP_CLAIM_DIR_PROPERTY, defaultClaimDir.getPath())), reclaimTimeout);
+        } else {
+            String strategy = getRequiredOvercastProperty(hostLabel + LIBVIRT_IP_LOOKUP_STRATEGY_PROPERTY_SUFFIX);
+            ipLookupStrategy = determineIpLookupStrategy(hostLabel, strategy);
+        }
+        if (keepAliveTtl > 0) {
+            keptAliveClones = new KeptAliveClones(libvirt, virsh(), keepAliveLockFile());
+        }
+        if (previous != null) {
+            try {
+                previous.close();
+            } catch (LibvirtException e) {
+                logger.debug("Unable to close previous libvirt connection", e);
+            }
+        }
     }
 
     protected IpLookupStrategy determineIpLookupStrategy(String hostLabel, String strategy) {
@@ -85,6 +316,10 @@ class LibvirtHost implements CloudHost {
             return SshIpLookupStrategy.create(hostLabel);
         } else if ("static".equals(strategy)) {
             return StaticIpLookupStrategy.create(hostLabel);
+        } else if ("leases".equals(strategy)) {
+            return LeaseFileIpLookupStrategy.create(hostLabel);
+        } else if ("agent".equals(strategy)) {
+            return GuestAgentIpLookupStrategy.create(hostLabel, libvirt, libvirtURL);
         } else {
             throw new RuntimeException(String.format("Unsupported IP lookup strategy: '%s'", strategy));
         }
@@ -92,15 +327,191 @@ class LibvirtHost implements CloudHost {
 
     @Override
     public void setup() {
-        clone = createClone();
+        restored = false;
+        acquirePlacement();
+        if (dhcpReservations != null) {
+            reservation = dhcpReservations.reserve();
+            hostIp = reservation.getIp();
+        }
+        try {
+            source = provisionedSource();
+            if (keptAliveClones != null && adoptKeptAliveClone()) {
+                return;
+            }
+            if (transientDomain) {
+                deleteOrphanedCloneDisks();
+            }
+            if (prewarm) {
+                prewarmImages();
+            }
+            clone = createClone();
+            hostIp = waitUntilRunningAndGetIP();
+        } catch (RuntimeException e) {
+            if (clone != null && !destroyFailedClone()) {
+                // the clone may still run with the MAC of the reservation, so the address stays claimed and the
+                // journal entry stays for the orphan collector
+                reservation = null;
+                journalId = null;
+                releasePlacement();
+                throw e;
+            }
+            // cloning rolls back itself
+            ProvisioningJournal.recordRemoved(journalId);
+            journalId = null;
+            releasePlacement();
+            releaseReservation();
+            throw e;
+        }
+        bootDelay();
+        if (resetSnapshot || (keptAliveClones != null && keepAliveRevert)) {
+            try {
+                clone.createSnapshot(FRESH_SNAPSHOT);
+            } catch (LibvirtRuntimeException e) {
+                logger.warn("Unable to snapshot clone '" + clone.getName() + "', it will be reset by replacing its disks", e);
+            }
+        }
+    }
+
+    /**
+     * Revert the clone to the snapshot taken after setup. Without the snapshot the overlays of the clone are replaced
+     * with empty ones and the clone boots again.
+     */
+    @Override
+    public void reset() {
+        checkState(clone != null, "Host has not been set up");
+        if (clone.hasSnapshot(FRESH_SNAPSHOT)) {
+            clone.revertToSnapshot(FRESH_SNAPSHOT);
+            RestoreHook.runAll(restoreHooks, virsh(), clone);
+            return;
+        }
+        clone = clone.resetOverlays();
         hostIp = waitUntilRunningAndGetIP();
+        restored = false;
         bootDelay();
     }
 
+    /**
+     * Checkpoint the disks of the clone. The clone keeps running on new overlays, a later {@link #reset()} brings it
+     * back to the checkpoint.
+     */
+    @Override
+    public HostCheckpoint checkpoint() {
+        checkState(clone != null, "Host has not been set up");
+        if (clone.hasSnapshot(FRESH_SNAPSHOT)) {
+            // the internal snapshot is kept in the overlays the checkpoint takes over
+            clone.deleteSnapshot(FRESH_SNAPSHOT);
+        }
+        final String name = DomainCheckpoint.checkpointName(getSource().getName(), UUID.randomUUID().toString().substring(0, 8));
+        final String checkpointJournalId = ProvisioningJournal.recordCreated(JOURNAL_TYPE, libvirtURL, getSource().getName(), name);
+        try {
+            DomainCheckpoint.create(clone, name, virsh(), ipLookupStrategy instanceof GuestAgentIpLookupStrategy);
+        } catch (RuntimeException e) {
+            ProvisioningJournal.recordRemoved(checkpointJournalId);
+            throw e;
+        }
+        try {
+            clone = DomainWrapper.newWrapper(libvirt.domainLookupByName(clone.getName()));
+        } catch (LibvirtException e) {
+            throw new RuntimeException(e);
+        }
+        checkpointed = true;
+        return new HostCheckpoint() {
+            @Override
+            public CloudHost fork() {
+                return new LibvirtHost(hostLabel, name, libvirtURL);
+            }
+
+            @Override
+            public void delete() {
+                try {
+                    DomainWrapper.newWrapper(libvirt.domainLookupByName(name)).destroyWithDisks();
+                } catch (LibvirtException e) {
+                    throw new RuntimeException(e);
+                }
+                ProvisioningJournal.recordRemoved(checkpointJournalId);
+            }
+        };
+    }
+
+    /**
+     * Take over a clone kept alive by an earlier teardown with the same configuration.
+     *
+     * @return {@code true} when a clone was adopted.
+     */
+    private boolean adoptKeptAliveClone() {
+        keptAliveClones.destroyExpired();
+        configHash = KeptAliveClones.configHash(libvirtURL, getSource().getName(), networkDeviceId,
+            dhcpReservations != null ? dhcpReservations.getNetwork() : null, String.valueOf(transientDomain),
+            String.valueOf(disposableProfile), tuning.toString(), ipLookupStrategy != null ? ipLookupStrategy.getClass().getName() : null);
+        DomainWrapper adopted = keptAliveClones.adopt(getSource().getName() + "-", configHash);
+        if (adopted == null) {
+            return false;
+        }
+        if (keepAliveRevert && adopted.hasSnapshot(FRESH_SNAPSHOT)) {
+            adopted.revertToSnapshot(FRESH_SNAPSHOT);
+            RestoreHook.runAll(restoreHooks, virsh(), adopted);
+        }
+        // the clone brings its own reservation, released again when it is destroyed
+        releaseReservation();
+        reservation = KeptAliveClones.getReservation(adopted);
+        clone = adopted;
+        journalId = ProvisioningJournal.recordCreated(JOURNAL_TYPE, libvirtURL, getSource().getName(), adopted.getName());
+        hostIp = KeptAliveClones.getIp(adopted);
+        if (hostIp == null) {
+            hostIp = waitUntilRunningAndGetIP();
+        }
+        return true;
+    }
+
     @Override
     public void teardown() {
-        clone.destroyWithDisks();
+        // a clone backed by a checkpoint cannot outlive it
+        if (keptAliveClones != null && !checkpointed && keepAlive()) {
+            return;
+        }
+        final DomainWrapper oldClone = clone;
+        final Reservation oldReservation = reservation;
+        final String oldJournalId = journalId;
+        final boolean oldPlaced = placed;
+        clone = null;
+        reservation = null;
+        journalId = null;
+        placed = false;
+        checkpointed = false;
+        TeardownReaper.getInstance().teardown("libvirt domain " + oldClone.getName(), new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    oldClone.destroyWithDisks();
+                    ProvisioningJournal.recordRemoved(oldJournalId);
+                } finally {
+                    if (oldReservation != null) {
+                        dhcpReservations.release(oldReservation);
+                    }
+                    if (oldPlaced) {
+                        placement.release(libvirtURL);
+                    }
+                }
+            }
+        });
+    }
+
+    /** Leave the clone running for a later setup. The DHCP reservation stays with the clone, recorded in its tag. */
+    private boolean keepAlive() {
+        try {
+            keptAliveClones.keep(clone, configHash, hostIp, dhcpReservations != null ? dhcpReservations.getNetwork() : null,
+                reservation, keepAliveTtl);
+        } catch (RuntimeException e) {
+            logger.warn("Unable to keep clone '" + clone.getName() + "' alive, destroying it", e);
+            return false;
+        }
+        ProvisioningJournal.recordRemoved(journalId);
+        journalId = null;
+        reservation = null;
         clone = null;
+        // the kept clone shows up in the running domains of its libvirt host
+        releasePlacement();
+        return true;
     }
 
     @Override
@@ -117,14 +528,164 @@ class LibvirtHost implements CloudHost {
         return clone;
     }
 
+    /** Number of virtual CPUs of a clone. */
+    int getVcpus() {
+        return tuning.getVcpus() != null ? tuning.getVcpus() : libvirtBaseDomain.getVcpus();
+    }
+
+    /** Memory of a clone in MiB. */
+    long getMemory() {
+        return tuning.getMemory() != null ? tuning.getMemory() : libvirtBaseDomain.getMemory() / 1024;
+    }
+
     protected DomainWrapper createClone() {
-        String baseName = libvirtBaseDomain.getName();
-        String cloneName = baseName + "-" + UUID.randomUUID();
-        logger.info("Creating clone '{}' from base domain '{}'", cloneName, baseName);
-        return libvirtBaseDomain.cloneWithBackingStore(cloneName);
+        // named after the cloned domain so its disks are found by the orphan scan and journal
+        String cloneName = getSource().getName() + "-" + UUID.randomUUID();
+        logger.info("Creating clone '{}' from domain '{}'", cloneName, getSource().getName());
+        journalId = ProvisioningJournal.recordCreated(JOURNAL_TYPE, libvirtURL, getSource().getName(), cloneName);
+        CloneOptions options = cloneOptions()
+            .withTransientDomain(transientDomain)
+            .withDisposableProfile(disposableProfile)
+            .withClusterSize(overlayClusterSize)
+            .withOverlayPools(overlayPools)
+            .withTuning(tuning);
+        addNetworkOptions(options);
+        if (memoryStateDir != null) {
+            DomainWrapper restoredClone = restoreClone(cloneName, options);
+            if (restoredClone != null) {
+                return restoredClone;
+            }
+        }
+        return getSource().cloneWithBackingStore(cloneName, options);
+    }
+
+    private void addNetworkOptions(CloneOptions options) {
+        options.withGuestAgentChannel(ipLookupStrategy instanceof GuestAgentIpLookupStrategy);
+        if (reservation != null) {
+            options.withMac(networkDeviceId != null ? networkDeviceId : dhcpReservations.getNetwork(), reservation.getMac());
+        }
+    }
+
+    private DomainWrapper getSource() {
+        return source != null ? source : libvirtBaseDomain;
+    }
+
+    /**
+     * Find the deepest cached layer matching the provisioning steps and create the missing layers on top of it.
+     *
+     * @return the domain to clone.
+     */
+    private DomainWrapper provisionedSource() {
+        if (provisioningSteps.isEmpty()) {
+            return libvirtBaseDomain;
+        }
+        LayerCache cache = new LayerCache(libvirtBaseDomain, provisionMaxDepth, layerLockDir());
+        List<String> keys = Lists.newArrayList();
+        String key = cache.getBaseKey();
+        for (ProvisioningStep step : provisioningSteps) {
+            key = LayerCache.layerKey(key, step.command, step.expirationTag());
+            keys.add(key);
+        }
+
+        synchronized (LayerCache.class) {
+            FileLock lock = cache.lock();
+            try {
+                return provisionedSource(cache, keys);
+            } finally {
+                LayerCache.unlock(lock);
+            }
+        }
+    }
+
+    private DomainWrapper provisionedSource(LayerCache cache, List<String> keys) {
+        DomainWrapper layer = libvirtBaseDomain;
+        int first = 0;
+        for (int i = keys.size() - 1; i >= 0; i--) {
+            DomainWrapper cached = cache.findLayer(keys.get(i));
+            if (cached != null) {
+                logger.info("Using cached layer '{}' for provisioning step '{}'", cached.getName(), provisioningSteps.get(i).name);
+                layer = cached;
+                first = i + 1;
+                break;
+            }
+        }
+        for (int i = first; i < keys.size(); i++) {
+            layer = createLayer(cache, layer, provisioningSteps.get(i), keys.get(i));
+        }
+        return layer;
+    }
+
+    private DomainWrapper createLayer(LayerCache cache, DomainWrapper parent, ProvisioningStep step, String key) {
+        logger.info("Running provisioning step '{}' on a clone of '{}'", step.name, parent.getName());
+        CloneOptions options = cloneOptions();
+        addNetworkOptions(options);
+        // reclaimed when this JVM dies before the layer is finished
+        String layerJournalId = ProvisioningJournal.recordCreated(LAYER_JOURNAL_TYPE, libvirtURL, libvirtBaseDomain.getName(),
+            parent.getName(), cache.layerName(key));
+        DomainWrapper provisioned;
+        try {
+            provisioned = parent.cloneWithBackingStore(cache.layerName(key), options);
+        } catch (RuntimeException e) {
+            ProvisioningJournal.recordRemoved(layerJournalId);
+            throw e;
+        }
+        try {
+            String ip = waitUntilRunningAndGetIP(provisioned);
+            bootDelay();
+            String command = MessageFormat.format(step.command, ip);
+            logger.info("Executing provisioning command: {}", command);
+            CommandProcessor.atCurrentDir().run(Command.fromString(command));
+            DomainWrapper layer = cache.freeze(provisioned, parent);
+            ProvisioningJournal.recordRemoved(layerJournalId);
+            return layer;
+        } catch (RuntimeException e) {
+            provisioned.destroyWithDisks();
+            ProvisioningJournal.recordRemoved(layerJournalId);
+            throw e;
+        }
+    }
+
+    /** @return the clone restored from the memory state template, or {@code null} when it has to boot instead. */
+    private DomainWrapper restoreClone(String cloneName, CloneOptions options) {
+        try {
+            MemoryStateTemplate memoryStateTemplate = new MemoryStateTemplate(libvirt, getSource(), virsh(), memoryStateDir);
+            DomainWrapper restoredClone;
+            synchronized (MemoryStateTemplate.class) {
+                FileLock lock = memoryStateTemplate.lock(memoryStateLockDir());
+                try {
+                    if (!memoryStateTemplate.exists()) {
+                        memoryStateTemplate.create(memoryStateBootSeconds, cloneOptions()
+                            .withGuestAgentChannel(options.isGuestAgentChannel())
+                            .withDisposableProfile(disposableProfile)
+                            .withTuning(tuning));
+                    } else if (memoryStateTemplate.isInUse()) {
+                        logger.info("A clone restored from '{}' is running, booting clone '{}' instead", memoryStateTemplate.getName(), cloneName);
+                        return null;
+                    }
+                    restoredClone = memoryStateTemplate.restore(cloneName, options);
+                } finally {
+                    MemoryStateTemplate.unlock(lock);
+                }
+            }
+            RestoreHook.runAll(restoreHooks, virsh(), restoredClone);
+            restored = true;
+            return restoredClone;
+        } catch (RuntimeException e) {
+            // e.g. another clone of the template is running on the libvirt host
+            logger.warn("Unable to restore clone '" + cloneName + "' from memory state, booting it instead", e);
+            return null;
+        }
+    }
+
+    private VirshDriver virsh() {
+        return new VirshDriver(libvirtURL, CommandProcessor.atCurrentDir());
     }
 
     protected String waitUntilRunningAndGetIP() {
+        return waitUntilRunningAndGetIP(clone);
+    }
+
+    private String waitUntilRunningAndGetIP(DomainWrapper clone) {
         String name = clone.getName();
         int seconds = startTimeout;
         DomainState state = DomainState.VIR_DOMAIN_NOSTATE;
@@ -139,6 +700,9 @@ class LibvirtHost implements CloudHost {
         } else {
             logger.info("Clone '{}' running determining IP", name, startTimeout, state);
         }
+        if (reservation != null) {
+            return reservation.getIp();
+        }
         if (networkDeviceId != null) {
             String mac = clone.getMac(networkDeviceId);
             return ipLookupStrategy.lookup(mac);
@@ -146,7 +710,174 @@ class LibvirtHost implements CloudHost {
         throw new RuntimeException("Unable to determine IP address for host " + name);
     }
 
+    /** Remove a clone left behind by a JVM that died, whether or not its domain still exists. */
+    static void reclaim(String libvirtURL, String baseDomain, String cloneName) {
+        try {
+            Connect connect = new Connect(libvirtURL, false);
+            try {
+                Domain domain = null;
+                try {
+                    domain = connect.domainLookupByName(cloneName);
+                } catch (LibvirtException e) {
+                    logger.debug("Clone '{}' has no domain anymore", cloneName);
+                }
+                if (domain != null) {
+                    DomainWrapper.newWrapper(domain).destroyWithDisks();
+                } else {
+                    DomainWrapper.newWrapper(connect.domainLookupByName(baseDomain)).deleteCloneDisks(cloneName);
+                }
+            } finally {
+                connect.close();
+            }
+        } catch (LibvirtException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** Remove an unfinished layer of a dead JVM, under the lock of the layers of its base domain. */
+    static void reclaimLayer(String libvirtURL, String baseDomain, String parentDomain, String layerName) {
+        try {
+            Connect connect = new Connect(libvirtURL, false);
+            try {
+                LayerCache cache = new LayerCache(DomainWrapper.newWrapper(connect.domainLookupByName(baseDomain)), 0, layerLockDir());
+                synchronized (LayerCache.class) {
+                    FileLock lock = cache.lock();
+                    try {
+                        cache.reclaim(layerName, DomainWrapper.newWrapper(connect.domainLookupByName(parentDomain)));
+                    } finally {
+                        LayerCache.unlock(lock);
+                    }
+                }
+            } finally {
+                connect.close();
+            }
+        } catch (LibvirtException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static File layerLockDir() {
+        File defaultLockDir = new File(new File(System.getProperty("user.home"), OVERCAST_USER_DIR), "layers");
+        return new File(getOvercastProperty(LAYER_LOCK_DIR_PROPERTY, defaultLockDir.getPath()));
+    }
+
+    private static File memoryStateLockDir() {
+        File defaultLockDir = new File(new File(System.getProperty("user.home"), OVERCAST_USER_DIR), "memstate");
+        return new File(getOvercastProperty(MEMORY_STATE_LOCK_DIR_PROPERTY, defaultLockDir.getPath()));
+    }
+
+    private static File keepAliveLockFile() {
+        File defaultLockFile = new File(new File(System.getProperty("user.home"), OVERCAST_USER_DIR), "keep-alive.lock");
+        return new File(getOvercastProperty(KEEP_ALIVE_LOCK_FILE_PROPERTY, defaultLockFile.getPath()));
+    }
+
+    private static File placementSlotDir() {
+        File defaultSlotDir = new File(new File(System.getProperty("user.home"), OVERCAST_USER_DIR), "placement");
+        return new File(getOvercastProperty(PLACEMENT_SLOT_DIR_PROPERTY, defaultSlotDir.getPath()));
+    }
+
+    /** Transient clones of a crashed run leave only their disks behind, remove those once per cloned domain. */
+    private void deleteOrphanedCloneDisks() {
+        if (!scannedBaseDomains.add(libvirtURL + "/" + getSource().getName())) {
+            return;
+        }
+        List<String> deleted = getSource().deleteOrphanedCloneDisks(ORPHANED_DISK_MIN_AGE_SECONDS);
+        if (!deleted.isEmpty()) {
+            logger.info("Removed {} orphaned clone disks of domain '{}'", deleted.size(), getSource().getName());
+        }
+    }
+
+    /**
+     * Read the images of the cloned domain into the page cache once per cloned domain. Hosts that are set up in
+     * parallel wait for it, so they do not all read the images from disk at once.
+     */
+    private void prewarmImages() {
+        String key = libvirtURL + "/" + getSource().getName();
+        prewarmedBaseDomains.putIfAbsent(key, new AtomicBoolean());
+        AtomicBoolean prewarmed = prewarmedBaseDomains.get(key);
+        // only hosts of the same cloned domain wait for each other
+        synchronized (prewarmed) {
+            if (prewarmed.getAndSet(true)) {
+                return;
+            }
+            try {
+                List<PageCachePrewarmer.Residency> warmed = Lists.newArrayList(PageCachePrewarmer.prewarm(getSource()));
+                if (memoryStateDir != null) {
+                    PageCachePrewarmer.Residency image = PageCachePrewarmer.prewarm(
+                        new MemoryStateTemplate(libvirt, getSource(), virsh(), memoryStateDir).getImagePath());
+                    if (image != null) {
+                        warmed.add(image);
+                    }
+                }
+                long size = 0, before = 0, after = 0;
+                for (PageCachePrewarmer.Residency r : warmed) {
+                    size += r.getSize();
+                    before += r.getResidentBefore();
+                    after += r.getResidentAfter();
+                }
+                logger.info("Prewarmed {} images of domain '{}': {} of {} MiB were resident before, {} after",
+                    warmed.size(), getSource().getName(), before >> 20, size >> 20, after >> 20);
+            } catch (RuntimeException e) {
+                logger.warn("Unable to prewarm images of domain '{}', continuing without: {}", getSource().getName(), e.getMessage());
+            }
+        }
+    }
+
+    /** Count the clone against a libvirt host, waiting for one to drop below the maximum number of clones. */
+    private void acquirePlacement() {
+        if (placement == null || placed) {
+            return;
+        }
+        if (pinned) {
+            placement.acquire(libvirtURL);
+        } else {
+            String url = placement.acquire();
+            if (!url.equals(libvirtURL)) {
+                try {
+                    connect(url);
+                } catch (RuntimeException e) {
+                    placement.release(url);
+                    throw e;
+                }
+            }
+            // set up again after a teardown, stays on the same libvirt host
+            pinned = true;
+        }
+        placed = true;
+    }
+
+    private void releasePlacement() {
+        if (placed) {
+            placement.release(libvirtURL);
+            placed = false;
+        }
+    }
+
+    /** Destroy a clone whose setup failed, returns whether it is gone. */
+    private boolean destroyFailedClone() {
+        try {
+            clone.destroyWithDisks();
+            return true;
+        } catch (RuntimeException e) {
+            logger.warn("Unable to destroy clone '" + clone.getName() + "' after its setup failed", e);
+            return false;
+        } finally {
+            clone = null;
+        }
+    }
+
+    private void releaseReservation() {
+        if (reservation != null) {
+            dhcpReservations.release(reservation);
+            reservation = null;
+        }
+    }
+
     private void bootDelay() {
+        if (restored) {
+            logger.info("Clone was restored from memory state, not waiting for it to boot");
+            return;
+        }
         logger.info("Waiting {} seconds for VM to boot up", bootDelay);
         sleep(bootDelay);
     }
@@ -158,4 +889,25 @@ class LibvirtHost implements CloudHost {
             Thread.currentThread().interrupt();
         }
     }
+
+    private static class ProvisioningStep {
+        private final String name;
+        private final String command;
+        private final String expirationCommand;
+
+        ProvisioningStep(String name, String command, String expirationCommand) {
+            this.name = name;
+            this.command = command;
+            this.expirationCommand = expirationCommand;
+        }
+
+        /** Like the expiration command of a cached vagrant host, a different output invalidates the layer. */
+        String expirationTag() {
+            if (expirationCommand == null) {
+                return "";
+            }
+            logger.info("Executing expiration command: {}", expirationCommand);
+            return CommandProcessor.atCurrentDir().run(Command.fromString(expirationCommand)).getOutput().trim();
+        }
+    }
 }
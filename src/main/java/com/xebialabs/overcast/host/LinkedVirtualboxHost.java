@@ -0,0 +1,117 @@
+/* License added by: GRADLE-LICENSE-PLUGIN
+ *
+ * Copyright 2008-2012 XebiaLabs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xebialabs.overcast.host;
+
+import java.util.UUID;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.xebialabs.overcast.command.CommandProcessor;
+import com.xebialabs.overcast.support.virtualbox.VirtualboxDriver;
+
+/**
+ * A linked clone of a VirtualBox VM created from one of its snapshots at setup and deleted at teardown. The clone gets
+ * new MACs, so its address is read from the guest additions once it has booted.
+ */
+class LinkedVirtualboxHost implements CloudHost {
+    private static final Logger logger = LoggerFactory.getLogger(LinkedVirtualboxHost.class);
+
+    static final int IP_TIMEOUT_SECONDS = 300;
+
+    public static final String JOURNAL_TYPE = "virtualbox-linked";
+
+    private final String parentUuid;
+    private final String snapshot;
+
+    private String uuid;
+    private String ip;
+    private String journalId;
+
+    LinkedVirtualboxHost(String parentUuid, String snapshot) {
+        this.parentUuid = parentUuid;
+        this.snapshot = snapshot;
+    }
+
+    @Override
+    public void setup() {
+        VirtualboxDriver driver = new VirtualboxDriver(CommandProcessor.atCurrentDir());
+        String name = parentUuid + "-" + UUID.randomUUID();
+        logger.info("Creating linked clone {} of snapshot {} of {}", name, snapshot, parentUuid);
+        uuid = driver.cloneLinked(parentUuid, snapshot, name);
+        journalId = ProvisioningJournal.recordCreated(JOURNAL_TYPE, uuid);
+        try {
+            driver.start(uuid);
+            ip = waitForIp(driver);
+        } catch (RuntimeException e) {
+            teardown();
+            throw e;
+        }
+    }
+
+    private String waitForIp(VirtualboxDriver driver) {
+        for (int seconds = IP_TIMEOUT_SECONDS; seconds >= 0; seconds--) {
+            String address = driver.getGuestIp(uuid);
+            if (address != null) {
+                return address;
+            }
+            logger.debug("Waiting {}s for the guest additions of {} to report its address", seconds, uuid);
+            sleep(1);
+        }
+        throw new IllegalStateException("Linked clone " + uuid + " did not report its address within " + IP_TIMEOUT_SECONDS + "s");
+    }
+
+    @Override
+    public void teardown() {
+        if (uuid == null) {
+            return;
+        }
+        reclaim(uuid);
+        ProvisioningJournal.recordRemoved(journalId);
+        journalId = null;
+        uuid = null;
+        ip = null;
+    }
+
+    /** Power off and delete a linked clone, also one left behind by a JVM that died. */
+    static void reclaim(String uuid) {
+        VirtualboxHost.reclaim(uuid);
+        VirtualboxDriver driver = new VirtualboxDriver(CommandProcessor.atCurrentDir());
+        if (driver.vmExists(uuid)) {
+            driver.deleteVm(uuid);
+        }
+    }
+
+    @Override
+    public String getHostName() {
+        return ip;
+    }
+
+    @Override
+    public int getPort(int port) {
+        return port;
+    }
+
+    private static void sleep(final int seconds) {
+        try {
+            Thread.sleep(seconds * 1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/* License added by: GRADLE-LICENSE-PLUGIN
+ *
+ * Copyright 2008-2012 XebiaLabs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xebialabs.overcast.host;
+
+import java.util.List;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Sets;
+
+/**
+ * Reclaims resources recorded in the {@link ProvisioningJournal} by JVMs that died before tearing them down.
+ */
+public class OrphanCollector {
+    private static final Logger logger = LoggerFactory.getLogger(OrphanCollector.class);
+
+    private static boolean collected;
+
+    /** Collect orphans once per JVM, before the first host is created. */
+    public static synchronized void collectOnce() {
+        if (collected) {
+            return;
+        }
+        collected = true;
+        ProvisioningJournal journal = ProvisioningJournal.getInstance();
+        if (journal != null) {
+            try {
+                new OrphanCollector().collect(journal);
+            } catch (RuntimeException e) {
+                logger.warn("Unable to collect orphaned hosts", e);
+            }
+        }
+    }
+
+    /** @return the number of reclaimed resources. */
+    public int collect(ProvisioningJournal journal) {
+        List<ProvisioningJournal.Entry> entries = journal.readEntries();
+        Set<String> deadOwners = Sets.newHashSet();
+        int reclaimed = 0;
+        for (ProvisioningJournal.Entry entry : entries) {
+            if (!deadOwners.contains(entry.getOwner()) && journal.isOwnerAlive(entry.getOwner())) {
+                continue;
+            }
+            deadOwners.add(entry.getOwner());
+            try {
+                logger.info("Reclaiming orphaned {}", entry);
+                reclaim(entry);
+                journal.release(entry.getId());
+                reclaimed++;
+            } catch (RuntimeException e) {
+                // stays in the journal, the next run tries again
+                logger.warn("Unable to reclaim orphaned " + entry, e);
+            }
+        }
+        for (String owner : deadOwners) {
+            journal.forgetOwner(owner);
+        }
+        if (!entries.isEmpty()) {
+            journal.compact();
+        }
+        return reclaimed;
+    }
+
+    protected void reclaim(ProvisioningJournal.Entry entry) {
+        List<String> args = entry.getArgs();
+        if (LibvirtHost.JOURNAL_TYPE.equals(entry.getType())) {
+            LibvirtHost.reclaim(args.get(0), args.get(1), args.get(2));
+        } else if (LibvirtHost.LAYER_JOURNAL_TYPE.equals(entry.getType())) {
+            LibvirtHost.reclaimLayer(args.get(0), args.get(1), args.get(2), args.get(3));
+        } else if (Ec2CloudHost.JOURNAL_TYPE.equals(entry.getType())) {
+            Ec2CloudHost.reclaim(args.get(0), args.get(1));
+        } else if (Ec2CloudHost.IMAGE_JOURNAL_TYPE.equals(entry.getType())) {
+            Ec2CloudHost.reclaimImage(args.get(0), args.get(1));
+        } else if (VirtualboxHost.JOURNAL_TYPE.equals(entry.getType())) {
+            VirtualboxHost.reclaim(args.get(0));
+        } else if (LinkedVirtualboxHost.JOURNAL_TYPE.equals(entry.getType())) {
+            LinkedVirtualboxHost.reclaim(args.get(0));
+        } else {
+            throw new IllegalStateException("Unknown journal entry type " + entry.getType());
+        }
+    }
+}
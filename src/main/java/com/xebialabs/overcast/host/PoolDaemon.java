@@ -0,0 +1,407 @@
+/* License added by: GRADLE-LICENSE-PLUGIN
+ *
+ * Copyright 2008-2012 XebiaLabs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xebialabs.overcast.host;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Function;
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import static com.xebialabs.overcast.OvercastProperties.getOvercastProperty;
+
+/**
+ * Long running process that keeps pools of set up hosts for all test JVMs on this machine, so warm hosts outlive a
+ * single JVM or build. Start it with {@code java -cp ... com.xebialabs.overcast.host.PoolDaemon}; it reads the same
+ * overcast properties as the tests and pools the labels listed in {@code daemon.labels}.
+ * <p>
+ * Hosts are leased over a connection to {@code daemon.port} on the loopback interface, one command per line. A
+ * connection starts with {@code HELLO <challenge>}, answered with {@code OK <challenge> <answer>}, and
+ * {@code AUTH <answer>}, so both sides prove they know the {@link DaemonToken} the daemon wrote at start. Then
+ * {@code HAS <label>} answers {@code YES} or {@code NO}, {@code LEASE <label>} waits up to {@code daemon.leaseTimeout}
+ * seconds for a ready host and answers {@code OK <hostname>} or {@code ERROR} when none became ready, {@code PORT <port>} answers {@code OK <port>} as mapped by the leased host and
+ * {@code RELEASE} ends the lease. A lease also ends when its connection closes, so a killed JVM gives its host back.
+ * A host that was leased is torn down, or reset and pooled again, and the pool is refilled in the background.
+ */
+public class PoolDaemon {
+    public static final String DAEMON_ENABLED_PROPERTY = "daemon.enabled";
+    public static final String DAEMON_PORT_PROPERTY = "daemon.port";
+    public static final String DAEMON_PORT_DEFAULT = "7381";
+    public static final String DAEMON_LABELS_PROPERTY = "daemon.labels";
+    public static final String DAEMON_POOL_SIZE_PROPERTY_SUFFIX = ".daemonPoolSize";
+    public static final String DAEMON_POOL_SIZE_DEFAULT = "1";
+    public static final String DAEMON_RESET_PROPERTY_SUFFIX = ".daemonReset";
+    public static final String DAEMON_LEASE_TIMEOUT_PROPERTY = "daemon.leaseTimeout";
+    public static final String DAEMON_LEASE_TIMEOUT_DEFAULT = "600";
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final Logger logger = LoggerFactory.getLogger(PoolDaemon.class);
+    private static final int RETRY_DELAY_SECONDS = 30;
+
+    private final ServerSocket serverSocket;
+    private final DaemonToken token;
+    private final int leaseTimeoutSeconds;
+    private final Function<String, CloudHost> factory;
+    private final Map<String, Pool> pools = Maps.newHashMap();
+    private final Set<CloudHost> leased = Sets.newHashSet();
+
+    private final ScheduledExecutorService refiller = Executors.newScheduledThreadPool(4,
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("overcast-daemon-refill-%d").build());
+    private final ExecutorService connections = Executors.newCachedThreadPool(
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("overcast-daemon-connection-%d").build());
+
+    private volatile boolean closed;
+
+    /**
+     * @param port to listen on, 0 for any free port.
+     * @param token connections have to prove they know.
+     * @param leaseTimeoutSeconds how long a lease waits for a ready host.
+     * @param factory creates the hosts of a label, not yet set up.
+     */
+    PoolDaemon(int port, DaemonToken token, int leaseTimeoutSeconds, Function<String, CloudHost> factory) throws IOException {
+        this.token = token;
+        this.leaseTimeoutSeconds = leaseTimeoutSeconds;
+        this.factory = factory;
+        serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(InetAddress.getByName(null), port));
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = Integer.valueOf(getOvercastProperty(DAEMON_PORT_PROPERTY, DAEMON_PORT_DEFAULT));
+        int leaseTimeout = Integer.valueOf(getOvercastProperty(DAEMON_LEASE_TIMEOUT_PROPERTY, DAEMON_LEASE_TIMEOUT_DEFAULT));
+        final PoolDaemon daemon = new PoolDaemon(port, DaemonToken.create(DaemonToken.getTokenFile()), leaseTimeout, new Function<String, CloudHost>() {
+            @Override
+            public CloudHost apply(String label) {
+                // every lease gets a host of its own, also of labels the test JVMs share among themselves
+                return CloudHostFactory.getUnsharedCloudHost(label);
+            }
+        });
+        OrphanCollector.collectOnce();
+        for (String label : Splitter.on(',').trimResults().omitEmptyStrings().split(getOvercastProperty(DAEMON_LABELS_PROPERTY, ""))) {
+            int size = Integer.valueOf(getOvercastProperty(label + DAEMON_POOL_SIZE_PROPERTY_SUFFIX, DAEMON_POOL_SIZE_DEFAULT));
+            boolean reset = Boolean.valueOf(getOvercastProperty(label + DAEMON_RESET_PROPERTY_SUFFIX, "false"));
+            daemon.addPool(label, size, reset);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread("overcast-daemon-shutdown") {
+            @Override
+            public void run() {
+                daemon.close();
+            }
+        });
+        logger.info("Overcast daemon listening on port {}", daemon.getPort());
+        daemon.serve();
+    }
+
+    /** Pool the hosts of a label. Pools are added before serving. */
+    void addPool(String label, int size, boolean reset) {
+        Pool pool = new Pool(label, size, reset);
+        pools.put(label, pool);
+        logger.info("Pooling {} host(s) of {}", size, label);
+        pool.refill();
+    }
+
+    int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /** Serve in the background. */
+    void start() {
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                serve();
+            }
+        }, "overcast-daemon");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /** Accept connections until closed. */
+    void serve() {
+        while (!closed) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                if (!closed) {
+                    logger.warn("Unable to accept connection", e);
+                }
+                continue;
+            }
+            connections.execute(new Runnable() {
+                @Override
+                public void run() {
+                    handle(socket);
+                }
+            });
+        }
+    }
+
+    /** Stop serving and tear down all hosts, also those that are leased. */
+    void close() {
+        closed = true;
+        closeQuietly(serverSocket);
+        connections.shutdownNow();
+        refiller.shutdownNow();
+        List<CloudHost> hosts = Lists.newArrayList();
+        for (Pool pool : pools.values()) {
+            pool.ready.drainTo(hosts);
+        }
+        synchronized (leased) {
+            hosts.addAll(leased);
+            leased.clear();
+        }
+        for (CloudHost host : hosts) {
+            tearDown(host);
+        }
+    }
+
+    private void handle(Socket socket) {
+        Pool pool = null;
+        CloudHost host = null;
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), UTF8));
+            Writer out = new OutputStreamWriter(socket.getOutputStream(), UTF8);
+            if (!authenticate(in, out)) {
+                return;
+            }
+            String line;
+            while ((line = in.readLine()) != null) {
+                List<String> command = ImmutableList.copyOf(Splitter.on(' ').omitEmptyStrings().split(line));
+                String verb = command.isEmpty() ? "" : command.get(0);
+                if ("HAS".equals(verb) && command.size() == 2) {
+                    reply(out, pools.containsKey(command.get(1)) ? "YES" : "NO");
+                } else if ("LEASE".equals(verb) && command.size() == 2 && host == null) {
+                    pool = pools.get(command.get(1));
+                    if (pool == null) {
+                        reply(out, "ERROR no pool for " + command.get(1));
+                        continue;
+                    }
+                    host = pool.take(leaseTimeoutSeconds);
+                    if (host == null) {
+                        reply(out, "ERROR no host of " + pool.label + " became ready within " + leaseTimeoutSeconds + " seconds");
+                        continue;
+                    }
+                    synchronized (leased) {
+                        leased.add(host);
+                    }
+                    logger.info("Leased host {} of {}", host.getHostName(), pool.label);
+                    reply(out, "OK " + host.getHostName());
+                } else if ("PORT".equals(verb) && command.size() == 2 && host != null) {
+                    reply(out, "OK " + host.getPort(Integer.valueOf(command.get(1))));
+                } else if ("RELEASE".equals(verb)) {
+                    reply(out, "OK");
+                    break;
+                } else {
+                    reply(out, "ERROR unexpected command " + line);
+                }
+            }
+        } catch (IOException e) {
+            logger.debug("Connection closed", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            logger.warn("Unable to serve connection", e);
+        } finally {
+            if (host != null) {
+                boolean wasLeased;
+                synchronized (leased) {
+                    wasLeased = leased.remove(host);
+                }
+                if (wasLeased) {
+                    logger.info("Released host {} of {}", host.getHostName(), pool.label);
+                    pool.giveBack(host);
+                }
+            }
+            closeQuietly(socket);
+        }
+    }
+
+    /** Answer the challenge of the client and check its answer to ours. */
+    private boolean authenticate(BufferedReader in, Writer out) throws IOException {
+        List<String> hello = ImmutableList.copyOf(Splitter.on(' ').omitEmptyStrings().split(Strings.nullToEmpty(in.readLine())));
+        if (hello.size() != 2 || !"HELLO".equals(hello.get(0))) {
+            logger.warn("Refused connection that did not start with HELLO");
+            reply(out, "ERROR not authenticated");
+            return false;
+        }
+        String challenge = DaemonToken.challenge();
+        reply(out, "OK " + challenge + " " + token.answer(DaemonToken.DAEMON, hello.get(1)));
+        List<String> auth = ImmutableList.copyOf(Splitter.on(' ').omitEmptyStrings().split(Strings.nullToEmpty(in.readLine())));
+        if (auth.size() != 2 || !"AUTH".equals(auth.get(0)) || !token.verify(DaemonToken.CLIENT, challenge, auth.get(1))) {
+            logger.warn("Refused connection that does not know the daemon token");
+            reply(out, "ERROR not authenticated");
+            return false;
+        }
+        reply(out, "OK");
+        return true;
+    }
+
+    private static void reply(Writer out, String reply) throws IOException {
+        out.write(reply + "\n");
+        out.flush();
+    }
+
+    private static void tearDown(CloudHost host) {
+        try {
+            host.teardown();
+        } catch (RuntimeException e) {
+            logger.warn("Unable to tear down host " + host.getHostName(), e);
+        }
+    }
+
+    private static void closeQuietly(ServerSocket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+            // nothing left to do
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+            // nothing left to do
+        }
+    }
+
+    /**
+     * The ready hosts of a label. Without reset, {@code size} hosts are kept ready besides those that are leased.
+     * With reset, leased hosts come back, so {@code size} is the number of hosts of the label in total.
+     */
+    private class Pool {
+        private final String label;
+        private final int size;
+        private final boolean reset;
+        private final BlockingQueue<CloudHost> ready = new LinkedBlockingQueue<CloudHost>();
+
+        // guarded by this
+        private int starting;
+        private int out;
+
+        Pool(String label, int size, boolean reset) {
+            this.label = label;
+            this.size = size;
+            this.reset = reset;
+        }
+
+        synchronized void refill() {
+            while (!closed && ready.size() + starting + (reset ? out : 0) < size) {
+                starting++;
+                refiller.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        create();
+                    }
+                });
+            }
+        }
+
+        private void create() {
+            try {
+                CloudHost host = factory.apply(label);
+                host.setup();
+                if (closed) {
+                    tearDown(host);
+                    return;
+                }
+                ready.add(host);
+                logger.info("Host {} of {} is ready", host.getHostName(), label);
+            } catch (RuntimeException e) {
+                logger.error("Unable to set up a host of " + label + ", retrying in " + RETRY_DELAY_SECONDS + " seconds", e);
+                refiller.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        refill();
+                    }
+                }, RETRY_DELAY_SECONDS, TimeUnit.SECONDS);
+            } finally {
+                synchronized (this) {
+                    starting--;
+                }
+            }
+        }
+
+        /** @return a ready host, or {@code null} when none became ready within the timeout. */
+        CloudHost take(int timeoutSeconds) throws InterruptedException {
+            CloudHost host = ready.poll(timeoutSeconds, TimeUnit.SECONDS);
+            if (host == null) {
+                return null;
+            }
+            synchronized (this) {
+                out++;
+            }
+            refill();
+            return host;
+        }
+
+        void giveBack(final CloudHost host) {
+            refiller.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (reset && !closed && CloudHostCapabilities.canReset(host)) {
+                            try {
+                                CloudHostCapabilities.reset(host);
+                                ready.add(host);
+                                return;
+                            } catch (RuntimeException e) {
+                                logger.warn("Unable to reset host " + host.getHostName() + " of " + label + ", tearing it down", e);
+                            }
+                        }
+                        tearDown(host);
+                    } finally {
+                        synchronized (Pool.this) {
+                            out--;
+                        }
+                        refill();
+                    }
+                }
+            });
+        }
+    }
+}
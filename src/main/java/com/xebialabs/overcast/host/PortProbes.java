@@ -0,0 +1,139 @@
+/* License added by: GRADLE-LICENSE-PLUGIN
+ *
+ * Copyright 2008-2012 XebiaLabs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xebialabs.overcast.host;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Supplier;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import static com.xebialabs.overcast.OvercastProperties.getOvercastProperty;
+
+/**
+ * Waits for ports of a {@link CloudHost} to accept connections, so a test can start using one port while the services
+ * behind others are still starting. Ports are probed in the background every second until they are ready, the future
+ * is cancelled or the global property {@code portProbe.timeout} (seconds, default 600) has passed.
+ */
+public class PortProbes {
+    public static final String PORT_PROBE_TIMEOUT_PROPERTY = "portProbe.timeout";
+    public static final String PORT_PROBE_TIMEOUT_DEFAULT = "600";
+
+    private static final Logger logger = LoggerFactory.getLogger(PortProbes.class);
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 1000;
+    private static final long INTERVAL_MILLIS = 1000;
+
+    private static final ScheduledExecutorService prober = Executors.newScheduledThreadPool(4,
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("overcast-port-probe-%d").build());
+
+    private PortProbes() {
+    }
+
+    /**
+     * @param port the port as passed to {@link CloudHost#getPort(int)}.
+     * @return a future that completes when the port of the host accepts connections.
+     */
+    public static ListenableFuture<Void> whenPortReady(final CloudHost host, final int port) {
+        if (host instanceof PortReadyCloudHost) {
+            return ((PortReadyCloudHost) host).whenPortReady(port);
+        }
+        return probe("port " + port + " of " + host.getHostName(), new Supplier<Boolean>() {
+            @Override
+            public Boolean get() {
+                return accepts(host.getHostName(), host.getPort(port));
+            }
+        });
+    }
+
+    /** Wait at most timeoutSeconds for the port of the host to accept connections. */
+    public static void waitForPort(CloudHost host, int port, int timeoutSeconds) {
+        ListenableFuture<Void> ready = whenPortReady(host, port);
+        try {
+            ready.get(timeoutSeconds, TimeUnit.SECONDS);
+        } catch (TimeoutException e) {
+            ready.cancel(false);
+            throw new IllegalStateException("Port " + port + " of " + host.getHostName() + " not ready within " + timeoutSeconds + "s", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Port " + port + " of " + host.getHostName() + " not ready", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            ready.cancel(false);
+            throw new IllegalStateException("Interrupted while waiting for port " + port + " of " + host.getHostName(), e);
+        }
+    }
+
+    /** @return a future that completes once check returns {@code true}. */
+    static ListenableFuture<Void> probe(final String description, final Supplier<Boolean> check) {
+        final SettableFuture<Void> ready = SettableFuture.create();
+        final long deadline = System.currentTimeMillis() + Integer.valueOf(getOvercastProperty(PORT_PROBE_TIMEOUT_PROPERTY,
+            PORT_PROBE_TIMEOUT_DEFAULT)) * 1000L;
+        prober.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (ready.isDone()) {
+                    return;
+                }
+                try {
+                    if (check.get()) {
+                        logger.info("{} is ready", description);
+                        ready.set(null);
+                        return;
+                    }
+                } catch (RuntimeException e) {
+                    ready.setException(e);
+                    return;
+                }
+                if (System.currentTimeMillis() > deadline) {
+                    ready.setException(new TimeoutException(description + " did not become ready"));
+                    return;
+                }
+                logger.debug("{} is not ready yet", description);
+                prober.schedule(this, INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        });
+        return ready;
+    }
+
+    static boolean accepts(String host, int port) {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                //
+            }
+        }
+    }
+}
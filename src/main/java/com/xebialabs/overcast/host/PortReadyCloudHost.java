@@ -0,0 +1,33 @@
+/* License added by: GRADLE-LICENSE-PLUGIN
+ *
+ * Copyright 2008-2012 XebiaLabs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xebialabs.overcast.host;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * A {@link CloudHost} that knows better than a plain connection attempt when one of its ports is ready, e.g. because
+ * connections are forwarded. Use {@link PortProbes#whenPortReady(CloudHost, int)} to wait for a port of any host.
+ */
+public interface PortReadyCloudHost extends CloudHost {
+
+    /**
+     * @param port the port as passed to {@link #getPort(int)}.
+     * @return a future that completes when the port accepts connections.
+     */
+    ListenableFuture<Void> whenPortReady(int port);
+}
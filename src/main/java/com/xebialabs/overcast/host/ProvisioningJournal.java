@@ -0,0 +1,334 @@
+/* License added by: GRADLE-LICENSE-PLUGIN
+ *
+ * Copyright 2008-2012 XebiaLabs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xebialabs.overcast.host;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+
+import static com.xebialabs.overcast.OvercastProperties.getOvercastProperty;
+import static com.xebialabs.overcast.PropertiesLoader.OVERCAST_USER_DIR;
+
+/**
+ * Append-only journal of the VMs and instances created by overcast, shared by all JVMs of the user. Every line is
+ * synced to disk before the call returns so a killed JVM leaves an accurate record behind for the
+ * {@link OrphanCollector}.
+ * <p>
+ * Lines are tab separated: {@code + <id> <owner> <type> <args...>} when a resource is created and {@code - <id>} when
+ * it has been cleaned up. The owner of an entry is alive as long as it holds the lock on its owner file.
+ */
+public class ProvisioningJournal {
+    public static final String JOURNAL_ENABLED_PROPERTY = "journal.enabled";
+    public static final String JOURNAL_FILE_PROPERTY = "journal.file";
+
+    private static final Logger logger = LoggerFactory.getLogger(ProvisioningJournal.class);
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String SEPARATOR = "\t";
+
+    /** FileLocks are held per JVM, threads of this JVM are serialized here. */
+    private static final Object jvmLock = new Object();
+
+    private static ProvisioningJournal instance;
+
+    private final File file;
+    private final File lockFile;
+    private final File ownerDir;
+    private final String owner;
+    private FileLock ownerLock;
+
+    ProvisioningJournal(File file) {
+        this.file = file;
+        this.lockFile = new File(file.getPath() + ".lock");
+        this.ownerDir = new File(file.getPath() + ".owners");
+        this.owner = ManagementFactory.getRuntimeMXBean().getName() + "-" + ManagementFactory.getRuntimeMXBean().getStartTime();
+    }
+
+    /** @return the journal of this user, or {@code null} when journaling is disabled. */
+    public static synchronized ProvisioningJournal getInstance() {
+        if (instance == null && Boolean.valueOf(getOvercastProperty(JOURNAL_ENABLED_PROPERTY, "true"))) {
+            File defaultFile = new File(new File(System.getProperty("user.home"), OVERCAST_USER_DIR), "journal");
+            instance = new ProvisioningJournal(new File(getOvercastProperty(JOURNAL_FILE_PROPERTY, defaultFile.getPath())));
+        }
+        return instance;
+    }
+
+    /** Record a created resource in the journal of this user, if enabled. @return the entry id or {@code null}. */
+    public static String recordCreated(String type, String... args) {
+        ProvisioningJournal journal = getInstance();
+        return journal == null ? null : journal.record(type, args);
+    }
+
+    /** Mark the entry returned by {@link #recordCreated(String, String...)} as cleaned up. */
+    public static void recordRemoved(String id) {
+        ProvisioningJournal journal = getInstance();
+        if (journal != null && id != null) {
+            journal.release(id);
+        }
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    /** Record a created resource. {@code type} and {@code args} tell the {@link OrphanCollector} how to reclaim it. */
+    public String record(String type, String... args) {
+        String id = UUID.randomUUID().toString();
+        List<String> fields = Lists.newArrayList("+", id, owner, type);
+        fields.addAll(Arrays.asList(args));
+        for (String f : fields) {
+            if (f.contains(SEPARATOR) || f.contains("\n")) {
+                throw new IllegalArgumentException("Journal field contains a tab or newline: " + f);
+            }
+        }
+        synchronized (jvmLock) {
+            ensureOwnerLock();
+            append(Joiner.on(SEPARATOR).join(fields));
+        }
+        return id;
+    }
+
+    /** Mark a recorded resource as cleaned up. */
+    public void release(String id) {
+        synchronized (jvmLock) {
+            append("-" + SEPARATOR + id);
+        }
+    }
+
+    /** @return the entries that have not been released, in order of creation. */
+    public List<Entry> readEntries() {
+        synchronized (jvmLock) {
+            FileLock lock = lock();
+            try {
+                return parse(read());
+            } finally {
+                unlock(lock);
+            }
+        }
+    }
+
+    /** Rewrite the journal with only the entries that have not been released. */
+    public void compact() {
+        synchronized (jvmLock) {
+            FileLock lock = lock();
+            try {
+                StringBuilder sb = new StringBuilder();
+                for (Entry e : parse(read())) {
+                    sb.append(e.toLine()).append('\n');
+                }
+                File tmp = new File(file.getPath() + ".tmp");
+                FileOutputStream out = new FileOutputStream(tmp);
+                try {
+                    out.write(sb.toString().getBytes(UTF8));
+                    out.getFD().sync();
+                } finally {
+                    out.close();
+                }
+                if (!tmp.renameTo(file)) {
+                    // renameTo does not replace an existing file on all platforms
+                    Files.copy(tmp, file);
+                    tmp.delete();
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("Unable to compact journal " + file, e);
+            } finally {
+                unlock(lock);
+            }
+        }
+    }
+
+    /**
+     * An owner is alive while it holds the lock on its owner file, the lock is released by the OS when the JVM dies
+     * however it dies.
+     */
+    public boolean isOwnerAlive(String entryOwner) {
+        if (owner.equals(entryOwner)) {
+            return true;
+        }
+        File f = ownerFile(entryOwner);
+        if (!f.exists()) {
+            return false;
+        }
+        try {
+            RandomAccessFile raf = new RandomAccessFile(f, "rw");
+            try {
+                FileLock l = raf.getChannel().tryLock();
+                if (l == null) {
+                    return true;
+                }
+                l.release();
+                return false;
+            } catch (OverlappingFileLockException e) {
+                return true;
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            logger.warn("Unable to check owner " + entryOwner + ", assuming it is alive", e);
+            return true;
+        }
+    }
+
+    /** Remove the owner file of a dead owner. */
+    public void forgetOwner(String entryOwner) {
+        if (!owner.equals(entryOwner)) {
+            ownerFile(entryOwner).delete();
+        }
+    }
+
+    static List<Entry> parse(String content) {
+        Map<String, Entry> entries = Maps.newLinkedHashMap();
+        for (String line : Splitter.on('\n').omitEmptyStrings().split(content)) {
+            List<String> fields = Lists.newArrayList(Splitter.on(SEPARATOR).split(line));
+            if ("+".equals(fields.get(0)) && fields.size() >= 4) {
+                entries.put(fields.get(1), new Entry(fields.get(1), fields.get(2), fields.get(3), fields.subList(4, fields.size())));
+            } else if ("-".equals(fields.get(0)) && fields.size() == 2) {
+                entries.remove(fields.get(1));
+            } else {
+                // a torn write of a killed JVM
+                logger.warn("Ignoring corrupt journal line '{}'", line);
+            }
+        }
+        return ImmutableList.copyOf(entries.values());
+    }
+
+    private void ensureOwnerLock() {
+        if (ownerLock != null) {
+            return;
+        }
+        try {
+            ownerDir.mkdirs();
+            // never closed, the lock lives as long as this JVM
+            ownerLock = new RandomAccessFile(ownerFile(owner), "rw").getChannel().lock();
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to lock owner file for " + owner, e);
+        }
+    }
+
+    private File ownerFile(String o) {
+        return new File(ownerDir, o.replaceAll("[^A-Za-z0-9.@_-]", "_") + ".lock");
+    }
+
+    private void append(String line) {
+        FileLock lock = lock();
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                FileChannel channel = raf.getChannel();
+                channel.position(channel.size());
+                channel.write(ByteBuffer.wrap((line + "\n").getBytes(UTF8)));
+                channel.force(false);
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to write journal " + file, e);
+        } finally {
+            unlock(lock);
+        }
+    }
+
+    private String read() {
+        try {
+            return file.exists() ? Files.toString(file, UTF8) : "";
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to read journal " + file, e);
+        }
+    }
+
+    private FileLock lock() {
+        try {
+            File dir = lockFile.getAbsoluteFile().getParentFile();
+            dir.mkdirs();
+            return new RandomAccessFile(lockFile, "rw").getChannel().lock();
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to lock journal " + file, e);
+        }
+    }
+
+    private static void unlock(FileLock lock) {
+        try {
+            lock.release();
+            lock.channel().close();
+        } catch (IOException e) {
+            logger.warn("Unable to unlock journal", e);
+        }
+    }
+
+    public static class Entry {
+        private final String id;
+        private final String owner;
+        private final String type;
+        private final List<String> args;
+
+        Entry(String id, String owner, String type, List<String> args) {
+            this.id = id;
+            this.owner = owner;
+            this.type = type;
+            this.args = Collections.unmodifiableList(Lists.newArrayList(args));
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getOwner() {
+            return owner;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public List<String> getArgs() {
+            return args;
+        }
+
+        String toLine() {
+            List<String> fields = Lists.newArrayList("+", id, owner, type);
+            fields.addAll(args);
+            return Joiner.on(SEPARATOR).join(fields);
+        }
+
+        @Override
+        public String toString() {
+            return type + " " + args + " (" + owner + ")";
+        }
+    }
+}
@@ -0,0 +1,34 @@
+/* License added by: GRADLE-LICENSE-PLUGIN
+ *
+ * Copyright 2008-2012 XebiaLabs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xebialabs.overcast.host;
+
+/**
+ * A {@link CloudHost} that can be brought back to the state right after {@link #setup()} faster than by tearing it down
+ * and setting it up again. Hosts wrapping another one are reset with {@link CloudHostCapabilities#reset(CloudHost)}.
+ */
+public interface ResettableCloudHost extends CloudHost {
+
+    /**
+     * Discards all changes made to the host since {@link #setup()}. Can only be called after {@link #setup()} has been
+     * invoked, {@link #getHostName()} may return a different name afterwards.
+     *
+     * @throws UnsupportedOperationException when the host turns out not to support it, e.g. an EC2 instance without an
+     *                                       EBS root volume.
+     */
+    void reset();
+}
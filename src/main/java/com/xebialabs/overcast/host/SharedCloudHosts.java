@@ -0,0 +1,314 @@
+/* License added by: GRADLE-LICENSE-PLUGIN
+ *
+ * Copyright 2008-2012 XebiaLabs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xebialabs.overcast.host;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Supplier;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Hosts shared by everything in the JVM that asks for the same label. The first setup sets the host up, setups that
+ * arrive while it runs wait for it and later ones find it ready. The host is torn down when the last user tears it
+ * down and nobody asks for it again within the grace period.
+ */
+class SharedCloudHosts {
+    private static final Logger logger = LoggerFactory.getLogger(SharedCloudHosts.class);
+
+    private static SharedCloudHosts instance;
+
+    private final Map<String, Entry> entries = Maps.newHashMap();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("overcast-shared-teardown-%d").build());
+
+    public static synchronized SharedCloudHosts getInstance() {
+        if (instance == null) {
+            instance = new SharedCloudHosts();
+            Runtime.getRuntime().addShutdownHook(new Thread("overcast-shared-teardown") {
+                @Override
+                public void run() {
+                    instance.tearDownIdle();
+                }
+            });
+        }
+        return instance;
+    }
+
+    /**
+     * Get a handle on the shared host of the label, creating the host with the factory when there is none.
+     *
+     * @param graceSeconds how long an unused host is kept for a next user.
+     */
+    public CloudHost get(String label, Supplier<CloudHost> factory, int graceSeconds) {
+        Entry entry = entry(label, factory, graceSeconds);
+        return new Handle(label, factory, graceSeconds, entry);
+    }
+
+    private Entry entry(String label, Supplier<CloudHost> factory, int graceSeconds) {
+        synchronized (entries) {
+            Entry entry = entries.get(label);
+            if (entry == null) {
+                entry = new Entry(label, factory.get(), graceSeconds);
+                entries.put(label, entry);
+            }
+            return entry;
+        }
+    }
+
+    /** Tear down the hosts that wait for their grace period to end. */
+    void tearDownIdle() {
+        List<Entry> idle = Lists.newArrayList();
+        synchronized (entries) {
+            for (Entry entry : entries.values()) {
+                if (entry.cancelPendingTeardown()) {
+                    idle.add(entry);
+                }
+            }
+        }
+        for (Entry entry : idle) {
+            entry.tearDownIfUnused();
+        }
+    }
+
+    private class Entry {
+        private final String label;
+        private final CloudHost host;
+        private final int graceSeconds;
+
+        // guarded by this
+        private int references;
+        private boolean settingUp;
+        private boolean ready;
+        private boolean tornDown;
+        private ScheduledFuture<?> pendingTeardown;
+        private int setups;
+        private RuntimeException failure;
+
+        Entry(String label, CloudHost host, int graceSeconds) {
+            this.label = label;
+            this.host = host;
+            this.graceSeconds = graceSeconds;
+        }
+
+        /** @return {@code false} when the host was torn down before it could be acquired. */
+        boolean acquire() {
+            synchronized (this) {
+                if (tornDown) {
+                    return false;
+                }
+                references++;
+                cancelPendingTeardown();
+                int joined = settingUp ? setups : -1;
+                try {
+                    while (settingUp) {
+                        wait();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    references--;
+                    throw new IllegalStateException("Interrupted while waiting for setup of shared host " + label, e);
+                }
+                if (!ready && joined == setups && failure != null) {
+                    // the setup this one waited for failed, do not start another one right away
+                    references--;
+                    throw new IllegalStateException("Setup of shared host " + label + " failed", failure);
+                }
+                if (ready) {
+                    logger.debug("Reusing shared host {}, {} users", label, references);
+                    return true;
+                }
+                settingUp = true;
+                setups++;
+                failure = null;
+            }
+            boolean succeeded = false;
+            try {
+                host.setup();
+                succeeded = true;
+            } catch (RuntimeException e) {
+                synchronized (this) {
+                    failure = e;
+                }
+                throw e;
+            } finally {
+                synchronized (this) {
+                    settingUp = false;
+                    ready = succeeded;
+                    if (!succeeded) {
+                        references--;
+                    }
+                    notifyAll();
+                }
+            }
+            return true;
+        }
+
+        void reset() {
+            if (!CloudHostCapabilities.canReset(host)) {
+                throw new UnsupportedOperationException("Shared host " + label + " cannot be reset");
+            }
+            synchronized (this) {
+                // resetting would discard what the other users did to the host
+                if (references != 1 || !ready) {
+                    throw new IllegalStateException("Shared host " + label + " can only be reset by its only user, it has " + references);
+                }
+                CloudHostCapabilities.reset(host);
+            }
+        }
+
+        HostCheckpoint checkpoint() {
+            if (!CloudHostCapabilities.canCheckpoint(host)) {
+                throw new UnsupportedOperationException("Shared host " + label + " cannot be checkpointed");
+            }
+            return CloudHostCapabilities.checkpoint(host);
+        }
+
+        void release() {
+            synchronized (this) {
+                if (--references > 0) {
+                    return;
+                }
+                if (graceSeconds > 0) {
+                    logger.info("Shared host {} is no longer used, tearing it down in {}s unless it is used again", label, graceSeconds);
+                    pendingTeardown = scheduler.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            tearDownIfUnused();
+                        }
+                    }, graceSeconds, TimeUnit.SECONDS);
+                    return;
+                }
+            }
+            tearDownIfUnused();
+        }
+
+        synchronized boolean cancelPendingTeardown() {
+            if (pendingTeardown == null) {
+                return false;
+            }
+            pendingTeardown.cancel(false);
+            pendingTeardown = null;
+            return true;
+        }
+
+        void tearDownIfUnused() {
+            boolean wasReady;
+            synchronized (entries) {
+                synchronized (this) {
+                    if (references > 0 || tornDown) {
+                        return;
+                    }
+                    tornDown = true;
+                    pendingTeardown = null;
+                    wasReady = ready;
+                    entries.remove(label);
+                }
+            }
+            if (wasReady) {
+                logger.info("Tearing down shared host {}", label);
+                host.teardown();
+            }
+        }
+    }
+
+    /** What a user of a shared host gets, each handle counts as one reference while it is set up. */
+    private class Handle implements WrappingCloudHost, PortReadyCloudHost {
+        private final String label;
+        private final Supplier<CloudHost> factory;
+        private final int graceSeconds;
+        private volatile Entry entry;
+        private boolean acquired;
+
+        Handle(String label, Supplier<CloudHost> factory, int graceSeconds, Entry entry) {
+            this.label = label;
+            this.factory = factory;
+            this.graceSeconds = graceSeconds;
+            this.entry = entry;
+        }
+
+        @Override
+        public synchronized void setup() {
+            if (acquired) {
+                return;
+            }
+            // the host may have been torn down since the handle was created, then a new one is created
+            while (!entry.acquire()) {
+                entry = entry(label, factory, graceSeconds);
+            }
+            acquired = true;
+        }
+
+        @Override
+        public synchronized void teardown() {
+            if (acquired) {
+                acquired = false;
+                entry.release();
+            }
+        }
+
+        @Override
+        public boolean canReset() {
+            return CloudHostCapabilities.canReset(entry.host);
+        }
+
+        @Override
+        public boolean canCheckpoint() {
+            return CloudHostCapabilities.canCheckpoint(entry.host);
+        }
+
+        @Override
+        public synchronized void reset() {
+            checkState(acquired, "Shared host %s has not been set up", label);
+            entry.reset();
+        }
+
+        @Override
+        public synchronized HostCheckpoint checkpoint() {
+            checkState(acquired, "Shared host %s has not been set up", label);
+            return entry.checkpoint();
+        }
+
+        @Override
+        public ListenableFuture<Void> whenPortReady(int port) {
+            return PortProbes.whenPortReady(entry.host, port);
+        }
+
+        @Override
+        public String getHostName() {
+            return entry.host.getHostName();
+        }
+
+        @Override
+        public int getPort(int port) {
+            return entry.host.getPort(port);
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/* License added by: GRADLE-LICENSE-PLUGIN
+ *
+ * Copyright 2008-2012 XebiaLabs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.xebialabs.overcast.host;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import static com.xebialabs.overcast.OvercastProperties.getOvercastProperty;
+
+/**
+ * Runs teardown work of hosts. When asynchronous teardown is enabled the work is queued on background threads and
+ * {@link #teardown(String, Runnable)} returns immediately. The queue is drained when the JVM shuts down, waiting at most
+ * the drain timeout, after which failed and unfinished cleanups are reported.
+ */
+class TeardownReaper {
+    public static final String TEARDOWN_ASYNC_PROPERTY = "teardown.async";
+    public static final String TEARDOWN_DRAIN_TIMEOUT_PROPERTY = "teardown.drainTimeout";
+    public static final String TEARDOWN_DRAIN_TIMEOUT_DEFAULT = "300";
+
+    private static final Logger logger = LoggerFactory.getLogger(TeardownReaper.class);
+
+    private static TeardownReaper instance;
+
+    private final boolean async;
+    private final ExecutorService executor;
+    private final Map<Runnable, String> pending = new ConcurrentHashMap<Runnable, String>();
+    private final List<String> failures = Collections.synchronizedList(Lists.<String>newArrayList());
+
+    TeardownReaper(boolean async) {
+        this.async = async;
+        this.executor = Executors.newCachedThreadPool(new ThreadFactoryBuilder().setDaemon(true).setNameFormat("overcast-teardown-%d").build());
+    }
+
+    public static synchronized TeardownReaper getInstance() {
+        if (instance == null) {
+            boolean async = Boolean.valueOf(getOvercastProperty(TEARDOWN_ASYNC_PROPERTY, "false"));
+            instance = new TeardownReaper(async);
+            if (async) {
+                final long timeout = Long.valueOf(getOvercastProperty(TEARDOWN_DRAIN_TIMEOUT_PROPERTY, TEARDOWN_DRAIN_TIMEOUT_DEFAULT));
+                Runtime.getRuntime().addShutdownHook(new Thread("overcast-teardown-drain") {
+                    @Override
+                    public void run() {
+                        instance.drain(TimeUnit.SECONDS.toMillis(timeout));
+                    }
+                });
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Tear down, in the background if asynchronous teardown is enabled. Synchronous teardown propagates failures to
+     * the caller, asynchronous failures are logged and reported when the reaper is drained.
+     */
+    public void teardown(final String description, final Runnable task) {
+        if (!async) {
+            task.run();
+            return;
+        }
+        Runnable reaped = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    logger.debug("Tearing down {}", description);
+                    task.run();
+                    logger.info("Teardown of {} completed", description);
+                } catch (RuntimeException e) {
+                    logger.error("Teardown of " + description + " failed", e);
+                    failures.add(description + ": " + e);
+                } finally {
+                    pending.remove(this);
+                }
+            }
+        };
+        pending.put(reaped, description);
+        try {
+            executor.execute(reaped);
+        } catch (RejectedExecutionException e) {
+            // already draining, so nobody is left to wait for the result
+            reaped.run();
+        }
+    }
+
+    /**
+     * Stop accepting background work and wait for queued teardowns to finish.
+     *
+     * @return {@code true} when all teardowns finished within the timeout.
+     */
+    public boolean drain(long timeoutMillis) {
+        executor.shutdown();
+        if (!pending.isEmpty()) {
+            logger.info("Waiting up to {}ms for {} pending teardowns", timeoutMillis, pending.size());
+        }
+        boolean finished;
+        try {
+            finished = executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            finished = false;
+        }
+        report();
+        return finished;
+    }
+
+    public List<String> getFailures() {
+        synchronized (failures) {
+            return ImmutableList.copyOf(failures);
+        }
+    }
+
+    public Collection<String> getPending() {
+        return ImmutableList.copyOf(pending.values());
+    }
+
+    private void report() {
+        Collection<String> unfinished = getPending();
+        List<String> failed = getFailures();
+        if (unfinished.isEmpty() && failed.isEmpty()) {
+            return;
+        }
+        StringBuilder sb = new StringBuilder("Not all hosts were cleaned up, resources may have been left behind:");
+        for (String f : failed) {
+            sb.append("\n  failed: ").append(f);
+        }
+        for (String p : unfinished) {
+            sb.append("\n  unfinished: ").append(p);
+        }
+        logger.error(sb.toString());
+    }
+}
@@ -18,42 +18,92 @@
 package com.xebialabs.overcast.host;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Supplier;
+import com.google.common.util.concurrent.ListenableFuture;
 
 import net.schmizz.sshj.SSHClient;
+import net.schmizz.sshj.common.DisconnectReason;
+import net.schmizz.sshj.connection.ConnectionException;
 import net.schmizz.sshj.connection.channel.direct.LocalPortForwarder;
+import net.schmizz.sshj.transport.DisconnectListener;
+import net.schmizz.sshj.transport.TransportException;
 import net.schmizz.sshj.transport.verification.PromiscuousVerifier;
 
 import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.collect.Lists.newArrayList;
+
+/**
+ * {@link CloudHost} that reaches the actual host through SSH port forwards. The SSH connection is monitored using
+ * keepalive requests; when it drops it is re-established transparently while the local listeners stay bound, so
+ * clients only see a short stall instead of refused connections.
+ */
+class TunneledCloudHost implements WrappingCloudHost, PortReadyCloudHost {
+
+    public static final int KEEP_ALIVE_INTERVAL_DEFAULT = 5;
+    public static final int RECONNECT_TIMEOUT_DEFAULT = 60;
 
-class TunneledCloudHost implements CloudHost {
+    private static final String KEEP_ALIVE_REQUEST = "keepalive@openssh.com";
+    private static final long MIN_RECONNECT_DELAY = 250;
+
+    private static final Logger logger = LoggerFactory.getLogger(TunneledCloudHost.class);
 
     private final CloudHost actualHost;
     private final String username;
     private final String password;
     private final Map<Integer, Integer> portForwardMap;
+    private final int keepAliveInterval;
+    private final int reconnectTimeout;
+
+    private final Object lock = new Object();
+    private final List<ServerSocket> serverSockets = newArrayList();
+
+    private volatile SSHClient client;
+    private volatile boolean closed;
+    private boolean connectionLost;
+    private int reconnectCount;
+    private long totalDowntime;
 
-    private SSHClient client;
+    private Thread monitorThread;
 
     TunneledCloudHost(CloudHost actualHost, String username, String password, Map<Integer, Integer> portForwardMap) {
+        this(actualHost, username, password, portForwardMap, KEEP_ALIVE_INTERVAL_DEFAULT, RECONNECT_TIMEOUT_DEFAULT);
+    }
+
+    /**
+     * @param keepAliveInterval seconds between keepalive probes, a probe that is not answered within this interval
+     *            marks the connection as dead.
+     * @param reconnectTimeout seconds a new tunneled connection waits for the SSH connection to be re-established
+     *            before it is refused.
+     */
+    TunneledCloudHost(CloudHost actualHost, String username, String password, Map<Integer, Integer> portForwardMap, int keepAliveInterval,
+        int reconnectTimeout) {
+        checkArgument(keepAliveInterval > 0, "Keepalive interval must be positive, not %s", keepAliveInterval);
         this.actualHost = actualHost;
         this.username = username;
         this.password = password;
         this.portForwardMap = portForwardMap;
+        this.keepAliveInterval = keepAliveInterval;
+        this.reconnectTimeout = reconnectTimeout;
     }
 
     @Override
     public void setup() {
         actualHost.setup();
 
-        client = new SSHClient();
-        client.addHostKeyVerifier(new PromiscuousVerifier());
-
+        closed = false;
+        connectionLost = false;
         try {
-            client.connect(actualHost.getHostName(), 22);
-            client.authPassword(username, password);
+            client = connect();
             for (Map.Entry<Integer, Integer> forwardedPort : portForwardMap.entrySet()) {
                 int remotePort = forwardedPort.getKey();
                 int localPort = forwardedPort.getValue();
@@ -62,37 +112,76 @@ class TunneledCloudHost implements CloudHost {
                 final ServerSocket ss = new ServerSocket();
                 ss.setReuseAddress(true);
                 ss.bind(new InetSocketAddress(params.getLocalHost(), params.getLocalPort()));
+                serverSockets.add(ss);
 
-                final LocalPortForwarder forwarder = client.newLocalPortForwarder(params, ss);
+                final LocalPortForwarder forwarder = new ReconnectingPortForwarder(params, ss);
                 Thread forwarderThread = new Thread(new Runnable() {
                     @Override
                     public void run() {
-                        try {
-                            forwarder.listen();
-                        } catch (IOException ignore) {
+                        while (!closed && !ss.isClosed()) {
+                            try {
+                                forwarder.listen();
+                            } catch (IOException e) {
+                                if (!closed) {
+                                    logger.warn("Port forwarder on local port {} failed, restarting: {}", params.getLocalPort(), e.getMessage());
+                                }
+                            }
                         }
                     }
                 }, "SSH port forwarder thread from local port " + localPort + " to " + actualHost.getHostName() + ":" + remotePort);
                 forwarderThread.setDaemon(true);
-                CloudHostFactory.logger.info("Starting {}", forwarderThread.getName());
+                logger.info("Starting {}", forwarderThread.getName());
                 forwarderThread.start();
             }
         } catch (IOException exc) {
+            closeTunnels();
             throw new RuntimeException("Cannot set up tunnels to " + actualHost.getHostName(), exc);
         }
+
+        monitorThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                monitor();
+            }
+        }, "SSH tunnel monitor for " + actualHost.getHostName());
+        monitorThread.setDaemon(true);
+        monitorThread.start();
     }
 
     @Override
     public void teardown() {
-        try {
-            client.disconnect();
-        } catch (IOException ignored) {
-            //
+        closeTunnels();
+        synchronized (lock) {
+            if (reconnectCount > 0) {
+                logger.info("SSH tunnel to {} was re-established {} times, total downtime {} ms", actualHost.getHostName(), reconnectCount, totalDowntime);
+            }
         }
 
         actualHost.teardown();
     }
 
+    @Override
+    public boolean canReset() {
+        return CloudHostCapabilities.canReset(actualHost);
+    }
+
+    @Override
+    public boolean canCheckpoint() {
+        return CloudHostCapabilities.canCheckpoint(actualHost);
+    }
+
+    /** Resets the actual host, the monitor re-establishes the SSH connection when it comes back. */
+    @Override
+    public void reset() {
+        CloudHostCapabilities.reset(actualHost);
+    }
+
+    /** Checkpoints the actual host, hosts forked from it are not tunneled. */
+    @Override
+    public HostCheckpoint checkpoint() {
+        return CloudHostCapabilities.checkpoint(actualHost);
+    }
+
     @Override
     public String getHostName() {
         return "localhost";
@@ -104,4 +193,271 @@ class TunneledCloudHost implements CloudHost {
         return portForwardMap.get(port);
     }
 
+    /** A tunneled port is ready when the forward is listening and a channel to the remote port can be opened. */
+    @Override
+    public ListenableFuture<Void> whenPortReady(final int port) {
+        checkArgument(portForwardMap.containsKey(port), "Port %d is not tunneled", port);
+        return PortProbes.probe("tunneled port " + port + " of " + actualHost.getHostName(), new Supplier<Boolean>() {
+            @Override
+            public Boolean get() {
+                return isForwardLive(port);
+            }
+        });
+    }
+
+    private boolean isForwardLive(int remotePort) {
+        SSHClient c;
+        synchronized (lock) {
+            if (closed || connectionLost || client == null) {
+                return false;
+            }
+            c = client;
+        }
+        LocalPortForwarder.Parameters params = new LocalPortForwarder.Parameters("localhost", portForwardMap.get(remotePort), "localhost", remotePort);
+        try {
+            // opening the channel is refused when nothing listens on the remote port, no data is sent
+            LocalPortForwarder.DirectTCPIPChannel channel = new LocalPortForwarder.DirectTCPIPChannel(c.getConnection(), new Socket(), params);
+            channel.open();
+            channel.close();
+            return true;
+        } catch (IOException e) {
+            logger.debug("Forward of port {} to {} not live yet: {}", new Object[] { remotePort, actualHost.getHostName(), e.getMessage() });
+            return false;
+        }
+    }
+
+    /**
+     * @return the number of times the SSH connection was re-established since {@link #setup()}.
+     */
+    public int getReconnectCount() {
+        synchronized (lock) {
+            return reconnectCount;
+        }
+    }
+
+    /**
+     * @return the total number of milliseconds the SSH connection was down before it was re-established.
+     */
+    public long getTotalDowntimeMillis() {
+        synchronized (lock) {
+            return totalDowntime;
+        }
+    }
+
+    /** A new, unconnected SSH client. */
+    SSHClient newClient() {
+        return new SSHClient();
+    }
+
+    /** Open a channel forwarding the accepted socket over the SSH connection. */
+    LocalPortForwarder.DirectTCPIPChannel openChannel(SSHClient c, Socket socket, LocalPortForwarder.Parameters params)
+        throws TransportException, ConnectionException {
+        LocalPortForwarder.DirectTCPIPChannel channel = new LocalPortForwarder.DirectTCPIPChannel(c.getConnection(), socket, params);
+        channel.open();
+        return channel;
+    }
+
+    private SSHClient connect() throws IOException {
+        final SSHClient c = newClient();
+        c.addHostKeyVerifier(new PromiscuousVerifier());
+        c.setConnectTimeout(keepAliveInterval * 2000);
+        c.connect(actualHost.getHostName(), 22);
+        c.getTransport().setHeartbeatInterval(keepAliveInterval);
+        c.getTransport().setDisconnectListener(new DisconnectListener() {
+            @Override
+            public void notifyDisconnect(DisconnectReason reason) {
+                logger.debug("SSH connection to {} disconnected ({})", actualHost.getHostName(), reason);
+                markLost(c);
+            }
+        });
+        c.authPassword(username, password);
+        return c;
+    }
+
+    private void markLost(SSHClient c) {
+        synchronized (lock) {
+            if (c == client && !closed) {
+                connectionLost = true;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    private void monitor() {
+        while (!closed) {
+            try {
+                synchronized (lock) {
+                    if (!connectionLost) {
+                        lock.wait(keepAliveInterval * 1000L);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (closed) {
+                return;
+            }
+            if (connectionLost || !isAlive(client)) {
+                reconnect();
+            }
+        }
+    }
+
+    /**
+     * Sends a keepalive global request. Any reply, including a failure reply, proves that the transport is alive.
+     */
+    private boolean isAlive(SSHClient c) {
+        if (!c.isConnected() || !c.getTransport().isRunning()) {
+            return false;
+        }
+        try {
+            return c.getConnection().sendGlobalRequest(KEEP_ALIVE_REQUEST, true, new byte[0]).tryRetrieve(keepAliveInterval, TimeUnit.SECONDS) != null;
+        } catch (ConnectionException e) {
+            return true;
+        } catch (TransportException e) {
+            return false;
+        }
+    }
+
+    private void reconnect() {
+        long downSince = System.currentTimeMillis();
+        synchronized (lock) {
+            connectionLost = true;
+        }
+        logger.warn("SSH connection to {} lost, reconnecting", actualHost.getHostName());
+        disconnectQuietly(client);
+
+        long delay = MIN_RECONNECT_DELAY;
+        int attempt = 1;
+        while (!closed) {
+            try {
+                SSHClient c = connect();
+                long downtime = System.currentTimeMillis() - downSince;
+                synchronized (lock) {
+                    if (closed) {
+                        disconnectQuietly(c);
+                        return;
+                    }
+                    client = c;
+                    connectionLost = false;
+                    reconnectCount++;
+                    totalDowntime += downtime;
+                    lock.notifyAll();
+                }
+                logger.info("SSH connection to {} re-established after {} ms ({} attempts)", actualHost.getHostName(), downtime, attempt);
+                return;
+            } catch (IOException e) {
+                logger.debug("Reconnect attempt {} to {} failed: {}", new Object[] { attempt, actualHost.getHostName(), e.getMessage() });
+            }
+            attempt++;
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            delay = Math.min(delay * 2, keepAliveInterval * 1000L);
+        }
+    }
+
+    /**
+     * Waits until the SSH connection is usable, at most {@link #reconnectTimeout} seconds.
+     */
+    private SSHClient awaitConnection() throws ConnectionException {
+        long deadline = System.currentTimeMillis() + reconnectTimeout * 1000L;
+        synchronized (lock) {
+            try {
+                while (!closed && connectionLost) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        throw new ConnectionException("SSH connection to " + actualHost.getHostName() + " not re-established within " + reconnectTimeout + "s");
+                    }
+                    lock.wait(remaining);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ConnectionException(new InterruptedIOException("Interrupted while waiting for SSH connection"));
+            }
+            if (closed) {
+                throw new ConnectionException("SSH tunnel to " + actualHost.getHostName() + " is closed");
+            }
+            return client;
+        }
+    }
+
+    private void closeTunnels() {
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+        if (monitorThread != null) {
+            monitorThread.interrupt();
+            monitorThread = null;
+        }
+        for (ServerSocket ss : serverSockets) {
+            try {
+                ss.close();
+            } catch (IOException ignored) {
+                //
+            }
+        }
+        serverSockets.clear();
+        if (client != null) {
+            disconnectQuietly(client);
+        }
+    }
+
+    private static void disconnectQuietly(SSHClient c) {
+        try {
+            c.disconnect();
+        } catch (IOException ignored) {
+            //
+        }
+    }
+
+    /**
+     * {@link LocalPortForwarder} that always opens its channels on the current SSH connection, waiting for it to be
+     * re-established if necessary. This keeps the local {@link ServerSocket} bound across reconnects.
+     */
+    private class ReconnectingPortForwarder extends LocalPortForwarder {
+        private final Parameters params;
+
+        ReconnectingPortForwarder(Parameters params, ServerSocket serverSocket) {
+            super(client.getConnection(), params, serverSocket);
+            this.params = params;
+        }
+
+        @Override
+        protected DirectTCPIPChannel openChannel(Socket socket) throws TransportException, ConnectionException {
+            try {
+                SSHClient c = awaitConnection();
+                try {
+                    return open(c, socket);
+                } catch (TransportException e) {
+                    // the connection died under us, the monitor will reconnect
+                    markLost(c);
+                    return open(awaitConnection(), socket);
+                }
+            } catch (ConnectionException e) {
+                closeQuietly(socket);
+                throw e;
+            } catch (TransportException e) {
+                closeQuietly(socket);
+                throw e;
+            }
+        }
+
+        private DirectTCPIPChannel open(SSHClient c, Socket socket) throws TransportException, ConnectionException {
+            return TunneledCloudHost.this.openChannel(c, socket, params);
+        }
+
+        private void closeQuietly(Socket socket) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                //
+            }
+        }
+    }
 }
@@ -44,6 +44,7 @@ public class VagrantCloudHost implements CloudHost {
             logger.warn("No initial state was captured. Destroying the VM.");
             nextState = NOT_CREATED;
         }
+        // not left to the teardown reaper, the VM has a fixed name and the next setup would race with it
         vagrantDriver.doVagrant(vagrantVm, getTransitionCommand(nextState));
     }
 
@@ -1,11 +1,16 @@
 package com.xebialabs.overcast.host;
 
+import java.util.UUID;
+
 import com.xebialabs.overcast.command.CommandProcessor;
 import com.xebialabs.overcast.support.virtualbox.VirtualboxDriver;
+import com.xebialabs.overcast.support.virtualbox.VirtualboxState;
 
-public class VirtualboxHost implements CloudHost {
+public class VirtualboxHost implements ResettableCloudHost, CheckpointableCloudHost {
+    public static final String JOURNAL_TYPE = "virtualbox";
 
     private String ip, uuid, snapshot;
+    private String journalId;
 
     public VirtualboxHost(final String ip, final String uuid, final String snapshot) {
         this.ip = ip;
@@ -15,12 +20,56 @@ public class VirtualboxHost implements CloudHost {
 
     @Override
     public void setup() {
+        journalId = ProvisioningJournal.recordCreated(JOURNAL_TYPE, uuid);
         new VirtualboxDriver(CommandProcessor.atCurrentDir()).loadSnapshot(uuid, snapshot);
     }
 
     @Override
     public void teardown() {
         new VirtualboxDriver(CommandProcessor.atCurrentDir()).powerOff(uuid);
+        ProvisioningJournal.recordRemoved(journalId);
+        journalId = null;
+    }
+
+    /** Restore the snapshot the VM was set up from. */
+    @Override
+    public void reset() {
+        new VirtualboxDriver(CommandProcessor.atCurrentDir()).loadSnapshot(uuid, snapshot);
+    }
+
+    /** Take a snapshot of the running VM, hosts forked from it are linked clones of the snapshot. */
+    @Override
+    public HostCheckpoint checkpoint() {
+        final String name = "overcast-checkpoint-" + UUID.randomUUID().toString().substring(0, 8);
+        new VirtualboxDriver(CommandProcessor.atCurrentDir()).createSnapshot(uuid, name);
+        return new HostCheckpoint() {
+            @Override
+            public CloudHost fork() {
+                return new LinkedVirtualboxHost(uuid, name);
+            }
+
+            @Override
+            public void delete() {
+                new VirtualboxDriver(CommandProcessor.atCurrentDir()).deleteSnapshot(uuid, name);
+            }
+        };
+    }
+
+    /** Power off a VM left running by a JVM that died. */
+    static void reclaim(String uuid) {
+        VirtualboxDriver driver = new VirtualboxDriver(CommandProcessor.atCurrentDir());
+        if (driver.vmExists(uuid) && driver.vmState(uuid) == VirtualboxState.RUNNING) {
+            driver.powerOff(uuid);
+        }
+    }
+
+    int getVcpus() {
+        return new VirtualboxDriver(CommandProcessor.atCurrentDir()).getCpus(uuid);
+    }
+
+    /** Memory of the VM in MiB. */
+    long getMemory() {
+        return new VirtualboxDriver(CommandProcessor.atCurrentDir()).getMemory(uuid);
     }
 
     @Override
@@ -0,0 +1,37 @@
+/* License added by: GRADLE-LICENSE-PLUGIN
+ *
+ * Copyright 2008-2012 XebiaLabs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.xebialabs.overcast.host;
+
+/**
+ * A {@link CloudHost} around another one, e.g. for tunnels or admission control. It can be reset or checkpointed when
+ * the host it wraps can, which may only be known once that host is created, so it does not implement
+ * {@link ResettableCloudHost} or {@link CheckpointableCloudHost}. Use {@link CloudHostCapabilities} instead.
+ */
+interface WrappingCloudHost extends CloudHost {
+
+    /** Whether the wrapped host can be reset. */
+    boolean canReset();
+
+    /** Whether the wrapped host can be checkpointed. */
+    boolean canCheckpoint();
+
+    /** @see ResettableCloudHost#reset() */
+    void reset();
+
+    /** @see CheckpointableCloudHost#checkpoint() */
+    HostCheckpoint checkpoint();
+}
@@ -0,0 +1,99 @@
+package com.xebialabs.overcast.support.libvirt;
+
+import java.util.Map;
+
+import com.google.common.collect.Maps;
+
+/**
+ * Options for {@link DomainWrapper#cloneWithBackingStore(String, CloneOptions)}.
+ */
+public class CloneOptions {
+
+    private boolean guestAgentChannel;
+    private boolean transientDomain;
+    private boolean disposableProfile;
+    private Integer clusterSize;
+    private OverlayPools overlayPools;
+    private DomainTuning tuning;
+    private Map<String, String> macs = Maps.newHashMap();
+
+    public static CloneOptions cloneOptions() {
+        return new CloneOptions();
+    }
+
+    /** Add a virtio channel for the qemu guest agent if the base domain has none. */
+    public CloneOptions withGuestAgentChannel(boolean guestAgentChannel) {
+        this.guestAgentChannel = guestAgentChannel;
+        return this;
+    }
+
+    /**
+     * Start the clone as a transient domain. No persistent definition is written, the domain disappears when it is
+     * destroyed or when libvirtd restarts.
+     */
+    public CloneOptions withTransientDomain(boolean transientDomain) {
+        this.transientDomain = transientDomain;
+        return this;
+    }
+
+    /** Tune the clone for being thrown away, see {@link DisposableProfile}. */
+    public CloneOptions withDisposableProfile(boolean disposableProfile) {
+        this.disposableProfile = disposableProfile;
+        return this;
+    }
+
+    /** Cluster size in KiB of qcow2 overlays, libvirt's default when not set. */
+    public CloneOptions withClusterSize(Integer clusterSize) {
+        this.clusterSize = clusterSize;
+        return this;
+    }
+
+    /** Place overlays in one of these pools instead of the pool of the disk they are backed by. */
+    public CloneOptions withOverlayPools(OverlayPools overlayPools) {
+        this.overlayPools = overlayPools;
+        return this;
+    }
+
+    /** Change the sizing and memory settings of the clone. */
+    public CloneOptions withTuning(DomainTuning tuning) {
+        this.tuning = tuning;
+        return this;
+    }
+
+    /**
+     * Give the interface connected to a bridge or network a fixed MAC, the key is the same as for
+     * {@link DomainWrapper#getMacs()}. Interfaces without a fixed MAC get one generated by libvirt.
+     */
+    public CloneOptions withMac(String networkDeviceId, String mac) {
+        macs.put(networkDeviceId, mac);
+        return this;
+    }
+
+    public boolean isGuestAgentChannel() {
+        return guestAgentChannel;
+    }
+
+    public boolean isTransientDomain() {
+        return transientDomain;
+    }
+
+    public boolean isDisposableProfile() {
+        return disposableProfile;
+    }
+
+    public Integer getClusterSize() {
+        return clusterSize;
+    }
+
+    public OverlayPools getOverlayPools() {
+        return overlayPools;
+    }
+
+    public DomainTuning getTuning() {
+        return tuning;
+    }
+
+    public Map<String, String> getMacs() {
+        return macs;
+    }
+}
@@ -0,0 +1,169 @@
+package com.xebialabs.overcast.support.libvirt;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+
+/**
+ * In-memory MAC to IP index over local DHCP lease files, shared by all hosts in the JVM. Both the dnsmasq leases
+ * format and the JSON {@code .status} files libvirt keeps for its own networks are understood. A single daemon
+ * thread checks the watched files for changes and wakes up waiting lookups as soon as a lease appears.
+ */
+public final class DhcpLeaseIndex {
+    private static final Logger log = LoggerFactory.getLogger(DhcpLeaseIndex.class);
+
+    private static final long POLL_MILLIS = 250;
+
+    private static final Pattern STATUS_IP = Pattern.compile("\"ip-address\"\\s*:\\s*\"([^\"]+)\"");
+    private static final Pattern STATUS_MAC = Pattern.compile("\"mac-address\"\\s*:\\s*\"([^\"]+)\"");
+
+    private static final DhcpLeaseIndex INSTANCE = new DhcpLeaseIndex();
+
+    private final Map<File, LeaseFile> files = Maps.newLinkedHashMap();
+    private Thread watcher;
+
+    private DhcpLeaseIndex() {
+    }
+
+    public static DhcpLeaseIndex getInstance() {
+        return INSTANCE;
+    }
+
+    /** Start watching a lease file, files that do not exist yet are picked up when they appear. */
+    public synchronized void watch(File file) {
+        if (files.containsKey(file)) {
+            return;
+        }
+        log.debug("Watching DHCP lease file {}", file);
+        LeaseFile leaseFile = new LeaseFile(file);
+        files.put(file, leaseFile);
+        leaseFile.refresh();
+        if (watcher == null) {
+            watcher = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    poll();
+                }
+            }, "DHCP lease file watcher");
+            watcher.setDaemon(true);
+            watcher.start();
+        }
+    }
+
+    /** @return the IP currently leased to the MAC or {@code null}. */
+    public synchronized String get(String mac) {
+        String key = mac.toLowerCase();
+        for (LeaseFile f : files.values()) {
+            String ip = f.leases.get(key);
+            if (ip != null) {
+                return ip;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Wait for a lease for the MAC to appear in one of the watched files.
+     *
+     * @return the IP or {@code null} if none appeared within the timeout.
+     */
+    public synchronized String await(String mac, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        String ip = get(mac);
+        while (ip == null) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return null;
+            }
+            wait(remaining);
+            ip = get(mac);
+        }
+        return ip;
+    }
+
+    private void poll() {
+        for (;;) {
+            synchronized (this) {
+                boolean changed = false;
+                for (LeaseFile f : files.values()) {
+                    changed |= f.refresh();
+                }
+                if (changed) {
+                    notifyAll();
+                }
+            }
+            try {
+                Thread.sleep(POLL_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /** Parse a lease file in either dnsmasq or libvirt status format into a MAC to IP map. */
+    static Map<String, String> parseLeases(String content) {
+        Map<String, String> leases = Maps.newHashMap();
+        if (content.trim().startsWith("[")) {
+            // libvirt network status file, a JSON array of objects
+            for (String entry : content.split("\\}")) {
+                Matcher ip = STATUS_IP.matcher(entry);
+                Matcher mac = STATUS_MAC.matcher(entry);
+                if (ip.find() && mac.find()) {
+                    leases.put(mac.group(1).toLowerCase(), ip.group(1));
+                }
+            }
+            return leases;
+        }
+        // dnsmasq: <expiry> <mac> <ip> <hostname> <client-id>
+        for (String line : content.split("\n")) {
+            String[] parts = line.trim().split("\\s+");
+            if (parts.length >= 3 && parts[1].indexOf(':') != -1 && !"duid".equals(parts[0])) {
+                leases.put(parts[1].toLowerCase(), parts[2]);
+            }
+        }
+        return leases;
+    }
+
+    private static class LeaseFile {
+        private final File file;
+        private long lastModified = -1;
+        private long length = -1;
+        private Map<String, String> leases = Maps.newHashMap();
+
+        LeaseFile(File file) {
+            this.file = file;
+        }
+
+        /** @return whether the leases changed. */
+        boolean refresh() {
+            long m = file.lastModified();
+            long l = file.length();
+            if (m == lastModified && l == length) {
+                return false;
+            }
+            lastModified = m;
+            length = l;
+            if (!file.exists()) {
+                leases = Maps.newHashMap();
+                return true;
+            }
+            try {
+                leases = parseLeases(Files.toString(file, Charset.defaultCharset()));
+                log.debug("Read {} leases from {}", leases.size(), file);
+            } catch (IOException e) {
+                log.warn("Unable to read DHCP lease file {}: {}", file, e.getMessage());
+            }
+            return true;
+        }
+    }
+}
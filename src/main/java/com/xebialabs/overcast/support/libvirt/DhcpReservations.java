@@ -0,0 +1,390 @@
+package com.xebialabs.overcast.support.libvirt;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.libvirt.Connect;
+import org.libvirt.LibvirtException;
+import org.libvirt.Network;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import com.xebialabs.overcast.command.NonZeroCodeException;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Hands out fixed MAC/IP pairs from an IP range and registers them as static DHCP host entries on a libvirt network
+ * before the clone starts, so the address of a clone is known up front. The MAC is derived from the IP. The entry on
+ * the network doubles as a lock: libvirt refuses a second entry for the same address, also from another JVM.
+ * <p>
+ * The JVM that registered an entry holds the lock on a claim file {@code <network>-<ip>.lock} in the claim directory
+ * while the reservation lasts. An entry that is in the way is only reclaimed when no domain uses its MAC and either its
+ * owner has died, the claim file is no longer locked, or nobody on this machine owns it and it has been seen for longer
+ * than the reclaim timeout.
+ */
+public class DhcpReservations {
+    private static final Logger log = LoggerFactory.getLogger(DhcpReservations.class);
+
+    private static final String MAC_PREFIX = "52:54:00";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String UNOWNED = "-";
+    private static final String OWNER = ManagementFactory.getRuntimeMXBean().getName();
+
+    /** Addresses reserved or being reserved in this JVM, keyed by network name. */
+    private static final Map<String, Set<String>> reserved = Maps.newHashMap();
+
+    /** Claim files locked by this JVM, keyed by file name. */
+    private static final Map<String, FileLock> claims = Maps.newHashMap();
+
+    private final Connect libvirt;
+    private final VirshDriver virsh;
+    private final String network;
+    private final long firstIp;
+    private final long lastIp;
+    private final File claimDir;
+    private final long reclaimTimeoutMillis;
+
+    /**
+     * @param claimDir directory of the claim files, shared by the JVMs of the user on this machine.
+     * @param reclaimTimeout seconds an entry without owner on this machine must have been seen before it is reclaimed.
+     */
+    public DhcpReservations(Connect libvirt, VirshDriver virsh, String network, String ipRange, File claimDir, int reclaimTimeout) {
+        this.libvirt = libvirt;
+        this.virsh = virsh;
+        this.network = network;
+        this.claimDir = claimDir;
+        this.reclaimTimeoutMillis = reclaimTimeout * 1000L;
+        String[] range = ipRange.split("-");
+        checkArgument(range.length == 2, "IP range \"%s\" does not have the right format, e.g. 192.168.122.100-192.168.122.199", ipRange);
+        this.firstIp = ipToLong(range[0].trim());
+        this.lastIp = ipToLong(range[1].trim());
+        checkArgument(firstIp <= lastIp, "IP range \"%s\" is empty", ipRange);
+    }
+
+    public String getNetwork() {
+        return network;
+    }
+
+    /**
+     * Reserve a free address in the range, registering the DHCP host entry on the network. Only picking a candidate
+     * address is serialized, so reservations of parallel setups register their entries at the same time.
+     */
+    public Reservation reserve() {
+        for (long i = firstIp; i <= lastIp; i++) {
+            String ip = longToIp(i);
+            if (!mark(network, ip)) {
+                continue;
+            }
+            boolean done = false;
+            try {
+                Claim claim = Claim.tryLock(claimFile(ip));
+                if (claim == null) {
+                    // reserved by another JVM on this machine
+                    continue;
+                }
+                try {
+                    Reservation reservation = new Reservation(macForIp(ip), ip);
+                    if (register(reservation, claim)) {
+                        claim.write(OWNER, System.currentTimeMillis());
+                        synchronized (claims) {
+                            claims.put(claimFileName(network, ip), claim.lock);
+                        }
+                        done = true;
+                        log.info("Reserved {} on network '{}'", reservation, network);
+                        return reservation;
+                    }
+                } finally {
+                    if (!done) {
+                        claim.close();
+                    }
+                }
+            } finally {
+                if (!done) {
+                    unmark(network, ip);
+                }
+            }
+        }
+        throw new LibvirtRuntimeException("No free address in range " + longToIp(firstIp) + "-" + longToIp(lastIp) + " on network " + network);
+    }
+
+    /** @return {@code false} when the address is already reserved or being reserved in this JVM. */
+    private static boolean mark(String network, String ip) {
+        synchronized (reserved) {
+            Set<String> inUse = reserved.get(network);
+            if (inUse == null) {
+                inUse = Sets.newHashSet();
+                reserved.put(network, inUse);
+            }
+            return inUse.add(ip);
+        }
+    }
+
+    private static void unmark(String network, String ip) {
+        synchronized (reserved) {
+            Set<String> inUse = reserved.get(network);
+            if (inUse != null) {
+                inUse.remove(ip);
+            }
+        }
+    }
+
+    /** Remove the DHCP host entry from the network and return the address to the range. */
+    public void release(Reservation reservation) {
+        release(libvirt, virsh, network, reservation);
+    }
+
+    /** Release a reservation on the network, also one made by another JVM, such as that of a kept alive clone. */
+    public static void release(Connect libvirt, VirshDriver virsh, String network, Reservation reservation) {
+        try {
+            update(libvirt, virsh, network, "delete", reservation);
+            log.info("Released {} on network '{}'", reservation, network);
+        } catch (NonZeroCodeException e) {
+            log.warn("Unable to remove DHCP host entry {} from network '{}'", reservation, network);
+        } catch (LibvirtRuntimeException e) {
+            log.warn("Unable to remove DHCP host entry " + reservation + " from network '" + network + "'", e);
+        } finally {
+            String claimName = claimFileName(network, reservation.getIp());
+            FileLock lock;
+            synchronized (claims) {
+                lock = claims.remove(claimName);
+            }
+            if (lock != null) {
+                new Claim(claimName, lock, null).clear();
+            }
+            // only given out again once the claim is released
+            unmark(network, reservation.getIp());
+        }
+    }
+
+    private boolean register(Reservation reservation, Claim claim) {
+        try {
+            update("add", reservation);
+            return true;
+        } catch (NonZeroCodeException e) {
+            log.debug("Address {} on network '{}' is taken", reservation, network);
+        }
+        // an entry left behind by a crashed run is reclaimed when no domain uses the MAC
+        try {
+            long now = System.currentTimeMillis();
+            if (claim.owner == null) {
+                // registered by another user or machine, remember since when it is in the way
+                claim.write(UNOWNED, now);
+            }
+            if (!isReclaimable(claim.owner, claim.since, now, reclaimTimeoutMillis)
+                || LibvirtUtil.findDomainWithMac(libvirt, reservation.getMac()) != null) {
+                return false;
+            }
+            update("delete", reservation);
+            log.info("Reclaimed stale DHCP host entry {} on network '{}'", reservation, network);
+            update("add", reservation);
+            return true;
+        } catch (NonZeroCodeException e) {
+            return false;
+        } catch (LibvirtException e) {
+            throw new LibvirtRuntimeException("Unable to reserve " + reservation + " on network " + network, e);
+        }
+    }
+
+    private void update(String command, Reservation reservation) {
+        update(libvirt, virsh, network, command, reservation);
+    }
+
+    private static void update(Connect libvirt, VirshDriver virsh, String network, String command, Reservation reservation) {
+        try {
+            Network n = libvirt.networkLookupByName(network);
+            if (n.isPersistent() == 1) {
+                virsh.execute("net-update", network, command, "ip-dhcp-host", reservation.toHostXml(), "--live", "--config");
+            } else {
+                virsh.execute("net-update", network, command, "ip-dhcp-host", reservation.toHostXml(), "--live");
+            }
+        } catch (LibvirtException e) {
+            throw new LibvirtRuntimeException("Unable to look up network " + network, e);
+        }
+    }
+
+    /**
+     * An entry whose claim file could be locked is reclaimable when its owner wrote the claim, which means the owner
+     * died, or when it has no owner on this machine and has been seen for longer than the timeout.
+     */
+    static boolean isReclaimable(String owner, long since, long now, long timeoutMillis) {
+        if (owner == null) {
+            return false;
+        }
+        return !UNOWNED.equals(owner) || now - since > timeoutMillis;
+    }
+
+    private File claimFile(String ip) {
+        return new File(claimDir, claimFileName(network, ip));
+    }
+
+    private static String claimFileName(String network, String ip) {
+        return network.replaceAll("[^A-Za-z0-9._-]", "_") + "-" + ip + ".lock";
+    }
+
+    /** Derive a MAC in the qemu range from the last three octets of the IP. */
+    static String macForIp(String ip) {
+        long l = ipToLong(ip);
+        return String.format("%s:%02x:%02x:%02x", MAC_PREFIX, (l >> 16) & 0xff, (l >> 8) & 0xff, l & 0xff);
+    }
+
+    static long ipToLong(String ip) {
+        String[] octets = ip.split("\\.");
+        checkArgument(octets.length == 4, "\"%s\" is not an IPv4 address", ip);
+        long l = 0;
+        for (String octet : octets) {
+            int o = Integer.parseInt(octet);
+            checkArgument(o >= 0 && o <= 255, "\"%s\" is not an IPv4 address", ip);
+            l = (l << 8) | o;
+        }
+        return l;
+    }
+
+    static String longToIp(long l) {
+        return ((l >> 24) & 0xff) + "." + ((l >> 16) & 0xff) + "." + ((l >> 8) & 0xff) + "." + (l & 0xff);
+    }
+
+    /** A MAC/IP pair registered on the network. */
+    public static class Reservation {
+        private final String mac;
+        private final String ip;
+
+        Reservation(String mac, String ip) {
+            this.mac = mac;
+            this.ip = ip;
+        }
+
+        public String getMac() {
+            return mac;
+        }
+
+        public String getIp() {
+            return ip;
+        }
+
+        String toHostXml() {
+            return "<host mac='" + mac + "' ip='" + ip + "'/>";
+        }
+
+        @Override
+        public String toString() {
+            return mac + "=" + ip;
+        }
+    }
+
+    /** The lock on a claim file, with the owner and time it was written with before the lock was taken. */
+    static class Claim {
+        private final String path;
+        private final FileLock lock;
+        private String owner;
+        private long since;
+
+        Claim(String path, FileLock lock, String content) {
+            this.path = path;
+            this.lock = lock;
+            if (content == null || content.trim().isEmpty()) {
+                return;
+            }
+            List<String> fields = Lists.newArrayList(Splitter.on('\t').trimResults().split(content));
+            owner = fields.get(0);
+            try {
+                since = fields.size() == 2 ? Long.valueOf(fields.get(1)) : 0;
+            } catch (NumberFormatException e) {
+                // a torn write of a killed JVM, its owner is gone
+                owner = content;
+            }
+        }
+
+        /** @return who wrote the claim, {@code -} when it is not owned on this machine, {@code null} when empty. */
+        String getOwner() {
+            return owner;
+        }
+
+        long getSince() {
+            return since;
+        }
+
+        /** @return the claim, or {@code null} when another JVM holds it. */
+        static Claim tryLock(File file) {
+            synchronized (claims) {
+                if (claims.containsKey(file.getName())) {
+                    return null;
+                }
+            }
+            RandomAccessFile raf = null;
+            try {
+                file.getParentFile().mkdirs();
+                raf = new RandomAccessFile(file, "rw");
+                FileLock lock = raf.getChannel().tryLock();
+                if (lock == null) {
+                    raf.close();
+                    return null;
+                }
+                byte[] content = new byte[(int) raf.length()];
+                raf.readFully(content);
+                return new Claim(file.getPath(), lock, new String(content, UTF8));
+            } catch (OverlappingFileLockException e) {
+                closeQuietly(raf);
+                return null;
+            } catch (IOException e) {
+                closeQuietly(raf);
+                throw new LibvirtRuntimeException("Unable to lock DHCP reservation claim " + file, e);
+            }
+        }
+
+        void write(String newOwner, long newSince) {
+            owner = newOwner;
+            since = newSince;
+            try {
+                lock.channel().truncate(0);
+                lock.channel().write(ByteBuffer.wrap((newOwner + "\t" + newSince).getBytes(UTF8)), 0);
+                lock.channel().force(false);
+            } catch (IOException e) {
+                throw new LibvirtRuntimeException("Unable to write DHCP reservation claim " + path, e);
+            }
+        }
+
+        /** Empty the claim file and release it, the entry on the network is gone. */
+        void clear() {
+            try {
+                lock.channel().truncate(0);
+            } catch (IOException e) {
+                log.warn("Unable to clear DHCP reservation claim {}", path);
+            }
+            close();
+        }
+
+        void close() {
+            try {
+                lock.release();
+                lock.channel().close();
+            } catch (IOException e) {
+                log.warn("Unable to release DHCP reservation claim {}", path);
+            }
+        }
+
+        private static void closeQuietly(RandomAccessFile raf) {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException ignored) {
+                    // nothing left to do
+                }
+            }
+        }
+    }
+}
@@ -25,6 +25,8 @@ public class Disk {
     public String file;
     public String format;
     private StorageVol volume;
+    private StorageVolInfo info;
+    private StoragePool pool;
 
     public Disk(String device, String file, StorageVol volume, String format) {
         checkNotNull(emptyToNull(device));
@@ -38,9 +40,13 @@ public class Disk {
         this.format = format;
     }
 
-    public StorageVolInfo getInfo() {
+    public synchronized StorageVolInfo getInfo() {
+        if (info != null) {
+            return info;
+        }
         try {
-            return volume.getInfo();
+            info = volume.getInfo();
+            return info;
         } catch (LibvirtException e) {
             throw new LibvirtRuntimeException(e);
         }
@@ -67,15 +73,28 @@ public class Disk {
         return volume;
     }
 
-    public StoragePool getStoragePool() {
+    public synchronized StoragePool getStoragePool() {
+        if (pool != null) {
+            return pool;
+        }
         try {
-            return volume.storagePoolLookupByVolume();
+            pool = volume.storagePoolLookupByVolume();
+            return pool;
         } catch (LibvirtException e) {
             throw new LibvirtRuntimeException(e);
         }
     }
 
     public StorageVol createCloneWithBackingStore(String name) {
+        return createCloneWithBackingStore(name, CloneOptions.cloneOptions());
+    }
+
+    /**
+     * Create an overlay of this disk. For the disposable profile the qcow2 refcounts of the overlay are updated lazily,
+     * the overlay is thrown away instead of repaired after a crash. With overlay pools the overlay is created in the
+     * first of them it fits in, falling back to the pool of this disk when none has room.
+     */
+    public StorageVol createCloneWithBackingStore(String name, CloneOptions options) {
         try {
             Element volume = new Element("volume");
             volume.addContent(new Element("name").setText(name));
@@ -85,6 +104,14 @@ public class Disk {
             volume.addContent(target);
             target.addContent(new Element("format").setAttribute("type", format));
             target.addContent(new Element("compat").setText("1.1"));
+            if ("qcow2".equals(format)) {
+                if (options.getClusterSize() != null) {
+                    target.addContent(new Element("clusterSize").setAttribute("unit", "KiB").setText(options.getClusterSize().toString()));
+                }
+                if (options.isDisposableProfile()) {
+                    target.addContent(new Element("features").addContent(new Element("lazy_refcounts")));
+                }
+            }
             Element backingStore = new Element("backingStore");
             volume.addContent(backingStore);
             backingStore.addContent(new Element("path").setText(file));
@@ -95,6 +122,16 @@ public class Disk {
             xout.output(volume, vsw);
             String volumeXml = vsw.toString();
             log.debug("Creating volume with xml={}", volumeXml);
+            if (options.getOverlayPools() != null) {
+                for (StoragePool overlayPool : options.getOverlayPools().candidates()) {
+                    try {
+                        return overlayPool.storageVolCreateXML(volumeXml, 0);
+                    } catch (LibvirtException e) {
+                        log.warn("Unable to create overlay {} in an overlay pool, trying the next one: {}", name, e.getMessage());
+                    }
+                }
+                log.warn("No overlay pool has room for {}, creating it next to {}", name, file);
+            }
             StorageVol vol = getStoragePool().storageVolCreateXML(volumeXml, 0);
             return vol;
         } catch (LibvirtException e) {
@@ -104,6 +141,31 @@ public class Disk {
         }
     }
 
+    /** Copy the disk and everything it is backed by into a new standalone volume. */
+    public StorageVol createFlattenedCopy(String name) {
+        try {
+            Element volume = new Element("volume");
+            volume.addContent(new Element("name").setText(name));
+            volume.addContent(new Element("allocation").setText("0"));
+            volume.addContent(new Element("capacity").setText("" + getInfo().capacity));
+            Element target = new Element("target");
+            volume.addContent(target);
+            target.addContent(new Element("format").setAttribute("type", format));
+            target.addContent(new Element("compat").setText("1.1"));
+
+            StringWriter vsw = new StringWriter();
+            XMLOutputter xout = new XMLOutputter(Format.getPrettyFormat());
+            xout.output(volume, vsw);
+            String volumeXml = vsw.toString();
+            log.debug("Creating flattened copy of {} with xml={}", file, volumeXml);
+            return getStoragePool().storageVolCreateXMLFrom(volumeXml, this.volume, 0);
+        } catch (LibvirtException e) {
+            throw new LibvirtRuntimeException(e);
+        } catch (IOException e) {
+            throw new LibvirtRuntimeException(e);
+        }
+    }
+
     @Override
     public String toString() {
         return Objects.toStringHelper(this)
@@ -0,0 +1,78 @@
+package com.xebialabs.overcast.support.libvirt;
+
+import java.util.List;
+
+import org.jdom2.Document;
+import org.jdom2.Element;
+import org.jdom2.filter.Filters;
+import org.jdom2.xpath.XPathExpression;
+import org.jdom2.xpath.XPathFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tunes the domain XML of a clone that is thrown away after use: disk writes are not flushed, disks and network
+ * interfaces use virtio and devices a test does not need are removed. The guest needs virtio drivers and must not
+ * depend on disk device names, disks are renamed to {@code vda}, {@code vdb}, ...
+ */
+public class DisposableProfile {
+    private static final Logger log = LoggerFactory.getLogger(DisposableProfile.class);
+
+    private static final String[] UNUSED_DEVICES = {
+        "/domain/devices/disk[@device='cdrom']",
+        "/domain/devices/disk[@device='floppy']",
+        "/domain/devices/sound",
+        "/domain/devices/redirdev",
+        "/domain/devices/smartcard",
+        "/domain/devices/hub",
+        "/domain/devices/channel[@type='spicevmc']",
+        "/domain/devices/graphics[@type='spice']",
+        "/domain/devices/video[model/@type='qxl']",
+        "/domain/os/bootmenu"
+    };
+
+    private DisposableProfile() {
+    }
+
+    public static void apply(Document domainXml) {
+        XPathFactory xpf = XPathFactory.instance();
+        for (String xpath : UNUSED_DEVICES) {
+            XPathExpression<Element> expr = xpf.compile(xpath, Filters.element());
+            for (Element e : expr.evaluate(domainXml)) {
+                log.debug("Removing {} from disposable clone", e.getName());
+                e.detach();
+            }
+        }
+
+        List<Element> disks = xpf.compile("/domain/devices/disk[@device='disk']", Filters.element()).evaluate(domainXml);
+        char dev = 'a';
+        for (Element disk : disks) {
+            Element driver = disk.getChild("driver");
+            if (driver != null) {
+                // unsafe caching goes through the host page cache, which native aio does not support
+                driver.setAttribute("cache", "unsafe");
+                driver.removeAttribute("io");
+            }
+            Element target = disk.getChild("target");
+            if (!"virtio".equals(target.getAttributeValue("bus"))) {
+                target.setAttribute("bus", "virtio");
+                // the address was one on the old bus' controller
+                disk.removeChild("address");
+            }
+            // renamed in order, so converted disks do not clash with disks that were virtio already
+            target.setAttribute("dev", "vd" + dev++);
+        }
+
+        for (Element iface : xpf.compile("/domain/devices/interface", Filters.element()).evaluate(domainXml)) {
+            Element model = iface.getChild("model");
+            if (model == null) {
+                model = new Element("model");
+                iface.addContent(model);
+            }
+            if (!"virtio".equals(model.getAttributeValue("type"))) {
+                model.setAttribute("type", "virtio");
+                iface.removeChild("address");
+            }
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.xebialabs.overcast.support.libvirt;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.List;
+import java.util.UUID;
+
+import org.jdom2.Document;
+import org.jdom2.Element;
+import org.jdom2.filter.Filters;
+import org.jdom2.output.Format;
+import org.jdom2.output.XMLOutputter;
+import org.jdom2.xpath.XPathFactory;
+import org.libvirt.Domain;
+import org.libvirt.LibvirtException;
+import org.libvirt.StorageVol;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Lists;
+
+/**
+ * The disks of a running clone at one point in time, kept as a shut off domain named
+ * {@code <domain>.checkpoint-<id>} that is cloned like any other domain. An external snapshot moves the running clone
+ * onto new overlays of its disks, so it keeps running while its old overlays become the disks of the checkpoint.
+ * <p>
+ * Clones of a checkpoint boot from its disks. Their memory is not restored, as a domain restored from saved memory
+ * keeps its UUID and only one of them could run on a libvirt host at a time.
+ */
+public class DomainCheckpoint {
+    private static final Logger log = LoggerFactory.getLogger(DomainCheckpoint.class);
+
+    private static final String DESCRIPTION_PREFIX = "overcast checkpoint of ";
+
+    private DomainCheckpoint() {
+    }
+
+    public static String checkpointName(String domainName, String id) {
+        return domainName + ".checkpoint-" + id;
+    }
+
+    /**
+     * Checkpoint the disks of a running clone. The clone keeps running on new overlays, so its wrapper has to be
+     * looked up again to see them.
+     *
+     * @param quiesce freeze the file systems of the guest with its guest agent while the snapshot is taken.
+     * @return the checkpoint.
+     */
+    public static DomainWrapper create(DomainWrapper clone, String name, VirshDriver virsh, boolean quiesce) {
+        List<Disk> disks = clone.getDisks();
+        Document xml = checkpointXml(clone.getDomainXml(), name, clone.getName());
+
+        String id = UUID.randomUUID().toString().substring(0, 8);
+        List<String> names = Lists.newArrayList();
+        for (Disk d : disks) {
+            names.add(DomainWrapper.cloneDiskName(d, id));
+        }
+        List<StorageVol> overlays = DomainWrapper.createCloneDisks(disks, names, CloneOptions.cloneOptions());
+        try {
+            List<String> command = Lists.newArrayList("snapshot-create-as", clone.getName(), name,
+                "--disk-only", "--atomic", "--no-metadata", "--reuse-external");
+            if (quiesce) {
+                command.add("--quiesce");
+            }
+            for (int i = 0; i < disks.size(); i++) {
+                command.add("--diskspec");
+                command.add(disks.get(i).device + ",snapshot=external,file=" + overlays.get(i).getPath());
+            }
+            log.info("Checkpointing disks of domain {} as {}", clone.getName(), name);
+            virsh.execute(command.toArray(new String[command.size()]));
+        } catch (LibvirtException e) {
+            DomainWrapper.rollback(null, overlays);
+            throw new LibvirtRuntimeException("Unable to checkpoint domain", e);
+        } catch (RuntimeException e) {
+            DomainWrapper.rollback(null, overlays);
+            throw e;
+        }
+
+        // the clone now writes to the new overlays, its old ones belong to the checkpoint
+        try {
+            StringWriter sw = new StringWriter();
+            new XMLOutputter(Format.getPrettyFormat()).output(xml, sw);
+            Domain checkpoint = clone.getConnect().domainDefineXML(sw.toString());
+            log.info("Created checkpoint '{}' of domain {}", name, clone.getName());
+            return DomainWrapper.newWrapper(checkpoint);
+        } catch (IOException e) {
+            throw new LibvirtRuntimeException("Unable to define checkpoint, the disks of " + clone.getName() + " are backed by its old ones", e);
+        } catch (LibvirtException e) {
+            throw new LibvirtRuntimeException("Unable to define checkpoint, the disks of " + clone.getName() + " are backed by its old ones", e);
+        }
+    }
+
+    /** The definition of the checkpoint of a clone, the clone's disks as they are before the snapshot. */
+    static Document checkpointXml(Document cloneXml, String name, String cloneName) {
+        Document xml = cloneXml.clone();
+        Element root = xml.getRootElement();
+        root.getChild("name").setText(name);
+        root.removeChild("uuid");
+        // clones of the checkpoint get their own MAC, like clones of a layer
+        for (Element iface : XPathFactory.instance().compile("/domain/devices/interface", Filters.element()).evaluate(xml)) {
+            iface.removeChild("mac");
+        }
+        root.removeChild("description");
+        root.addContent(1, new Element("description").setText(DESCRIPTION_PREFIX + cloneName));
+        return xml;
+    }
+}
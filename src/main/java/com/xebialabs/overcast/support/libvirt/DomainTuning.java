@@ -0,0 +1,212 @@
+package com.xebialabs.overcast.support.libvirt;
+
+import java.util.List;
+
+import org.jdom2.Document;
+import org.jdom2.Element;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.Lists;
+
+/**
+ * Sizing and memory settings of a clone that differ from its base domain, so more clones fit on a libvirt host. Only
+ * the settings that have been set are changed.
+ */
+public class DomainTuning {
+    private static final Logger log = LoggerFactory.getLogger(DomainTuning.class);
+
+    private Long memory;
+    private Long currentMemory;
+    private Integer vcpus;
+    private String cpuset;
+    private Boolean hugepages;
+    private Boolean sharePages;
+    private String balloon;
+    private Integer balloonStatsPeriod;
+
+    public static DomainTuning domainTuning() {
+        return new DomainTuning();
+    }
+
+    /** Maximum memory in MiB. */
+    public DomainTuning withMemory(Long memory) {
+        this.memory = memory;
+        return this;
+    }
+
+    /** Memory in MiB the clone starts with, the balloon can grow it up to the maximum. */
+    public DomainTuning withCurrentMemory(Long currentMemory) {
+        this.currentMemory = currentMemory;
+        return this;
+    }
+
+    public DomainTuning withVcpus(Integer vcpus) {
+        this.vcpus = vcpus;
+        return this;
+    }
+
+    /** Host CPUs the vCPUs may run on, e.g. {@code 4-7,^6}. */
+    public DomainTuning withCpuset(String cpuset) {
+        this.cpuset = cpuset;
+        return this;
+    }
+
+    public DomainTuning withHugepages(Boolean hugepages) {
+        this.hugepages = hugepages;
+        return this;
+    }
+
+    /** Whether KSM may merge the memory of the clone with that of others. */
+    public DomainTuning withSharePages(Boolean sharePages) {
+        this.sharePages = sharePages;
+        return this;
+    }
+
+    /** Model of the memory balloon, e.g. {@code virtio} or {@code none}. */
+    public DomainTuning withBalloon(String balloon) {
+        this.balloon = balloon;
+        return this;
+    }
+
+    /** Seconds between memory statistics reported by the balloon driver of the guest. */
+    public DomainTuning withBalloonStatsPeriod(Integer balloonStatsPeriod) {
+        this.balloonStatsPeriod = balloonStatsPeriod;
+        return this;
+    }
+
+    public Long getMemory() {
+        return memory;
+    }
+
+    public Integer getVcpus() {
+        return vcpus;
+    }
+
+    public void apply(Document domainXml) {
+        Element root = domainXml.getRootElement();
+        if (memory != null) {
+            setMemory(root, "memory", memory);
+            setMemory(root, "currentMemory", currentMemory != null ? currentMemory : memory);
+            // guest NUMA cells add up to the old size
+            removeNuma(root);
+        } else if (currentMemory != null) {
+            setMemory(root, "currentMemory", currentMemory);
+        }
+        if (vcpus != null) {
+            setVcpus(root);
+        }
+        if (cpuset != null) {
+            getOrCreate(root, "vcpu").setAttribute("cpuset", cpuset);
+        }
+        if (hugepages != null || sharePages != null) {
+            setMemoryBacking(root);
+        }
+        if (balloon != null || balloonStatsPeriod != null) {
+            setBalloon(root);
+        }
+    }
+
+    private static void setMemory(Element root, String name, long mib) {
+        Element e = getOrCreate(root, name);
+        e.setAttribute("unit", "KiB");
+        e.setText(Long.toString(mib * 1024));
+    }
+
+    private void setVcpus(Element root) {
+        Element vcpu = getOrCreate(root, "vcpu");
+        vcpu.setText(vcpus.toString());
+        vcpu.removeAttribute("current");
+        Element cpu = root.getChild("cpu");
+        if (cpu != null) {
+            Element topology = cpu.getChild("topology");
+            if (topology != null) {
+                topology.setAttribute("sockets", vcpus.toString());
+                topology.setAttribute("cores", "1");
+                topology.setAttribute("threads", "1");
+            }
+        }
+        removeNuma(root);
+        Element cputune = root.getChild("cputune");
+        if (cputune != null) {
+            List<Element> pins = Lists.newArrayList(cputune.getChildren("vcpupin"));
+            for (Element pin : pins) {
+                if (Integer.parseInt(pin.getAttributeValue("vcpu")) >= vcpus) {
+                    pin.detach();
+                }
+            }
+        }
+    }
+
+    private static void removeNuma(Element root) {
+        Element cpu = root.getChild("cpu");
+        if (cpu != null && cpu.removeChild("numa")) {
+            log.debug("Removed guest NUMA topology of resized clone");
+        }
+    }
+
+    private void setMemoryBacking(Element root) {
+        Element backing = getOrCreate(root, "memoryBacking");
+        if (hugepages != null) {
+            backing.removeChild("hugepages");
+            if (hugepages) {
+                backing.addContent(new Element("hugepages"));
+            }
+        }
+        if (sharePages != null) {
+            backing.removeChild("nosharepages");
+            if (!sharePages) {
+                backing.addContent(new Element("nosharepages"));
+            }
+        }
+        if (Boolean.TRUE.equals(hugepages) && Boolean.TRUE.equals(sharePages)) {
+            log.warn("KSM does not merge huge pages, sharing pages has no effect with hugepages");
+        }
+        if (backing.getChildren().isEmpty()) {
+            backing.detach();
+        }
+    }
+
+    private void setBalloon(Element root) {
+        Element devices = root.getChild("devices");
+        Element memballoon = getOrCreate(devices, "memballoon");
+        if (balloon != null) {
+            if (!balloon.equals(memballoon.getAttributeValue("model"))) {
+                // the address belongs to the old model
+                memballoon.removeChild("address");
+            }
+            memballoon.setAttribute("model", balloon);
+        } else if (memballoon.getAttribute("model") == null) {
+            memballoon.setAttribute("model", "virtio");
+        }
+        if ("none".equals(memballoon.getAttributeValue("model"))) {
+            memballoon.removeContent();
+        } else if (balloonStatsPeriod != null) {
+            memballoon.removeChild("stats");
+            memballoon.addContent(new Element("stats").setAttribute("period", balloonStatsPeriod.toString()));
+        }
+    }
+
+    private static Element getOrCreate(Element parent, String name) {
+        Element e = parent.getChild(name);
+        if (e == null) {
+            e = new Element(name);
+            parent.addContent(e);
+        }
+        return e;
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this)
+            .add("memory", memory)
+            .add("currentMemory", currentMemory)
+            .add("vcpus", vcpus)
+            .add("cpuset", cpuset)
+            .add("hugepages", hugepages)
+            .add("sharePages", sharePages)
+            .add("balloon", balloon)
+            .add("balloonStatsPeriod", balloonStatsPeriod).toString();
+    }
+}
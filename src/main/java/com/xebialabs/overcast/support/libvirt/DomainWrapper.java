@@ -2,9 +2,16 @@ package com.xebialabs.overcast.support.libvirt;
 
 import java.io.IOException;
 import java.io.StringWriter;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.jdom2.Attribute;
 import org.jdom2.Document;
@@ -16,9 +23,11 @@ import org.jdom2.output.Format;
 import org.jdom2.output.XMLOutputter;
 import org.jdom2.xpath.XPathExpression;
 import org.jdom2.xpath.XPathFactory;
+import org.libvirt.Connect;
 import org.libvirt.Domain;
 import org.libvirt.DomainInfo.DomainState;
 import org.libvirt.LibvirtException;
+import org.libvirt.StoragePool;
 import org.libvirt.StorageVol;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -26,15 +35,41 @@ import org.slf4j.LoggerFactory;
 import com.amazonaws.util.StringInputStream;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 public class DomainWrapper {
-    private static final String XPATH_DISK_DEV = "//target/@dev";
-    private static final String XPATH_DISK_FILE = "//source/@file";
-    private static final String XPATH_DISK_TYPE = "//driver[@name='qemu']/@type";
+    private static final String XPATH_DISK_DEV = "target/@dev";
+    private static final String XPATH_DISK_FILE = "source/@file";
+    private static final String XPATH_DISK_TYPE = "driver[@name='qemu']/@type";
     private static final String XPATH_DISK = "/domain/devices/disk[@device='disk']";
+    private static final String XPATH_INTERFACE = "/domain/devices/interface";
+    private static final String XPATH_DISK_FILES = "/domain/devices/disk/source/@file";
+    private static final String XPATH_VOLUME_BACKING_STORE = "/volume/backingStore/path";
+    private static final String XPATH_VOLUME_MTIME = "/volume/target/timestamps/mtime";
+    private static final String XPATH_GUEST_AGENT_CHANNEL = "/domain/devices/channel/target[@name='" + QemuGuestAgent.CHANNEL_NAME + "']";
     private static final Logger log = LoggerFactory.getLogger(DomainWrapper.class);
+
+    // compiled once; jdom2 XPath expressions are not thread-safe, so each evaluation uses a clone
+    private static final XPathExpression<Attribute> DISK_DEV_EXPR = XPathFactory.instance().compile(XPATH_DISK_DEV, Filters.attribute());
+    private static final XPathExpression<Attribute> DISK_FILE_EXPR = XPathFactory.instance().compile(XPATH_DISK_FILE, Filters.attribute());
+    private static final XPathExpression<Attribute> DISK_TYPE_EXPR = XPathFactory.instance().compile(XPATH_DISK_TYPE, Filters.attribute());
+    private static final XPathExpression<Element> DISK_EXPR = XPathFactory.instance().compile(XPATH_DISK, Filters.element());
+    private static final XPathExpression<Element> INTERFACE_EXPR = XPathFactory.instance().compile(XPATH_INTERFACE, Filters.element());
+    private static final XPathExpression<Attribute> DISK_FILES_EXPR = XPathFactory.instance().compile(XPATH_DISK_FILES, Filters.attribute());
+    private static final XPathExpression<Element> VOLUME_BACKING_STORE_EXPR = XPathFactory.instance().compile(XPATH_VOLUME_BACKING_STORE,
+        Filters.element());
+    private static final XPathExpression<Element> VOLUME_MTIME_EXPR = XPathFactory.instance().compile(XPATH_VOLUME_MTIME, Filters.element());
+    private static final XPathExpression<Element> GUEST_AGENT_CHANNEL_EXPR = XPathFactory.instance().compile(XPATH_GUEST_AGENT_CHANNEL,
+        Filters.element());
+
+    /** Creates the overlay volumes of a clone concurrently. */
+    private static final ExecutorService cloneExecutor = Executors.newCachedThreadPool(new ThreadFactoryBuilder().setDaemon(true)
+        .setNameFormat("libvirt-clone-%d").build());
+
     private Document domainXml;
     private Domain domain;
+    private List<Disk> disks;
 
     private DomainWrapper(Domain domain, Document domainXml) {
         this.domain = domain;
@@ -67,10 +102,20 @@ public class DomainWrapper {
     public void destroyWithDisks() {
         try {
             List<Disk> disks = getDisks();
-            log.info("Undefining domain {}", domain.getName());
-            domain.undefine();
-            log.info("Destroying domain {}", domain.getName());
-            domain.destroy();
+            // a domain with snapshots cannot be undefined
+            for (String snapshot : domain.snapshotListNames()) {
+                log.info("Removing snapshot {} of domain {}", snapshot, domain.getName());
+                domain.snapshotLookupByName(snapshot).delete(0);
+            }
+            if (domain.isPersistent() == 1) {
+                log.info("Undefining domain {}", domain.getName());
+                domain.undefine();
+            }
+            // a transient domain is gone once destroyed
+            if (domain.isActive() == 1) {
+                log.info("Destroying domain {}", domain.getName());
+                domain.destroy();
+            }
 
             // this will not destroy the backing store disks.
             for (Disk d : disks) {
@@ -82,6 +127,105 @@ public class DomainWrapper {
         }
     }
 
+    /**
+     * Discard everything written to the disks of this clone by replacing each overlay with an empty one on the same
+     * backing image, then boot it again. A transient clone is started again from its current definition.
+     *
+     * @return the restarted clone.
+     */
+    public DomainWrapper resetOverlays() {
+        try {
+            List<Disk> disks = getDisks();
+            List<Document> volumeXmls = Lists.newArrayList();
+            XPathExpression<Element> backingExpr = VOLUME_BACKING_STORE_EXPR.clone();
+            for (Disk d : disks) {
+                Document volumeXml = new SAXBuilder().build(new StringInputStream(d.getVolume().getXMLDesc(0)));
+                if (backingExpr.evaluateFirst(volumeXml) == null) {
+                    throw new LibvirtRuntimeException("Disk " + d.file + " of domain " + getName() + " is not an overlay");
+                }
+                // a fresh overlay allocates nothing up front
+                volumeXml.getRootElement().getChild("allocation").setText("0");
+                volumeXmls.add(volumeXml);
+            }
+
+            String xml = domain.getXMLDesc(0);
+            boolean persistent = domain.isPersistent() == 1;
+            if (domain.isActive() == 1) {
+                log.info("Destroying domain {} to reset its disks", domain.getName());
+                domain.destroy();
+            }
+            Iterator<Document> volumeXmlIter = volumeXmls.iterator();
+            for (Disk d : disks) {
+                StoragePool pool = d.getStoragePool();
+                log.info("Replacing disk {} with an empty overlay", d.getName());
+                d.getVolume().delete(0);
+                pool.storageVolCreateXML(new XMLOutputter().outputString(volumeXmlIter.next()), 0);
+            }
+
+            if (persistent) {
+                domain.create();
+                return newWrapper(domain);
+            }
+            return newWrapper(domain.getConnect().domainCreateXML(xml, 0));
+        } catch (LibvirtException e) {
+            throw new LibvirtRuntimeException("Unable to reset domain", e);
+        } catch (JDOMException e) {
+            throw new LibvirtRuntimeException("Unable to reset domain", e);
+        } catch (IOException e) {
+            throw new LibvirtRuntimeException("Unable to reset domain", e);
+        }
+    }
+
+    public boolean isPersistent() {
+        try {
+            return domain.isPersistent() == 1;
+        } catch (LibvirtException e) {
+            throw new LibvirtRuntimeException("Unable to get domain persistence", e);
+        }
+    }
+
+    /** @return the description of the domain as it was when this wrapper was created, or {@code null}. */
+    public String getDescription() {
+        Element description = domainXml.getRootElement().getChild("description");
+        return description == null ? null : description.getText();
+    }
+
+    public boolean hasSnapshot(String name) {
+        try {
+            return Arrays.asList(domain.snapshotListNames()).contains(name);
+        } catch (LibvirtException e) {
+            throw new LibvirtRuntimeException("Unable to list snapshots", e);
+        }
+    }
+
+    /** Take an internal snapshot of the disks and, for a running domain, its memory. */
+    public void createSnapshot(String name) {
+        try {
+            log.info("Creating snapshot {} of domain {}", name, domain.getName());
+            domain.snapshotCreateXML(new XMLOutputter().outputString(new Element("domainsnapshot").addContent(new Element("name").setText(name))));
+        } catch (LibvirtException e) {
+            throw new LibvirtRuntimeException("Unable to create snapshot", e);
+        }
+    }
+
+    public void revertToSnapshot(String name) {
+        try {
+            log.info("Reverting domain {} to snapshot {}", domain.getName(), name);
+            domain.revertToSnapshot(domain.snapshotLookupByName(name));
+        } catch (LibvirtException e) {
+            throw new LibvirtRuntimeException("Unable to revert to snapshot", e);
+        }
+    }
+
+    public void deleteSnapshot(String name) {
+        try {
+            log.info("Removing snapshot {} of domain {}", name, domain.getName());
+            domain.snapshotLookupByName(name).delete(0);
+        } catch (LibvirtException e) {
+            throw new LibvirtRuntimeException("Unable to remove snapshot", e);
+        }
+    }
+
     public DomainState getState() {
         try {
             return domain.getInfo().state;
@@ -93,13 +237,12 @@ public class DomainWrapper {
     /**
      * Get a map of mac addresses of interfaces defined on the domain. This is somewhat limited at the moment. It is
      * assumed that only one network interface with mac is connected to a bridge or network. For instance if you have a
-     * bridged network device connected to 'br0' then you will find it's MAC address with the key 'br0'.
+     * bridged network device connected to 'br0' then you will find it's MAC address with the key 'br0', an interface
+     * on the libvirt network 'default' is found with the key 'default'.
      */
     public Map<String, String> getMacs() {
         Map<String, String> macs = Maps.newHashMap();
-        XPathFactory xpf = XPathFactory.instance();
-        XPathExpression<Element> interfaces = xpf.compile("/domain/devices/interface", Filters.element());
-        for (Element iface : interfaces.evaluate(domainXml)) {
+        for (Element iface : INTERFACE_EXPR.clone().evaluate(domainXml)) {
             String interfaceType = iface.getAttribute("type").getValue();
             log.debug("Detecting network of type '{}'", interfaceType);
             if ("bridge".equals(interfaceType)) {
@@ -110,7 +253,12 @@ public class DomainWrapper {
                 log.info("Detected '{}' bridged '{}' mac '{}'", interfaceType, bridge, mac);
                 macs.put(bridge, mac);
             } else if ("network".equals(interfaceType)) {
-                log.warn("Ignoring network of type {}", interfaceType);
+                Element macElement = iface.getChild("mac");
+                String mac = macElement.getAttribute("address").getValue();
+                Element sourceElement = iface.getChild("source");
+                String network = sourceElement.getAttribute("network").getValue();
+                log.info("Detected '{}' network '{}' mac '{}'", interfaceType, network, mac);
+                macs.put(network, mac);
             } else {
                 log.warn("Ignoring network of type {}", interfaceType);
             }
@@ -118,21 +266,48 @@ public class DomainWrapper {
         return macs;
     }
 
+    /** Number of virtual CPUs of the domain, 1 when not specified. */
+    public int getVcpus() {
+        Element vcpu = domainXml.getRootElement().getChild("vcpu");
+        return vcpu != null ? Integer.parseInt(vcpu.getTextTrim()) : 1;
+    }
+
+    /** Maximum memory of the domain in KiB. */
+    public long getMemory() {
+        Element memory = domainXml.getRootElement().getChild("memory");
+        return toKiB(Long.parseLong(memory.getTextTrim()), memory.getAttributeValue("unit"));
+    }
+
+    static long toKiB(long value, String unit) {
+        if (unit == null || "KiB".equals(unit) || "k".equals(unit)) {
+            return value;
+        } else if ("b".equals(unit) || "bytes".equals(unit)) {
+            return value / 1024;
+        } else if ("MiB".equals(unit) || "M".equals(unit)) {
+            return value * 1024;
+        } else if ("GiB".equals(unit) || "G".equals(unit)) {
+            return value * 1024 * 1024;
+        } else if ("TiB".equals(unit) || "T".equals(unit)) {
+            return value * 1024 * 1024 * 1024;
+        }
+        throw new IllegalArgumentException("Unsupported memory unit " + unit);
+    }
+
     public String getMac(String id) {
         return getMacs().get(id);
     }
 
-    /** get the disks connected to this domain. */
-    public List<Disk> getDisks() {
+    /** get the disks connected to this domain. The volumes are looked up once per wrapper. */
+    public synchronized List<Disk> getDisks() {
+        if (disks != null) {
+            return disks;
+        }
         try {
             List<Disk> ret = Lists.newArrayList();
-            XPathFactory xpf = XPathFactory.instance();
-            XPathExpression<Element> diskExpr = xpf.compile(XPATH_DISK, Filters.element());
-            XPathExpression<Attribute> typeExpr = xpf.compile(XPATH_DISK_TYPE, Filters.attribute());
-            XPathExpression<Attribute> fileExpr = xpf.compile(XPATH_DISK_FILE, Filters.attribute());
-            XPathExpression<Attribute> devExpr = xpf.compile(XPATH_DISK_DEV, Filters.attribute());
-            List<Element> disks = diskExpr.evaluate(domainXml);
-            for (Element disk : disks) {
+            XPathExpression<Attribute> typeExpr = DISK_TYPE_EXPR.clone();
+            XPathExpression<Attribute> fileExpr = DISK_FILE_EXPR.clone();
+            XPathExpression<Attribute> devExpr = DISK_DEV_EXPR.clone();
+            for (Element disk : DISK_EXPR.clone().evaluate(domainXml)) {
                 Attribute type = typeExpr.evaluateFirst(disk);
                 Attribute file = fileExpr.evaluateFirst(disk);
                 Attribute dev = devExpr.evaluateFirst(disk);
@@ -141,71 +316,347 @@ public class DomainWrapper {
 
                 ret.add(new Disk(dev.getValue(), file.getValue(), volume, type.getValue()));
             }
-            return ret;
+            disks = ret;
+            return disks;
         } catch (LibvirtException e) {
             throw new LibvirtRuntimeException(e);
         }
     }
 
-    /** Clone the domain. All disks are cloned using the original disk as backing store. */
-    public DomainWrapper cloneWithBackingStore(String cloneName) {
-        log.info("Creating clone from {}", getName());
+    /** Shut the guest down, and pull the plug when it is still running after timeoutSeconds. */
+    public void shutdown(int timeoutSeconds) {
         try {
-            List<StorageVol> cloneDisks = Lists.newArrayList();
-            for (Disk d : getDisks()) {
-                String clonedDisk = String.format("%s-%s.qcow2", d.getBaseName(), cloneName);
-                StorageVol vol = d.createCloneWithBackingStore(clonedDisk);
-                log.debug("Disk {} cloned to {}", d.getName(), clonedDisk);
-                cloneDisks.add(vol);
+            if (domain.isActive() != 1) {
+                return;
+            }
+            log.info("Shutting down domain {}", domain.getName());
+            domain.shutdown();
+            long deadline = System.currentTimeMillis() + timeoutSeconds * 1000L;
+            while (domain.isActive() == 1 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1000);
             }
+            if (domain.isActive() == 1) {
+                log.warn("Domain {} did not shut down within {}s, destroying it", domain.getName(), timeoutSeconds);
+                domain.destroy();
+            }
+        } catch (LibvirtException e) {
+            throw new LibvirtRuntimeException("Unable to shut down domain", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new LibvirtRuntimeException("Interrupted while shutting down domain", e);
+        }
+    }
 
-            // duplicate definition of base
-            Document cloneXmlDocument = domainXml.clone();
+    Document getDomainXml() {
+        return domainXml;
+    }
 
-            XPathFactory xpf = XPathFactory.instance();
+    Connect getConnect() {
+        return domain.getConnect();
+    }
 
-            XPathExpression<Element> nameExpr = xpf.compile("/domain/name", Filters.element());
-            Element nameElement = nameExpr.evaluateFirst(cloneXmlDocument);
-            nameElement.setText(cloneName);
+    /** Save the memory state of the running domain to an image on the libvirt host and forget its definition. */
+    public void saveAndUndefine(String imagePath) {
+        try {
+            log.info("Saving domain {} to {}", domain.getName(), imagePath);
+            domain.save(imagePath);
+            if (domain.isPersistent() == 1) {
+                domain.undefine();
+            }
+        } catch (LibvirtException e) {
+            throw new LibvirtRuntimeException("Unable to save domain", e);
+        }
+    }
 
-            // remove uuid so it will be generated
-            cloneXmlDocument.getRootElement().removeChild("uuid");
+    /** get the image files of all disks of this domain, without looking up their volumes. */
+    public Set<String> getDiskFiles() {
+        Set<String> files = Sets.newHashSet();
+        for (Attribute file : DISK_FILES_EXPR.clone().evaluate(domainXml)) {
+            files.add(file.getValue());
+        }
+        return files;
+    }
 
-            XPathExpression<Element> diskExpr = xpf.compile(XPATH_DISK, Filters.element());
-            XPathExpression<Attribute> fileExpr = xpf.compile(XPATH_DISK_FILE, Filters.attribute());
-            List<Element> disks = diskExpr.evaluate(cloneXmlDocument);
-            Iterator<StorageVol> cloneDiskIter = cloneDisks.iterator();
-            for (Element disk : disks) {
-                Attribute file = fileExpr.evaluateFirst(disk);
-                StorageVol cloneDisk = cloneDiskIter.next();
-                file.setValue(cloneDisk.getPath());
+    /**
+     * Delete clone disks of this domain that are not used by any domain anymore. Transient clones do not leave a
+     * definition behind when the JVM dies before teardown, so their overlays are found by name and backing store
+     * instead. All active pools are searched, as overlays may have been placed in an {@link OverlayPools overlay pool}.
+     * Volumes modified less than {@code minAgeSeconds} ago are kept as they may belong to a clone that is being
+     * started.
+     *
+     * @return the names of the deleted volumes.
+     */
+    public List<String> deleteOrphanedCloneDisks(int minAgeSeconds) {
+        try {
+            Set<String> inUse = LibvirtUtil.findDiskFilesInUse(domain.getConnect());
+            List<StoragePool> pools = LibvirtUtil.listActivePools(domain.getConnect());
+            long cutoff = System.currentTimeMillis() / 1000 - minAgeSeconds;
+            List<String> deleted = Lists.newArrayList();
+            for (Disk d : getDisks()) {
+                String prefix = String.format("%s-%s-", d.getBaseName(), getName());
+                for (StoragePool pool : pools) {
+                    for (String name : pool.listVolumes()) {
+                        if (!name.startsWith(prefix)) {
+                            continue;
+                        }
+                        StorageVol vol;
+                        try {
+                            vol = pool.storageVolLookupByName(name);
+                        } catch (LibvirtException e) {
+                            // removed by its own clone's teardown meanwhile
+                            continue;
+                        }
+                        if (inUse.contains(vol.getPath()) || !isOrphanedOverlay(vol, d.file, cutoff)) {
+                            continue;
+                        }
+                        log.info("Removing orphaned clone disk {}", name);
+                        vol.delete(0);
+                        deleted.add(name);
+                    }
+                }
+            }
+            return deleted;
+        } catch (LibvirtException e) {
+            throw new LibvirtRuntimeException("Unable to remove orphaned clone disks", e);
+        }
+    }
+
+    /**
+     * Delete the disks of a clone of this domain that has no domain anymore.
+     *
+     * @return the names of the deleted volumes.
+     */
+    public List<String> deleteCloneDisks(String cloneName) {
+        try {
+            List<StoragePool> pools = LibvirtUtil.listActivePools(domain.getConnect());
+            List<String> deleted = Lists.newArrayList();
+            for (Disk d : getDisks()) {
+                String name = cloneDiskName(d, cloneName);
+                for (StoragePool pool : pools) {
+                    StorageVol vol;
+                    try {
+                        vol = pool.storageVolLookupByName(name);
+                    } catch (LibvirtException e) {
+                        continue;
+                    }
+                    log.info("Removing clone disk {}", name);
+                    vol.delete(0);
+                    deleted.add(name);
+                }
             }
+            return deleted;
+        } catch (LibvirtException e) {
+            throw new LibvirtRuntimeException("Unable to remove clone disks", e);
+        }
+    }
+
+    static String cloneDiskName(Disk disk, String cloneName) {
+        return String.format("%s-%s.qcow2", disk.getBaseName(), cloneName);
+    }
 
-            // remove mac address, so it will be generated
-            XPathExpression<Element> macExpr = xpf.compile("/domain/devices/interface/mac", Filters.element());
-            for (Element mac : macExpr.evaluate(cloneXmlDocument)) {
-                mac.getParentElement().removeChild("mac");
+    private static boolean isOrphanedOverlay(StorageVol vol, String backingFile, long cutoff) throws LibvirtException {
+        Document volumeXml;
+        try {
+            volumeXml = new SAXBuilder().build(new StringInputStream(vol.getXMLDesc(0)));
+        } catch (JDOMException e) {
+            throw new LibvirtRuntimeException(e);
+        } catch (IOException e) {
+            throw new LibvirtRuntimeException(e);
+        }
+        Element backingStore = VOLUME_BACKING_STORE_EXPR.clone().evaluateFirst(volumeXml);
+        if (backingStore == null || !backingFile.equals(backingStore.getTextTrim())) {
+            return false;
+        }
+        // older libvirt versions do not report timestamps
+        Element mtime = VOLUME_MTIME_EXPR.clone().evaluateFirst(volumeXml);
+        if (mtime != null) {
+            String seconds = mtime.getTextTrim();
+            int dot = seconds.indexOf('.');
+            if (Long.parseLong(dot == -1 ? seconds : seconds.substring(0, dot)) > cutoff) {
+                return false;
             }
+        }
+        return true;
+    }
+
+    /** Clone the domain. All disks are cloned using the original disk as backing store. */
+    public DomainWrapper cloneWithBackingStore(String cloneName) {
+        return cloneWithBackingStore(cloneName, CloneOptions.cloneOptions());
+    }
 
-            StringWriter vsw = new StringWriter();
-            XMLOutputter xout = new XMLOutputter(Format.getPrettyFormat());
-            xout.output(cloneXmlDocument, vsw);
-            String cloneXml = vsw.toString();
+    /**
+     * Clone the domain. All disks are cloned concurrently using the original disk as backing store. When any step fails
+     * the volumes created so far are removed again.
+     */
+    public DomainWrapper cloneWithBackingStore(String cloneName, CloneOptions options) {
+        log.info("Creating clone from {}", getName());
+        List<Disk> disks = getDisks();
+        List<String> names = Lists.newArrayList();
+        for (Disk d : disks) {
+            names.add(cloneDiskName(d, cloneName));
+        }
+        List<StorageVol> cloneDisks = createCloneDisks(disks, names, options);
+        Domain cloneDomain = null;
+        try {
+            String cloneXml = createCloneXml(cloneName, cloneDisks, options);
             log.debug("Clone xml={}", cloneXml);
 
-            // Domain cloneDomain = domain.getConnect().domainCreateXML(cloneXml, 0);
-            Domain cloneDomain = domain.getConnect().domainDefineXML(cloneXml);
-            String createdCloneXml = cloneDomain.getXMLDesc(0);
-            log.debug("Created clone xml: {}", createdCloneXml);
-            cloneDomain.create();
-            log.debug("Starting clone: '{}'", cloneDomain.getName());
+            if (options.isTransientDomain()) {
+                cloneDomain = domain.getConnect().domainCreateXML(cloneXml, 0);
+                log.debug("Started transient clone: '{}'", cloneDomain.getName());
+            } else {
+                cloneDomain = domain.getConnect().domainDefineXML(cloneXml);
+                log.debug("Starting clone: '{}'", cloneDomain.getName());
+                cloneDomain.create();
+            }
 
-            DomainWrapper clone = newWrapper(cloneDomain);
-            return clone;
+            return newWrapper(cloneDomain);
         } catch (IOException e) {
+            rollback(cloneDomain, cloneDisks);
             throw new LibvirtRuntimeException("Unable to clone domain", e);
         } catch (LibvirtException e) {
+            rollback(cloneDomain, cloneDisks);
             throw new LibvirtRuntimeException("Unable to clone domain", e);
+        } catch (RuntimeException e) {
+            rollback(cloneDomain, cloneDisks);
+            throw e;
+        }
+    }
+
+    /**
+     * Create overlays of the disks concurrently, named after the respective entry in names. Either all overlays are
+     * created or none.
+     */
+    static List<StorageVol> createCloneDisks(List<Disk> disks, List<String> names, final CloneOptions options) {
+        List<Future<StorageVol>> futures = Lists.newArrayList();
+        Iterator<String> nameIter = names.iterator();
+        for (final Disk d : disks) {
+            final String clonedDisk = nameIter.next();
+            futures.add(cloneExecutor.submit(new Callable<StorageVol>() {
+                @Override
+                public StorageVol call() {
+                    StorageVol vol = d.createCloneWithBackingStore(clonedDisk, options);
+                    log.debug("Disk {} cloned to {}", d.getName(), clonedDisk);
+                    return vol;
+                }
+            }));
+        }
+
+        List<StorageVol> cloneDisks = Lists.newArrayList();
+        Throwable failure = null;
+        for (Future<StorageVol> f : futures) {
+            try {
+                cloneDisks.add(f.get());
+            } catch (ExecutionException e) {
+                failure = e.getCause();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            rollback(null, cloneDisks);
+            if (failure instanceof LibvirtRuntimeException) {
+                throw (LibvirtRuntimeException) failure;
+            }
+            throw new LibvirtRuntimeException("Unable to create clone disks", failure);
+        }
+        return cloneDisks;
+    }
+
+    private String createCloneXml(String cloneName, List<StorageVol> cloneDisks, CloneOptions options) throws IOException, LibvirtException {
+        // duplicate definition of base
+        Document cloneXmlDocument = domainXml.clone();
+        Element root = cloneXmlDocument.getRootElement();
+
+        root.getChild("name").setText(cloneName);
+
+        // remove uuid so it will be generated
+        root.removeChild("uuid");
+
+        XPathExpression<Attribute> fileExpr = DISK_FILE_EXPR.clone();
+        Iterator<StorageVol> cloneDiskIter = cloneDisks.iterator();
+        for (Element disk : DISK_EXPR.clone().evaluate(cloneXmlDocument)) {
+            Attribute file = fileExpr.evaluateFirst(disk);
+            StorageVol cloneDisk = cloneDiskIter.next();
+            file.setValue(cloneDisk.getPath());
+        }
+
+        // remove mac address, so it will be generated, unless a fixed one was requested
+        for (Element iface : INTERFACE_EXPR.clone().evaluate(cloneXmlDocument)) {
+            Element mac = iface.getChild("mac");
+            if (mac == null) {
+                continue;
+            }
+            String fixedMac = options.getMacs().get(getNetworkDeviceId(iface));
+            if (fixedMac != null) {
+                log.debug("Using fixed mac '{}'", fixedMac);
+                mac.setAttribute("address", fixedMac);
+            } else {
+                iface.removeChild("mac");
+            }
+        }
+
+        if (options.isGuestAgentChannel()) {
+            addGuestAgentChannel(cloneXmlDocument);
+        }
+
+        if (options.isDisposableProfile()) {
+            DisposableProfile.apply(cloneXmlDocument);
+        }
+
+        if (options.getTuning() != null) {
+            options.getTuning().apply(cloneXmlDocument);
+        }
+
+        StringWriter vsw = new StringWriter();
+        XMLOutputter xout = new XMLOutputter(Format.getPrettyFormat());
+        xout.output(cloneXmlDocument, vsw);
+        return vsw.toString();
+    }
+
+    static void rollback(Domain cloneDomain, List<StorageVol> cloneDisks) {
+        if (cloneDomain != null) {
+            try {
+                boolean persistent = cloneDomain.isPersistent() == 1;
+                if (cloneDomain.isActive() == 1) {
+                    cloneDomain.destroy();
+                }
+                if (persistent) {
+                    cloneDomain.undefine();
+                }
+            } catch (LibvirtException e) {
+                log.warn("Unable to remove partially created clone", e);
+            }
+        }
+        for (StorageVol vol : cloneDisks) {
+            try {
+                log.info("Removing disk {} of failed clone", vol.getName());
+                vol.delete(0);
+            } catch (LibvirtException e) {
+                log.warn("Unable to remove disk of failed clone", e);
+            }
+        }
+    }
+
+    /** @return the bridge or network name the interface is connected to, as used as key in {@link #getMacs()}. */
+    private static String getNetworkDeviceId(Element iface) {
+        Element source = iface.getChild("source");
+        if (source == null) {
+            return null;
+        }
+        String bridge = source.getAttributeValue("bridge");
+        return bridge != null ? bridge : source.getAttributeValue("network");
+    }
+
+    private static void addGuestAgentChannel(Document domainXml) {
+        if (GUEST_AGENT_CHANNEL_EXPR.clone().evaluateFirst(domainXml) != null) {
+            log.debug("Domain already has a guest agent channel");
+            return;
         }
+        Element channel = new Element("channel").setAttribute("type", "unix");
+        channel.addContent(new Element("source").setAttribute("mode", "bind"));
+        channel.addContent(new Element("target").setAttribute("type", "virtio").setAttribute("name", QemuGuestAgent.CHANNEL_NAME));
+        domainXml.getRootElement().getChild("devices").addContent(channel);
     }
 }
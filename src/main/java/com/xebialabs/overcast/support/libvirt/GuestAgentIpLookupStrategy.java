@@ -0,0 +1,62 @@
+package com.xebialabs.overcast.support.libvirt;
+
+import org.libvirt.Connect;
+import org.libvirt.Domain;
+import org.libvirt.LibvirtException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.xebialabs.overcast.command.CommandProcessor;
+
+import static com.xebialabs.overcast.OvercastProperties.getOvercastProperty;
+
+/**
+ * {@link IpLookupStrategy} that asks the qemu guest agent of the running domain owning the MAC for the address of
+ * that interface. Works for bridged as well as libvirt network interfaces and doubles as a readiness check: an answer
+ * means the guest has booted far enough to configure its network. The domain needs a guest agent channel, see
+ * {@link CloneOptions#withGuestAgentChannel(boolean)}.
+ */
+public class GuestAgentIpLookupStrategy implements IpLookupStrategy {
+    private static final Logger log = LoggerFactory.getLogger(GuestAgentIpLookupStrategy.class);
+
+    private static final String AGENT_TIMEOUT_SUFFIX = ".agent.timeout";
+
+    private final Connect libvirt;
+    private final VirshDriver virsh;
+    private final int timeout;
+
+    public GuestAgentIpLookupStrategy(Connect libvirt, VirshDriver virsh, int timeout) {
+        this.libvirt = libvirt;
+        this.virsh = virsh;
+        this.timeout = timeout;
+    }
+
+    public static GuestAgentIpLookupStrategy create(String prefix, Connect libvirt, String libvirtURL) {
+        int timeout = Integer.parseInt(getOvercastProperty(prefix + AGENT_TIMEOUT_SUFFIX, "120"));
+        return new GuestAgentIpLookupStrategy(libvirt, new VirshDriver(libvirtURL, CommandProcessor.atCurrentDir()), timeout);
+    }
+
+    @Override
+    public String lookup(String mac) {
+        String domain = findDomainWithMac(mac);
+        log.info("Asking guest agent of '{}' for IP of MAC={}", domain, mac);
+        String ip = new QemuGuestAgent(virsh, domain).waitForIp(mac, timeout);
+        if (ip == null) {
+            throw new RuntimeException("No IP reported by guest agent of " + domain + " for MAC: " + mac);
+        }
+        log.debug("Found IP={} for MAC={}", ip, mac);
+        return ip;
+    }
+
+    private String findDomainWithMac(String mac) {
+        try {
+            Domain domain = LibvirtUtil.findDomainWithMac(libvirt, mac);
+            if (domain == null || domain.isActive() != 1) {
+                throw new LibvirtRuntimeException("No running domain with MAC " + mac);
+            }
+            return domain.getName();
+        } catch (LibvirtException e) {
+            throw new LibvirtRuntimeException("Unable to find domain with MAC " + mac, e);
+        }
+    }
+}
@@ -0,0 +1,323 @@
+package com.xebialabs.overcast.support.libvirt;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.libvirt.Connect;
+import org.libvirt.LibvirtException;
+import org.libvirt.NodeInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Spreads clones of a base domain over several libvirt hosts that all have it. Each clone goes to the reachable host
+ * with the fewest domains per CPU that is below the maximum number of clones that may be placed on a host. Placed
+ * clones are counted on top of the domains a host runs, as they may not have been started yet.
+ * <p>
+ * A placed clone holds the lock of a slot file in the slot directory until it is released, and the OS releases the
+ * lock when its JVM dies. Clones placed by all JVMs of the user on this machine are counted by probing those locks, and
+ * the maximum is kept by only using the first slots of a host. JVMs do not notify each other, a placement waiting for
+ * a host to drop below the maximum checks the slots again every second.
+ */
+public class HypervisorPlacement {
+    private static final Logger log = LoggerFactory.getLogger(HypervisorPlacement.class);
+
+    private static final String SLOT_SUFFIX = ".slot";
+    private static final long POLL_INTERVAL_MILLIS = 1000;
+
+    /**
+     * Slots held by this JVM, shared by all hosts. Closing any channel on a slot file may release the lock of this JVM
+     * on it, so they are not probed. Also the monitor of the placements of this JVM.
+     */
+    private static final Map<File, FileLock> slots = Maps.newHashMap();
+
+    private final List<String> urls;
+    private final String baseDomain;
+    private final int maxClonesPerNode;
+    private final long timeoutMillis;
+    private final File slotDir;
+
+    /**
+     * @param maxClonesPerNode maximum number of clones placed on a host at a time, 0 for no maximum.
+     * @param timeoutSeconds   how long to wait for a host to drop below the maximum.
+     * @param slotDir          of the slot files shared by the JVMs placing clones.
+     */
+    public HypervisorPlacement(List<String> urls, String baseDomain, int maxClonesPerNode, int timeoutSeconds, File slotDir) {
+        this.urls = ImmutableList.copyOf(urls);
+        this.baseDomain = baseDomain;
+        this.maxClonesPerNode = maxClonesPerNode;
+        this.timeoutMillis = timeoutSeconds * 1000L;
+        this.slotDir = slotDir;
+    }
+
+    /** Load of a libvirt host at the time it was queried. */
+    public static class NodeLoad {
+        private final String url;
+        private final int cpus;
+        private final int runningDomains;
+        private final long freeMemory;
+        private final int placed;
+
+        public NodeLoad(String url, int cpus, int runningDomains, long freeMemory, int placed) {
+            this.url = url;
+            this.cpus = cpus;
+            this.runningDomains = runningDomains;
+            this.freeMemory = freeMemory;
+            this.placed = placed;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        public int getPlaced() {
+            return placed;
+        }
+
+        NodeLoad withPlaced(int placed) {
+            return new NodeLoad(url, cpus, runningDomains, freeMemory, placed);
+        }
+
+        public double getLoad() {
+            return (double) (runningDomains + placed) / Math.max(cpus, 1);
+        }
+
+        @Override
+        public String toString() {
+            return Objects.toStringHelper(this)
+                .add("url", url)
+                .add("cpus", cpus)
+                .add("runningDomains", runningDomains)
+                .add("freeMemory", freeMemory)
+                .add("placed", placed).toString();
+        }
+    }
+
+    /**
+     * Choose the least loaded reachable host without counting a clone against it, e.g. to connect to before a clone
+     * is placed.
+     */
+    public String choose() {
+        List<NodeLoad> queried = queryAll();
+        List<NodeLoad> loads = Lists.newArrayList();
+        synchronized (slots) {
+            for (NodeLoad load : queried) {
+                loads.add(load.withPlaced(placedOn(load.getUrl())));
+            }
+        }
+        return leastLoaded(loads, 0).getUrl();
+    }
+
+    /** Choose the least loaded host for a clone and count the clone against it until {@link #release(String)}. */
+    public String acquire() {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        for (;;) {
+            // queried without holding the lock, so releases are not held up by slow hosts
+            List<NodeLoad> queried = queryAll();
+            synchronized (slots) {
+                List<NodeLoad> loads = Lists.newArrayList();
+                for (NodeLoad load : queried) {
+                    loads.add(load.withPlaced(placedOn(load.getUrl())));
+                }
+                NodeLoad chosen = leastLoaded(loads, maxClonesPerNode);
+                // another JVM may have taken the last slot since it was counted
+                if (chosen != null && takeSlot(chosen.getUrl())) {
+                    log.info("Placing clone of {} on {}, {}", baseDomain, chosen.getUrl(), loads);
+                    return chosen.getUrl();
+                }
+                await(deadline);
+            }
+        }
+    }
+
+    /** Count a clone against the given host, waiting for it to drop below the maximum. */
+    public void acquire(String url) {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (slots) {
+            while (!takeSlot(url)) {
+                await(deadline);
+            }
+        }
+    }
+
+    public void release(String url) {
+        synchronized (slots) {
+            String prefix = slotPrefix(url);
+            for (Iterator<Map.Entry<File, FileLock>> it = slots.entrySet().iterator(); it.hasNext();) {
+                Map.Entry<File, FileLock> slot = it.next();
+                if (slot.getKey().getName().startsWith(prefix)) {
+                    it.remove();
+                    unlock(slot.getValue());
+                    break;
+                }
+            }
+            slots.notifyAll();
+        }
+    }
+
+    private void await(long deadline) {
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+            throw new IllegalStateException("No libvirt host of " + urls + " dropped below " + maxClonesPerNode + " clones of " + baseDomain);
+        }
+        try {
+            // slots released by other JVMs do not notify this one
+            slots.wait(Math.min(remaining, POLL_INTERVAL_MILLIS));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a libvirt host", e);
+        }
+    }
+
+    /** Call holding the monitor of {@link #slots}. Clones placed on the host by all JVMs. */
+    private int placedOn(String url) {
+        File[] files = slotDir.listFiles();
+        if (files == null) {
+            return 0;
+        }
+        String prefix = slotPrefix(url);
+        int count = 0;
+        for (File file : files) {
+            if (!file.getName().startsWith(prefix) || !file.getName().endsWith(SLOT_SUFFIX)) {
+                continue;
+            }
+            if (slots.containsKey(file)) {
+                count++;
+                continue;
+            }
+            FileLock lock = tryLock(file);
+            if (lock != null) {
+                unlock(lock);
+            } else {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Call holding the monitor of {@link #slots}. Take the first free slot of the host, of the first
+     * {@link #maxClonesPerNode} when there is a maximum.
+     *
+     * @return whether a slot was free.
+     */
+    private boolean takeSlot(String url) {
+        slotDir.mkdirs();
+        for (int i = 0; maxClonesPerNode <= 0 || i < maxClonesPerNode; i++) {
+            File file = new File(slotDir, slotPrefix(url) + i + SLOT_SUFFIX);
+            if (slots.containsKey(file)) {
+                continue;
+            }
+            FileLock lock = tryLock(file);
+            if (lock != null) {
+                slots.put(file, lock);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** @return the lock, or {@code null} when another JVM holds it. */
+    private static FileLock tryLock(File file) {
+        FileChannel channel = null;
+        try {
+            channel = new RandomAccessFile(file, "rw").getChannel();
+            FileLock lock = channel.tryLock();
+            if (lock == null) {
+                channel.close();
+            }
+            return lock;
+        } catch (IOException e) {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                    //
+                }
+            }
+            throw new LibvirtRuntimeException("Unable to lock placement slot " + file, e);
+        }
+    }
+
+    private static void unlock(FileLock lock) {
+        try {
+            lock.release();
+            lock.channel().close();
+        } catch (IOException e) {
+            log.warn("Unable to release placement slot", e);
+        }
+    }
+
+    /** Ends in a character the URL part never has, so the slots of a host are not counted for a host whose URL it starts. */
+    private static String slotPrefix(String url) {
+        return url.replaceAll("[^A-Za-z0-9.-]", "_") + "@";
+    }
+
+    private List<NodeLoad> queryAll() {
+        List<NodeLoad> loads = Lists.newArrayList();
+        for (String url : urls) {
+            NodeLoad load = query(url);
+            if (load != null) {
+                loads.add(load);
+            }
+        }
+        if (loads.isEmpty()) {
+            throw new IllegalStateException("None of the libvirt hosts " + urls + " with domain " + baseDomain + " is reachable");
+        }
+        return loads;
+    }
+
+    /**
+     * Query a host, or return {@code null} when it is not reachable or does not have the base domain. The clones placed
+     * on it are not counted.
+     */
+    private NodeLoad query(String url) {
+        Connect connect = null;
+        try {
+            connect = new Connect(url, true);
+            connect.domainLookupByName(baseDomain);
+            NodeInfo info = connect.nodeInfo();
+            return new NodeLoad(url, info.cpus, connect.numOfDomains(), connect.getFreeMemory(), 0);
+        } catch (LibvirtException e) {
+            log.warn("Not placing clones of {} on {}: {}", baseDomain, url, e.getMessage());
+            return null;
+        } finally {
+            if (connect != null) {
+                try {
+                    connect.close();
+                } catch (LibvirtException e) {
+                    log.debug("Unable to close connection to {}", url, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Pick the host with the lowest load among those below maxClonesPerNode, preferring the one with more free memory
+     * when loads are equal. Returns {@code null} when all are at the maximum.
+     */
+    static NodeLoad leastLoaded(List<NodeLoad> loads, int maxClonesPerNode) {
+        NodeLoad best = null;
+        for (NodeLoad load : loads) {
+            if (maxClonesPerNode > 0 && load.placed >= maxClonesPerNode) {
+                continue;
+            }
+            if (best == null || load.getLoad() < best.getLoad()
+                || (load.getLoad() == best.getLoad() && load.freeMemory > best.freeMemory)) {
+                best = load;
+            }
+        }
+        return best;
+    }
+}
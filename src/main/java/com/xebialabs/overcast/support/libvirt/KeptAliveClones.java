@@ -0,0 +1,229 @@
+package com.xebialabs.overcast.support.libvirt;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.List;
+import java.util.Map;
+
+import org.libvirt.Connect;
+import org.libvirt.Domain;
+import org.libvirt.DomainInfo.DomainState;
+import org.libvirt.LibvirtException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import com.xebialabs.overcast.support.libvirt.DhcpReservations.Reservation;
+
+/**
+ * Clones left running by teardown so a later setup with the same configuration can adopt them. A kept clone is
+ * tagged in its description with the hash of its configuration, its IP, its DHCP reservation if any and how long it
+ * may stay idle. Clones idle for longer are destroyed by {@link #destroyExpired()}, which also releases their
+ * reservation.
+ * <p>
+ * Clones are adopted and destroyed while holding the lock on a lock file shared by the JVMs of the user on this
+ * machine, so a clone is never adopted twice.
+ */
+public class KeptAliveClones {
+    private static final Logger log = LoggerFactory.getLogger(KeptAliveClones.class);
+
+    static final String TAG = "overcast-keep-alive";
+    private static final String HASH = "hash";
+    private static final String IP = "ip";
+    private static final String TTL = "ttl";
+    private static final String IDLE_SINCE = "idle-since";
+    private static final String DHCP_NETWORK = "dhcp-network";
+    private static final String DHCP_MAC = "dhcp-mac";
+
+    private final Connect connection;
+    private final VirshDriver virsh;
+    private final File lockFile;
+
+    public KeptAliveClones(Connect connection, VirshDriver virsh, File lockFile) {
+        this.connection = connection;
+        this.virsh = virsh;
+        this.lockFile = lockFile;
+    }
+
+    /** A hash of everything that makes a clone suitable for a host. */
+    public static String configHash(String... parts) {
+        return LayerCache.layerKey(TAG, Joiner.on('\n').useForNull("").join(parts), "");
+    }
+
+    /**
+     * Claim an idle clone of the domain with the given prefix and configuration hash.
+     *
+     * @return the claimed clone or {@code null} when there is none.
+     */
+    public DomainWrapper adopt(String namePrefix, String hash) {
+        synchronized (KeptAliveClones.class) {
+            FileLock lock = lock();
+            try {
+                for (DomainWrapper candidate : list()) {
+                    Map<String, String> tag = parseTag(candidate.getDescription());
+                    if (candidate.getName().startsWith(namePrefix) && hash.equals(tag.get(HASH)) && tag.containsKey(IDLE_SINCE)
+                        && candidate.getState() == DomainState.VIR_DOMAIN_RUNNING) {
+                        tag.remove(IDLE_SINCE);
+                        describe(candidate, tag);
+                        log.info("Adopting kept alive clone '{}'", candidate.getName());
+                        return candidate;
+                    }
+                }
+                return null;
+            } finally {
+                unlock(lock);
+            }
+        }
+    }
+
+    /** @return the IP recorded when the clone was kept, or {@code null}. */
+    public static String getIp(DomainWrapper clone) {
+        return parseTag(clone.getDescription()).get(IP);
+    }
+
+    /** @return the DHCP reservation that stayed with the clone, or {@code null}. */
+    public static Reservation getReservation(DomainWrapper clone) {
+        return getReservation(parseTag(clone.getDescription()));
+    }
+
+    static Reservation getReservation(Map<String, String> tag) {
+        if (!tag.containsKey(DHCP_MAC) || !tag.containsKey(IP)) {
+            return null;
+        }
+        return new Reservation(tag.get(DHCP_MAC), tag.get(IP));
+    }
+
+    /**
+     * Leave the clone running, idle from now on.
+     *
+     * @param network the network of the reservation, or {@code null} when it has none.
+     */
+    public void keep(DomainWrapper clone, String hash, String ip, String network, Reservation reservation, int ttlSeconds) {
+        Map<String, String> tag = Maps.newLinkedHashMap();
+        tag.put(HASH, hash);
+        if (ip != null) {
+            tag.put(IP, ip);
+        }
+        if (reservation != null) {
+            tag.put(IP, reservation.getIp());
+            tag.put(DHCP_NETWORK, network);
+            tag.put(DHCP_MAC, reservation.getMac());
+        }
+        tag.put(TTL, String.valueOf(ttlSeconds));
+        tag.put(IDLE_SINCE, String.valueOf(System.currentTimeMillis() / 1000));
+        describe(clone, tag);
+        log.info("Keeping clone '{}' alive for {}s", clone.getName(), ttlSeconds);
+    }
+
+    /** Destroy the clones that have been idle for longer than their TTL. @return the number of destroyed clones. */
+    public int destroyExpired() {
+        synchronized (KeptAliveClones.class) {
+            FileLock lock = lock();
+            try {
+                long now = System.currentTimeMillis() / 1000;
+                int destroyed = 0;
+                for (DomainWrapper candidate : list()) {
+                    Map<String, String> tag = parseTag(candidate.getDescription());
+                    if (isExpired(tag, now)) {
+                        log.info("Destroying kept alive clone '{}', it has been idle for too long", candidate.getName());
+                        try {
+                            candidate.destroyWithDisks();
+                            destroyed++;
+                        } catch (LibvirtRuntimeException e) {
+                            log.warn("Unable to destroy expired clone " + candidate.getName(), e);
+                            continue;
+                        }
+                        Reservation reservation = getReservation(tag);
+                        if (reservation != null) {
+                            DhcpReservations.release(connection, virsh, tag.get(DHCP_NETWORK), reservation);
+                        }
+                    }
+                }
+                return destroyed;
+            } finally {
+                unlock(lock);
+            }
+        }
+    }
+
+    static boolean isExpired(Map<String, String> tag, long now) {
+        if (!tag.containsKey(IDLE_SINCE) || !tag.containsKey(TTL)) {
+            return false;
+        }
+        return Long.parseLong(tag.get(IDLE_SINCE)) + Long.parseLong(tag.get(TTL)) < now;
+    }
+
+    static Map<String, String> parseTag(String description) {
+        Map<String, String> tag = Maps.newLinkedHashMap();
+        if (description == null || !description.startsWith(TAG)) {
+            return tag;
+        }
+        for (String field : Splitter.on(' ').omitEmptyStrings().split(description.substring(TAG.length()))) {
+            int eq = field.indexOf('=');
+            if (eq != -1) {
+                tag.put(field.substring(0, eq), field.substring(eq + 1));
+            }
+        }
+        return tag;
+    }
+
+    static String formatTag(Map<String, String> tag) {
+        StringBuilder sb = new StringBuilder(TAG);
+        for (Map.Entry<String, String> e : tag.entrySet()) {
+            sb.append(' ').append(e.getKey()).append('=').append(e.getValue());
+        }
+        return sb.toString();
+    }
+
+    private void describe(DomainWrapper clone, Map<String, String> tag) {
+        List<String> args = Lists.newArrayList("desc", clone.getName(), "--live");
+        if (clone.isPersistent()) {
+            // survives a shut down of the guest, so the clone still expires
+            args.add("--config");
+        }
+        args.add("--new-desc");
+        args.add(formatTag(tag));
+        virsh.execute(args.toArray(new String[args.size()]));
+    }
+
+    /** FileLocks are held per JVM, threads of this JVM are serialized by the caller. */
+    private FileLock lock() {
+        try {
+            lockFile.getAbsoluteFile().getParentFile().mkdirs();
+            return new RandomAccessFile(lockFile, "rw").getChannel().lock();
+        } catch (IOException e) {
+            throw new LibvirtRuntimeException("Unable to lock kept alive clones", e);
+        }
+    }
+
+    private static void unlock(FileLock lock) {
+        try {
+            lock.release();
+            lock.channel().close();
+        } catch (IOException e) {
+            log.warn("Unable to unlock kept alive clones", e);
+        }
+    }
+
+    private List<DomainWrapper> list() {
+        try {
+            List<DomainWrapper> tagged = Lists.newArrayList();
+            for (Domain domain : LibvirtUtil.listAllDomains(connection)) {
+                DomainWrapper wrapper = LibvirtUtil.wrapUnlessGone(domain);
+                String description = wrapper != null ? wrapper.getDescription() : null;
+                if (description != null && description.startsWith(TAG)) {
+                    tagged.add(wrapper);
+                }
+            }
+            return tagged;
+        } catch (LibvirtException e) {
+            throw new LibvirtRuntimeException("Unable to list domains", e);
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package com.xebialabs.overcast.support.libvirt;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
+import java.nio.channels.FileLock;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.jdom2.Attribute;
+import org.jdom2.Document;
+import org.jdom2.Element;
+import org.jdom2.filter.Filters;
+import org.jdom2.output.Format;
+import org.jdom2.output.XMLOutputter;
+import org.jdom2.xpath.XPathExpression;
+import org.jdom2.xpath.XPathFactory;
+import org.libvirt.Domain;
+import org.libvirt.DomainInfo.DomainState;
+import org.libvirt.LibvirtException;
+import org.libvirt.StorageVol;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Provisioned images of a base domain, kept as shut off domains named {@code <base>.layer-<key>}. The disks of a
+ * layer are overlays of the disks of its parent, the key is a hash of the parent's key and the inputs of the
+ * provisioning step. When a chain of layers gets deeper than the maximum depth, a new layer is flattened into
+ * standalone disks.
+ * <p>
+ * A layer is finished once it is shut off and its description carries the depth written by
+ * {@link #freeze(DomainWrapper, DomainWrapper)}. Layers are looked up and built while holding {@link #lock()}, which
+ * also keeps out the other JVMs of the user on this machine.
+ */
+public class LayerCache {
+    private static final Logger log = LoggerFactory.getLogger(LayerCache.class);
+
+    private static final String DESCRIPTION_PREFIX = "overcast layer depth=";
+    private static final Pattern DESCRIPTION = Pattern.compile(Pattern.quote(DESCRIPTION_PREFIX) + "(\\d+)");
+    private static final int SHUTDOWN_TIMEOUT = 120;
+
+    private final DomainWrapper base;
+    private final int maxDepth;
+    private final File lockDir;
+
+    /** @param lockDir directory of the lock files guarding the layers of each base domain. */
+    public LayerCache(DomainWrapper base, int maxDepth, File lockDir) {
+        this.base = base;
+        this.maxDepth = maxDepth;
+        this.lockDir = lockDir;
+    }
+
+    /** The key of the layer created by a provisioning step on top of the layer with parentKey. */
+    public static String layerKey(String parentKey, String command, String expirationTag) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            byte[] digest = sha1.digest((parentKey + "\n" + command + "\n" + expirationTag).getBytes("UTF-8"));
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < 6; i++) {
+                sb.append(String.format("%02x", digest[i]));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** The key to derive the keys of the first layers from. */
+    public String getBaseKey() {
+        return base.getName();
+    }
+
+    public String layerName(String key) {
+        return base.getName() + ".layer-" + key;
+    }
+
+    /**
+     * Lock the layers of the base domain. FileLocks are held per JVM, threads of this JVM have to be serialized by the
+     * caller.
+     */
+    public FileLock lock() {
+        File file = new File(lockDir, base.getName().replaceAll("[^A-Za-z0-9._-]", "_") + ".lock");
+        try {
+            lockDir.mkdirs();
+            return new RandomAccessFile(file, "rw").getChannel().lock();
+        } catch (IOException e) {
+            throw new LibvirtRuntimeException("Unable to lock layers of " + base.getName(), e);
+        }
+    }
+
+    public static void unlock(FileLock lock) {
+        try {
+            lock.release();
+            lock.channel().close();
+        } catch (IOException e) {
+            log.warn("Unable to unlock layers", e);
+        }
+    }
+
+    /**
+     * Call while holding {@link #lock()}. A domain with the name of the layer that is not finished was left behind by
+     * a run that died while building it, and is removed.
+     *
+     * @return the layer with the key, or {@code null} when it has not been created.
+     */
+    public DomainWrapper findLayer(String key) {
+        DomainWrapper layer = lookup(layerName(key));
+        if (layer == null || isFrozen(layer)) {
+            return layer;
+        }
+        log.warn("Removing unfinished layer '{}'", layer.getName());
+        layer.destroyWithDisks();
+        return null;
+    }
+
+    /**
+     * Call while holding {@link #lock()}. Remove what a dead JVM left of a layer it was building on top of parent,
+     * unless the layer has been finished since.
+     */
+    public void reclaim(String layerName, DomainWrapper parent) {
+        DomainWrapper layer = lookup(layerName);
+        if (layer == null) {
+            parent.deleteCloneDisks(layerName);
+        } else if (!isFrozen(layer)) {
+            layer.destroyWithDisks();
+        }
+    }
+
+    private DomainWrapper lookup(String layerName) {
+        try {
+            return DomainWrapper.newWrapper(base.getConnect().domainLookupByName(layerName));
+        } catch (LibvirtException e) {
+            return null;
+        }
+    }
+
+    /** @return whether the domain is a finished layer, shut off and described by {@link #freeze(DomainWrapper, DomainWrapper)}. */
+    static boolean isFrozen(DomainWrapper layer) {
+        Element description = layer.getDomainXml().getRootElement().getChild("description");
+        return description != null && DESCRIPTION.matcher(description.getText()).matches()
+            && layer.getState() == DomainState.VIR_DOMAIN_SHUTOFF;
+    }
+
+    /** @return the number of overlays between the disks of the domain and a standalone image. */
+    public static int getDepth(DomainWrapper domain) {
+        Element description = domain.getDomainXml().getRootElement().getChild("description");
+        if (description == null) {
+            return 0;
+        }
+        Matcher m = DESCRIPTION.matcher(description.getText());
+        return m.find() ? Integer.parseInt(m.group(1)) : 0;
+    }
+
+    /**
+     * Turn a provisioned clone of parent into a layer. The guest is shut down and, when the chain would get too deep,
+     * its disks are replaced by flattened copies.
+     */
+    public DomainWrapper freeze(DomainWrapper provisioned, DomainWrapper parent) {
+        provisioned.shutdown(SHUTDOWN_TIMEOUT);
+
+        int depth = getDepth(parent) + 1;
+        Document xml = provisioned.getDomainXml().clone();
+        List<StorageVol> replaced = Lists.newArrayList();
+        List<StorageVol> flattened = Lists.newArrayList();
+        if (depth > maxDepth) {
+            log.info("Flattening layer '{}', its chain would be {} deep", provisioned.getName(), depth);
+            XPathFactory xpf = XPathFactory.instance();
+            XPathExpression<Attribute> fileExpr = xpf.compile("source/@file", Filters.attribute());
+            Iterator<Element> disks = xpf.compile("/domain/devices/disk[@device='disk']", Filters.element()).evaluate(xml).iterator();
+            for (Disk d : provisioned.getDisks()) {
+                try {
+                    StorageVol flat = d.createFlattenedCopy(d.getBaseName() + ".flat.qcow2");
+                    flattened.add(flat);
+                    fileExpr.evaluateFirst(disks.next()).setValue(flat.getPath());
+                } catch (LibvirtException e) {
+                    DomainWrapper.rollback(null, flattened);
+                    throw new LibvirtRuntimeException(e);
+                } catch (RuntimeException e) {
+                    DomainWrapper.rollback(null, flattened);
+                    throw e;
+                }
+                replaced.add(d.getVolume());
+            }
+            depth = 0;
+        }
+
+        // clones get their own MAC, a fixed one would keep its DHCP reservation in use
+        for (Element iface : XPathFactory.instance().compile("/domain/devices/interface", Filters.element()).evaluate(xml)) {
+            iface.removeChild("mac");
+        }
+
+        Element root = xml.getRootElement();
+        root.removeChild("description");
+        root.addContent(1, new Element("description").setText(DESCRIPTION_PREFIX + depth));
+        try {
+            StringWriter sw = new StringWriter();
+            new XMLOutputter(Format.getPrettyFormat()).output(xml, sw);
+            Domain layer = base.getConnect().domainDefineXML(sw.toString());
+            for (StorageVol vol : replaced) {
+                deleteReplacedVolume(vol);
+            }
+            log.info("Created layer '{}' with depth {}", layer.getName(), depth);
+            return DomainWrapper.newWrapper(layer);
+        } catch (IOException e) {
+            DomainWrapper.rollback(null, flattened);
+            throw new LibvirtRuntimeException("Unable to define layer", e);
+        } catch (LibvirtException e) {
+            DomainWrapper.rollback(null, flattened);
+            throw new LibvirtRuntimeException("Unable to define layer", e);
+        }
+    }
+
+    private static void deleteReplacedVolume(StorageVol vol) {
+        try {
+            vol.delete(0);
+        } catch (LibvirtException e) {
+            log.warn("Unable to remove disk replaced by its flattened copy", e);
+        }
+    }
+}
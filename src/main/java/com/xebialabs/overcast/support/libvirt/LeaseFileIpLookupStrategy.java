@@ -0,0 +1,61 @@
+package com.xebialabs.overcast.support.libvirt;
+
+import java.io.File;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
+
+import static com.xebialabs.overcast.OvercastProperties.getOvercastProperty;
+
+/**
+ * {@link IpLookupStrategy} that reads the DHCP lease files of a dnsmasq running on the local machine, for instance the
+ * one libvirt starts for its networks. No remote command is needed; the lookup returns as soon as the lease shows up.
+ */
+public class LeaseFileIpLookupStrategy implements IpLookupStrategy {
+    private static final Logger log = LoggerFactory.getLogger(LeaseFileIpLookupStrategy.class);
+
+    private static final String LEASES_FILES_SUFFIX = ".leases.files";
+    private static final String LEASES_TIMEOUT_SUFFIX = ".leases.timeout";
+
+    public static final String LEASES_FILES_DEFAULT = "/var/lib/libvirt/dnsmasq/default.leases,/var/lib/libvirt/dnsmasq/virbr0.status";
+
+    private final DhcpLeaseIndex index;
+    private final int timeout;
+
+    public LeaseFileIpLookupStrategy(List<File> files, int timeout) {
+        this.index = DhcpLeaseIndex.getInstance();
+        this.timeout = timeout;
+        for (File f : files) {
+            index.watch(f);
+        }
+    }
+
+    public static LeaseFileIpLookupStrategy create(String prefix) {
+        List<File> files = Lists.newArrayList();
+        for (String f : Splitter.on(',').trimResults().omitEmptyStrings().split(getOvercastProperty(prefix + LEASES_FILES_SUFFIX, LEASES_FILES_DEFAULT))) {
+            files.add(new File(f));
+        }
+        int timeout = Integer.parseInt(getOvercastProperty(prefix + LEASES_TIMEOUT_SUFFIX, "60"));
+        return new LeaseFileIpLookupStrategy(files, timeout);
+    }
+
+    @Override
+    public String lookup(String mac) {
+        log.info("Waiting up to {}s for a DHCP lease for MAC={}", timeout, mac);
+        try {
+            String ip = index.await(mac, timeout * 1000L);
+            if (ip == null) {
+                throw new RuntimeException("No IP found for MAC: " + mac);
+            }
+            log.debug("Found IP={} for MAC={}", ip, mac);
+            return ip;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while looking up IP for MAC: " + mac, e);
+        }
+    }
+}
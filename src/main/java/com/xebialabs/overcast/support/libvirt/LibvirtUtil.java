@@ -1,18 +1,33 @@
 package com.xebialabs.overcast.support.libvirt;
 
+import java.util.List;
+import java.util.Set;
+
 import org.libvirt.Connect;
+import org.libvirt.Domain;
 import org.libvirt.LibvirtException;
 import org.libvirt.StoragePool;
 import org.libvirt.StorageVol;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
 public class LibvirtUtil {
     private static final Logger log = LoggerFactory.getLogger(LibvirtUtil.class);
 
     /** Look up a disk image's {@link StorageVol} in the {@link StoragePool}s attached to connection. */
     public static StorageVol findVolume(Connect connection, String path) throws LibvirtException {
         log.debug("Looking up StorageVolume for path '{}'", path);
+        try {
+            StorageVol vol = connection.storageVolLookupByPath(path);
+            if (vol != null) {
+                return vol;
+            }
+        } catch (LibvirtException e) {
+            log.debug("Direct lookup of volume '{}' failed, scanning pools", path);
+        }
         for (String s : connection.listStoragePools()) {
             StoragePool sp = connection.storagePoolLookupByName(s);
             for (String v : sp.listVolumes()) {
@@ -26,6 +41,77 @@ public class LibvirtUtil {
         throw new LibvirtRuntimeException("no volume found for path " + path);
     }
 
+    /**
+     * List all running (including transient) and defined {@link Domain}s. Domains that are destroyed or undefined
+     * between listing and looking them up are left out.
+     */
+    public static List<Domain> listAllDomains(Connect connection) throws LibvirtException {
+        List<Domain> domains = Lists.newArrayList();
+        for (int id : connection.listDomains()) {
+            try {
+                domains.add(connection.domainLookupByID(id));
+            } catch (LibvirtException e) {
+                log.debug("Domain with id {} is gone, skipping it", id);
+            }
+        }
+        for (String name : connection.listDefinedDomains()) {
+            try {
+                domains.add(connection.domainLookupByName(name));
+            } catch (LibvirtException e) {
+                log.debug("Domain '{}' is gone, skipping it", name);
+            }
+        }
+        return domains;
+    }
+
+    /** Wrap a domain listed by {@link #listAllDomains(Connect)}, or {@code null} when it has disappeared since. */
+    static DomainWrapper wrapUnlessGone(Domain domain) {
+        try {
+            return DomainWrapper.newWrapper(domain);
+        } catch (LibvirtRuntimeException e) {
+            log.debug("Domain disappeared while listing, skipping it", e);
+            return null;
+        }
+    }
+
+    /** List the active {@link StoragePool}s attached to connection. */
+    public static List<StoragePool> listActivePools(Connect connection) throws LibvirtException {
+        List<StoragePool> pools = Lists.newArrayList();
+        for (String name : connection.listStoragePools()) {
+            pools.add(connection.storagePoolLookupByName(name));
+        }
+        return pools;
+    }
+
+    /** Collect the paths of the disk images used by any running or defined {@link Domain}. */
+    public static Set<String> findDiskFilesInUse(Connect connection) throws LibvirtException {
+        Set<String> files = Sets.newHashSet();
+        for (Domain domain : listAllDomains(connection)) {
+            DomainWrapper wrapper = wrapUnlessGone(domain);
+            if (wrapper != null) {
+                files.addAll(wrapper.getDiskFiles());
+            }
+        }
+        return files;
+    }
+
+    /** Look up the running or defined {@link Domain} with an interface with the given MAC, or {@code null}. */
+    public static Domain findDomainWithMac(Connect connection, String mac) throws LibvirtException {
+        for (Domain domain : listAllDomains(connection)) {
+            DomainWrapper wrapper = wrapUnlessGone(domain);
+            if (wrapper == null) {
+                continue;
+            }
+            for (String m : wrapper.getMacs().values()) {
+                if (m.equalsIgnoreCase(mac)) {
+                    log.debug("Found domain '{}' for mac '{}'", wrapper.getName(), mac);
+                    return domain;
+                }
+            }
+        }
+        return null;
+    }
+
     public static StoragePool findStoragePoolWithFile(Connect conn, String path) throws LibvirtException {
         for (String spn : conn.listStoragePools()) {
             StoragePool sp = conn.storagePoolLookupByName(spn);
@@ -0,0 +1,200 @@
+package com.xebialabs.overcast.support.libvirt;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StringWriter;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.util.List;
+
+import org.jdom2.Attribute;
+import org.jdom2.Document;
+import org.jdom2.Element;
+import org.jdom2.JDOMException;
+import org.jdom2.filter.Filters;
+import org.jdom2.input.SAXBuilder;
+import org.jdom2.output.Format;
+import org.jdom2.output.XMLOutputter;
+import org.jdom2.xpath.XPathExpression;
+import org.jdom2.xpath.XPathFactory;
+import org.libvirt.Connect;
+import org.libvirt.Domain;
+import org.libvirt.LibvirtException;
+import org.libvirt.StorageVol;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.util.StringInputStream;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
+import com.xebialabs.overcast.command.NonZeroCodeException;
+
+/**
+ * A booted clone of a base domain whose memory is saved to an image on the libvirt host. Restoring the image onto new
+ * overlays of the template's disks skips booting the guest.
+ * <p>
+ * Libvirt only allows host specific changes to the domain when restoring, the UUID and MACs stay those of the
+ * template. Only one clone restored from a template can run on a libvirt host at a time, check {@link #isInUse()}
+ * before restoring. Templates are created and restored while holding {@link #lock(File)}.
+ */
+public class MemoryStateTemplate {
+    private static final Logger log = LoggerFactory.getLogger(MemoryStateTemplate.class);
+
+    private static final String XPATH_DISK = "/domain/devices/disk[@device='disk']";
+
+    private final Connect connection;
+    private final DomainWrapper base;
+    private final VirshDriver virsh;
+    private final String imagePath;
+
+    public MemoryStateTemplate(Connect connection, DomainWrapper base, VirshDriver virsh, String imageDir) {
+        this.connection = connection;
+        this.base = base;
+        this.virsh = virsh;
+        this.imagePath = imageDir + "/" + getName() + ".save";
+    }
+
+    /** The template is named so its disks are not taken for clone disks of the base domain. */
+    public String getName() {
+        return base.getName() + ".memstate";
+    }
+
+    public String getImagePath() {
+        return imagePath;
+    }
+
+    public boolean exists() {
+        try {
+            virsh.execute("save-image-dumpxml", imagePath);
+            return true;
+        } catch (NonZeroCodeException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Lock the template. FileLocks are held per JVM, threads of this JVM have to be serialized by the caller.
+     *
+     * @param lockDir directory of the lock files guarding the templates.
+     */
+    public FileLock lock(File lockDir) {
+        File file = new File(lockDir, getName().replaceAll("[^A-Za-z0-9._-]", "_") + ".lock");
+        try {
+            lockDir.mkdirs();
+            return new RandomAccessFile(file, "rw").getChannel().lock();
+        } catch (IOException e) {
+            throw new LibvirtRuntimeException("Unable to lock memory state template " + getName(), e);
+        }
+    }
+
+    public static void unlock(FileLock lock) {
+        try {
+            lock.release();
+            lock.channel().close();
+        } catch (IOException e) {
+            log.warn("Unable to unlock memory state template", e);
+        }
+    }
+
+    /** Whether a clone restored from the template is running. Restored clones all have the UUID of the template. */
+    public boolean isInUse() {
+        try {
+            Document xml = new SAXBuilder().build(new StringInputStream(virsh.execute("save-image-dumpxml", imagePath)));
+            String uuid = xml.getRootElement().getChildTextTrim("uuid");
+            if (uuid == null) {
+                return false;
+            }
+            Domain domain;
+            try {
+                domain = connection.domainLookupByUUIDString(uuid);
+            } catch (LibvirtException e) {
+                return false;
+            }
+            return domain.isActive() == 1;
+        } catch (JDOMException e) {
+            throw new LibvirtRuntimeException(e);
+        } catch (IOException e) {
+            throw new LibvirtRuntimeException("Unable to read memory state template " + getName(), e);
+        } catch (LibvirtException e) {
+            throw new LibvirtRuntimeException("Unable to read memory state template " + getName(), e);
+        }
+    }
+
+    /** Boot a clone of the base domain, give the guest bootSeconds to settle and save its memory. */
+    public void create(int bootSeconds, CloneOptions options) {
+        log.info("Creating memory state template '{}' from '{}'", getName(), base.getName());
+        DomainWrapper template = base.cloneWithBackingStore(getName(), options);
+        sleep(bootSeconds);
+        // the template disks stay, they are the backing store of the restored clones
+        template.saveAndUndefine(imagePath);
+    }
+
+    /**
+     * Restore a running clone from the template. The overlays are named like those of a clone of the base domain so
+     * {@link DomainWrapper#deleteCloneDisks(String)} on the base domain finds them.
+     */
+    public DomainWrapper restore(String cloneName, CloneOptions options) {
+        List<StorageVol> cloneDisks = Lists.newArrayList();
+        try {
+            Document xml = new SAXBuilder().build(new StringInputStream(virsh.execute("save-image-dumpxml", imagePath)));
+            xml.getRootElement().getChild("name").setText(cloneName);
+
+            XPathFactory xpf = XPathFactory.instance();
+            XPathExpression<Element> diskExpr = xpf.compile(XPATH_DISK, Filters.element());
+            XPathExpression<Attribute> fileExpr = xpf.compile("source/@file", Filters.attribute());
+            XPathExpression<Attribute> devExpr = xpf.compile("target/@dev", Filters.attribute());
+            XPathExpression<Attribute> typeExpr = xpf.compile("driver[@name='qemu']/@type", Filters.attribute());
+
+            List<Element> diskElements = diskExpr.evaluate(xml);
+            List<Disk> templateDisks = Lists.newArrayList();
+            for (Element disk : diskElements) {
+                String file = fileExpr.evaluateFirst(disk).getValue();
+                templateDisks.add(new Disk(devExpr.evaluateFirst(disk).getValue(), file, LibvirtUtil.findVolume(connection, file),
+                    typeExpr.evaluateFirst(disk).getValue()));
+            }
+            List<String> names = Lists.newArrayList();
+            for (Disk d : base.getDisks()) {
+                names.add(DomainWrapper.cloneDiskName(d, cloneName));
+            }
+            // the restored domain must match the template, only the overlays can be tuned
+            cloneDisks.addAll(DomainWrapper.createCloneDisks(templateDisks, names, options));
+            for (int i = 0; i < diskElements.size(); i++) {
+                fileExpr.evaluateFirst(diskElements.get(i)).setValue(cloneDisks.get(i).getPath());
+            }
+
+            File xmlFile = File.createTempFile(cloneName, ".xml");
+            try {
+                StringWriter sw = new StringWriter();
+                new XMLOutputter(Format.getPrettyFormat()).output(xml, sw);
+                Files.write(sw.toString(), xmlFile, Charset.forName("UTF-8"));
+                log.info("Restoring clone '{}' from {}", cloneName, imagePath);
+                virsh.execute("restore", imagePath, "--xml", xmlFile.getPath());
+            } finally {
+                xmlFile.delete();
+            }
+            return DomainWrapper.newWrapper(connection.domainLookupByName(cloneName));
+        } catch (JDOMException e) {
+            DomainWrapper.rollback(null, cloneDisks);
+            throw new LibvirtRuntimeException(e);
+        } catch (IOException e) {
+            DomainWrapper.rollback(null, cloneDisks);
+            throw new LibvirtRuntimeException("Unable to restore clone", e);
+        } catch (LibvirtException e) {
+            DomainWrapper.rollback(null, cloneDisks);
+            throw new LibvirtRuntimeException("Unable to restore clone", e);
+        } catch (RuntimeException e) {
+            DomainWrapper.rollback(null, cloneDisks);
+            throw e;
+        }
+    }
+
+    private static void sleep(final int seconds) {
+        try {
+            Thread.sleep(seconds * 1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
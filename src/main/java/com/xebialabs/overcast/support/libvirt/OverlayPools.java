@@ -0,0 +1,70 @@
+package com.xebialabs.overcast.support.libvirt;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.libvirt.Connect;
+import org.libvirt.LibvirtException;
+import org.libvirt.StoragePool;
+import org.libvirt.StoragePoolInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+/**
+ * Storage pools that clone overlays are placed in instead of the pool of the disk they are backed by, typically
+ * directory pools on a tmpfs. Successive overlays are spread over the pools round robin, a pool with less than the
+ * configured amount of free space is skipped.
+ */
+public class OverlayPools {
+    private static final Logger log = LoggerFactory.getLogger(OverlayPools.class);
+
+    // shared by all hosts, so clones that are started in parallel do not all start with the first pool
+    private static final AtomicInteger next = new AtomicInteger();
+
+    private final Connect connect;
+    private final List<String> poolNames;
+    private final long minFreeBytes;
+
+    public OverlayPools(Connect connect, List<String> poolNames, long minFreeBytes) {
+        this.connect = connect;
+        this.poolNames = ImmutableList.copyOf(poolNames);
+        this.minFreeBytes = minFreeBytes;
+    }
+
+    public List<String> getPoolNames() {
+        return poolNames;
+    }
+
+    /**
+     * Get the pools with at least the minimum amount of free space, in the order they should be tried. Pools that
+     * do not exist or are not active are left out and an empty list is returned when all pools are full.
+     */
+    public List<StoragePool> candidates() {
+        int start = (next.getAndIncrement() & Integer.MAX_VALUE) % poolNames.size();
+        List<StoragePool> candidates = Lists.newArrayList();
+        for (int i = 0; i < poolNames.size(); i++) {
+            String name = poolNames.get((start + i) % poolNames.size());
+            try {
+                StoragePool pool = connect.storagePoolLookupByName(name);
+                // libvirt only tracks the space used by volumes it created, overlays grow behind its back
+                pool.refresh(0);
+                StoragePoolInfo info = pool.getInfo();
+                if (info.state != StoragePoolInfo.StoragePoolState.VIR_STORAGE_POOL_RUNNING) {
+                    log.warn("Overlay pool {} is not running", name);
+                    continue;
+                }
+                if (info.available < minFreeBytes) {
+                    log.info("Overlay pool {} has {} bytes available, skipping it", name, info.available);
+                    continue;
+                }
+                candidates.add(pool);
+            } catch (LibvirtException e) {
+                log.warn("Unable to use overlay pool {}: {}", name, e.getMessage());
+            }
+        }
+        return candidates;
+    }
+}
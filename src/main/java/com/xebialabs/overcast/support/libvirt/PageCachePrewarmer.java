@@ -0,0 +1,177 @@
+package com.xebialabs.overcast.support.libvirt;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+import org.jdom2.Document;
+import org.jdom2.Element;
+import org.jdom2.JDOMException;
+import org.jdom2.filter.Filters;
+import org.jdom2.input.SAXBuilder;
+import org.jdom2.xpath.XPathFactory;
+import org.libvirt.Connect;
+import org.libvirt.LibvirtException;
+import org.libvirt.StorageVol;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.util.StringInputStream;
+import com.google.common.collect.Lists;
+
+/**
+ * Reads images into the page cache before clones start from them, so a batch of clones does not fault the same
+ * backing image from disk at once. Only works for images that are readable on the machine running the tests, i.e.
+ * for a local libvirt.
+ */
+public class PageCachePrewarmer {
+    private static final Logger log = LoggerFactory.getLogger(PageCachePrewarmer.class);
+
+    private static final String XPATH_VOLUME_BACKING_STORE = "/volume/backingStore/path";
+
+    // residency is measured per chunk, a chunk counts as resident when all of its pages are
+    private static final int CHUNK_SIZE = 4 * 1024 * 1024;
+
+    private PageCachePrewarmer() {
+    }
+
+    /** Bytes of a file and how many of them were in the page cache before and after prewarming. */
+    public static class Residency {
+        private final String file;
+        private final long size;
+        private final long residentBefore;
+        private final long residentAfter;
+
+        Residency(String file, long size, long residentBefore, long residentAfter) {
+            this.file = file;
+            this.size = size;
+            this.residentBefore = residentBefore;
+            this.residentAfter = residentAfter;
+        }
+
+        public String getFile() {
+            return file;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getResidentBefore() {
+            return residentBefore;
+        }
+
+        public long getResidentAfter() {
+            return residentAfter;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d of %d MiB resident before, %d after", file, residentBefore >> 20, size >> 20, residentAfter >> 20);
+        }
+    }
+
+    /** Map the file read-only chunk by chunk and touch every page of it. */
+    public static Residency prewarm(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            long before = 0;
+            long after = 0;
+            for (long position = 0; position < size; position += CHUNK_SIZE) {
+                long length = Math.min(CHUNK_SIZE, size - position);
+                MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                if (chunk.isLoaded()) {
+                    before += length;
+                }
+                chunk.load();
+                if (chunk.isLoaded()) {
+                    after += length;
+                }
+            }
+            return new Residency(file.getPath(), size, before, after);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Prewarm the images of all disks of the domain including the images they are backed by. Images that are not
+     * readable locally are skipped.
+     */
+    public static List<Residency> prewarm(DomainWrapper domain) {
+        List<Residency> result = Lists.newArrayList();
+        for (Disk d : domain.getDisks()) {
+            for (String path : backingChain(domain.getConnect(), d.getVolume())) {
+                Residency residency = prewarm(path);
+                if (residency != null) {
+                    result.add(residency);
+                }
+            }
+        }
+        return result;
+    }
+
+    /** Prewarm a single image, e.g. a saved memory state, or return {@code null} when it is not readable locally. */
+    public static Residency prewarm(String path) {
+        File file = new File(path);
+        if (!file.canRead()) {
+            log.info("Image {} is not readable on this machine, not prewarming it", path);
+            return null;
+        }
+        try {
+            Residency residency = prewarm(file);
+            log.info("Prewarmed {}", residency);
+            return residency;
+        } catch (IOException e) {
+            log.warn("Unable to prewarm {}: {}", path, e.getMessage());
+            return null;
+        }
+    }
+
+    /** Get the path of the volume and of every image below it. */
+    static List<String> backingChain(Connect connect, StorageVol volume) {
+        List<String> chain = Lists.newArrayList();
+        try {
+            StorageVol vol = volume;
+            while (vol != null) {
+                chain.add(vol.getPath());
+                String backingFile = getBackingFile(vol);
+                vol = backingFile != null ? findVolume(connect, backingFile, chain) : null;
+            }
+        } catch (LibvirtException e) {
+            throw new LibvirtRuntimeException("Unable to determine backing chain", e);
+        }
+        return chain;
+    }
+
+    /**
+     * Find the volume of a backing file. A backing file outside every storage pool ends the chain; its path is still
+     * added so it gets prewarmed when it is readable locally.
+     */
+    private static StorageVol findVolume(Connect connect, String backingFile, List<String> chain) throws LibvirtException {
+        try {
+            return LibvirtUtil.findVolume(connect, backingFile);
+        } catch (LibvirtRuntimeException e) {
+            log.info("Backing file {} is not in any storage pool, not looking further down its chain", backingFile);
+            chain.add(backingFile);
+            return null;
+        }
+    }
+
+    private static String getBackingFile(StorageVol vol) throws LibvirtException {
+        try {
+            Document volumeXml = new SAXBuilder().build(new StringInputStream(vol.getXMLDesc(0)));
+            Element backingStore = XPathFactory.instance().compile(XPATH_VOLUME_BACKING_STORE, Filters.element()).evaluateFirst(volumeXml);
+            return backingStore != null ? backingStore.getTextTrim() : null;
+        } catch (JDOMException e) {
+            throw new LibvirtRuntimeException(e);
+        } catch (IOException e) {
+            throw new LibvirtRuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.xebialabs.overcast.support.libvirt;
+
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import com.xebialabs.overcast.command.NonZeroCodeException;
+
+/**
+ * Talks to the qemu guest agent inside a domain. The agent answers over a virtio serial channel, so it can tell
+ * whether the guest is up and which addresses its interfaces have without any network access to the guest.
+ */
+public class QemuGuestAgent {
+    private static final Logger log = LoggerFactory.getLogger(QemuGuestAgent.class);
+
+    public static final String CHANNEL_NAME = "org.qemu.guest_agent.0";
+
+    private static final String GUEST_PING = "{\"execute\":\"guest-ping\"}";
+    private static final String GUEST_NETWORK_GET_INTERFACES = "{\"execute\":\"guest-network-get-interfaces\"}";
+    private static final int COMMAND_TIMEOUT = 5;
+
+    private static final Pattern HARDWARE_ADDRESS = Pattern.compile("\"hardware-address\"\\s*:\\s*\"([^\"]+)\"");
+    private static final Pattern IP_ADDRESS_OBJECT = Pattern.compile("\\{[^{}]*\\}");
+    private static final Pattern IP_ADDRESS = Pattern.compile("\"ip-address\"\\s*:\\s*\"([^\"]+)\"");
+    private static final Pattern IPV4 = Pattern.compile("\"ip-address-type\"\\s*:\\s*\"ipv4\"");
+
+    private final VirshDriver virsh;
+    private final String domain;
+
+    public QemuGuestAgent(VirshDriver virsh, String domain) {
+        this.virsh = virsh;
+        this.domain = domain;
+    }
+
+    /** @return whether the agent in the guest responds. */
+    public boolean ping() {
+        try {
+            virsh.qemuAgentCommand(domain, GUEST_PING, COMMAND_TIMEOUT);
+            return true;
+        } catch (NonZeroCodeException e) {
+            log.debug("Guest agent of '{}' not responding: {}", domain, e.getResponse().getErrors().trim());
+            return false;
+        }
+    }
+
+    /** @return the non loopback IPv4 addresses of the guest interfaces keyed by lowercase MAC. */
+    public Map<String, List<String>> getInterfaceAddresses() {
+        return parseInterfaces(virsh.qemuAgentCommand(domain, GUEST_NETWORK_GET_INTERFACES, COMMAND_TIMEOUT));
+    }
+
+    /**
+     * Wait until the guest agent responds and reports an IPv4 address for the MAC.
+     *
+     * @param mac the MAC of the interface or {@code null} to accept the first address of any interface.
+     * @param timeout seconds to wait.
+     * @return the IP or {@code null} when none was reported within the timeout.
+     */
+    public String waitForIp(String mac, int timeout) {
+        long deadline = System.currentTimeMillis() + timeout * 1000L;
+        boolean alive = false;
+        while (System.currentTimeMillis() < deadline) {
+            if (!alive) {
+                alive = ping();
+                if (alive) {
+                    log.info("Guest agent of '{}' is alive", domain);
+                }
+            }
+            if (alive) {
+                try {
+                    String ip = selectIp(getInterfaceAddresses(), mac);
+                    if (ip != null) {
+                        return ip;
+                    }
+                } catch (NonZeroCodeException e) {
+                    log.debug("Unable to get interfaces of '{}': {}", domain, e.getResponse().getErrors().trim());
+                }
+            }
+            sleep(1);
+        }
+        return null;
+    }
+
+    static String selectIp(Map<String, List<String>> addresses, String mac) {
+        if (mac != null) {
+            List<String> ips = addresses.get(mac.toLowerCase());
+            return ips == null || ips.isEmpty() ? null : ips.get(0);
+        }
+        for (List<String> ips : addresses.values()) {
+            if (!ips.isEmpty()) {
+                return ips.get(0);
+            }
+        }
+        return null;
+    }
+
+    /** Parse the reply of {@code guest-network-get-interfaces}. */
+    static Map<String, List<String>> parseInterfaces(String json) {
+        Map<String, List<String>> addresses = Maps.newLinkedHashMap();
+        for (String iface : objectsAtDepth(json, 2)) {
+            Matcher mac = HARDWARE_ADDRESS.matcher(iface);
+            if (!mac.find()) {
+                continue;
+            }
+            List<String> ips = Lists.newArrayList();
+            Matcher ipObject = IP_ADDRESS_OBJECT.matcher(iface);
+            while (ipObject.find()) {
+                String o = ipObject.group();
+                Matcher ip = IP_ADDRESS.matcher(o);
+                if (IPV4.matcher(o).find() && ip.find() && !ip.group(1).startsWith("127.")) {
+                    ips.add(ip.group(1));
+                }
+            }
+            addresses.put(mac.group(1).toLowerCase(), ips);
+        }
+        return addresses;
+    }
+
+    /** Cut the JSON objects nested at the given depth out of a document, the outer object being depth 1. */
+    private static List<String> objectsAtDepth(String json, int depth) {
+        List<String> objects = Lists.newArrayList();
+        int current = 0;
+        int start = -1;
+        for (int i = 0; i < json.length(); i++) {
+            char c = json.charAt(i);
+            if (c == '{') {
+                current++;
+                if (current == depth) {
+                    start = i;
+                }
+            } else if (c == '}') {
+                if (current == depth && start != -1) {
+                    objects.add(json.substring(start, i + 1));
+                    start = -1;
+                }
+                current--;
+            }
+        }
+        return objects;
+    }
+
+    private static void sleep(final int seconds) {
+        try {
+            Thread.sleep(seconds * 1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
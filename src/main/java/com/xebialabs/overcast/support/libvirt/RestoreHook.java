@@ -0,0 +1,53 @@
+package com.xebialabs.overcast.support.libvirt;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Brings a clone restored from a {@link MemoryStateTemplate} up to date with the world it woke up in.
+ */
+public enum RestoreHook {
+    /** Take the links of all interfaces down and up again, so the guest renews its DHCP lease. */
+    LINK {
+        @Override
+        public void afterRestore(VirshDriver virsh, DomainWrapper clone) {
+            for (String mac : clone.getMacs().values()) {
+                virsh.execute("domif-setlink", clone.getName(), mac, "down");
+                sleep(LINK_DOWN_MILLIS);
+                virsh.execute("domif-setlink", clone.getName(), mac, "up");
+            }
+        }
+    },
+    /** Set the guest clock to the host's time, requires the qemu guest agent. */
+    CLOCK {
+        @Override
+        public void afterRestore(VirshDriver virsh, DomainWrapper clone) {
+            virsh.execute("domtime", clone.getName(), "--now");
+        }
+    };
+
+    private static final Logger log = LoggerFactory.getLogger(RestoreHook.class);
+    private static final int LINK_DOWN_MILLIS = 1000;
+
+    public abstract void afterRestore(VirshDriver virsh, DomainWrapper clone);
+
+    /** Run the hooks, a failing hook is logged and does not fail the restore. */
+    public static void runAll(Iterable<RestoreHook> hooks, VirshDriver virsh, DomainWrapper clone) {
+        for (RestoreHook hook : hooks) {
+            try {
+                log.debug("Running restore hook {} for '{}'", hook, clone.getName());
+                hook.afterRestore(virsh, clone);
+            } catch (RuntimeException e) {
+                log.warn("Restore hook " + hook + " failed for " + clone.getName(), e);
+            }
+        }
+    }
+
+    private static void sleep(int millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
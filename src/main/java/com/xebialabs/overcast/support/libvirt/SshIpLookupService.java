@@ -0,0 +1,224 @@
+package com.xebialabs.overcast.support.libvirt;
+
+import java.net.URI;
+import java.text.MessageFormat;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import com.xebialabs.overthere.CmdLine;
+import com.xebialabs.overthere.OverthereConnection;
+import com.xebialabs.overthere.util.CapturingOverthereExecutionOutputHandler;
+
+import static com.xebialabs.overcast.OverthereUtil.overthereConnectionFromURI;
+import static com.xebialabs.overthere.util.CapturingOverthereExecutionOutputHandler.capturingHandler;
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
+
+/**
+ * Resolves MAC addresses to IPs over a single, long lived overthere connection per lookup URL. Pending lookups are
+ * combined into one remote command per tick, each lookup command being preceded by a marker line on stdout and on
+ * stderr so the combined output and errors can be attributed to the MAC they belong to.
+ */
+class SshIpLookupService {
+    private static final Logger log = LoggerFactory.getLogger(SshIpLookupService.class);
+
+    static final String MARKER = "overcast-mac";
+
+    private static final long TICK_MILLIS = 1000;
+    private static final int IDLE_TICKS_BEFORE_CLOSE = 30;
+
+    private static final ConcurrentMap<URI, SshIpLookupService> services = Maps.newConcurrentMap();
+
+    private final URI url;
+    private final ScheduledExecutorService executor;
+    private final List<Lookup> pending = Lists.newArrayList();
+
+    private OverthereConnection connection;
+    private int idleTicks;
+
+    private SshIpLookupService(URI url) {
+        this.url = url;
+        this.executor = newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setDaemon(true).setNameFormat("SSH IP lookup " + url.getHost() + "-%d").build());
+        this.executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                tick();
+            }
+        }, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /** Get the service for the given URL, all lookups for the same URL share one connection. */
+    static SshIpLookupService forUrl(URI url) {
+        SshIpLookupService service = services.get(url);
+        if (service == null) {
+            SshIpLookupService created = new SshIpLookupService(url);
+            service = services.putIfAbsent(url, created);
+            if (service == null) {
+                service = created;
+            } else {
+                created.executor.shutdownNow();
+            }
+        }
+        return service;
+    }
+
+    /**
+     * Look up the IP of a MAC, blocking until the command returns output for it.
+     *
+     * @param command the command to execute, {0} is expanded to the MAC address.
+     * @param timeout number of seconds to keep trying.
+     */
+    String lookup(String command, String mac, int timeout) {
+        Lookup lookup = new Lookup(mac, MessageFormat.format(command, mac), System.currentTimeMillis() + timeout * 1000L);
+        synchronized (this) {
+            pending.add(lookup);
+        }
+        log.info("Queued IP lookup for MAC={} on {}", mac, url.getHost());
+        try {
+            return lookup.result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            lookup.result.cancel(false);
+            throw new RuntimeException("Interrupted while looking up IP for MAC: " + mac, e);
+        } catch (ExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+
+    private void tick() {
+        List<Lookup> batch;
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            for (Iterator<Lookup> it = pending.iterator(); it.hasNext();) {
+                Lookup lookup = it.next();
+                if (lookup.result.isDone()) {
+                    it.remove();
+                } else if (lookup.deadline < now) {
+                    lookup.result.setException(new RuntimeException("No IP found for MAC: " + lookup.mac));
+                    it.remove();
+                }
+            }
+            if (pending.isEmpty()) {
+                if (connection != null && ++idleTicks > IDLE_TICKS_BEFORE_CLOSE) {
+                    closeConnection();
+                }
+                return;
+            }
+            idleTicks = 0;
+            batch = Lists.newArrayList(pending);
+        }
+
+        Map<String, String> commands = Maps.newLinkedHashMap();
+        for (Lookup lookup : batch) {
+            commands.put(lookup.mac, lookup.command);
+        }
+        CmdLine cmdLine = new CmdLine();
+        cmdLine.addRaw(buildBatchCommand(commands));
+        log.debug("Looking up {} MACs on {}", commands.size(), url.getHost());
+
+        try {
+            if (connection == null) {
+                connection = overthereConnectionFromURI(url);
+            }
+            CapturingOverthereExecutionOutputHandler outputHandler = capturingHandler();
+            CapturingOverthereExecutionOutputHandler errorOutputHandler = capturingHandler();
+            connection.execute(outputHandler, errorOutputHandler, cmdLine);
+            Map<String, List<String>> errors = groupByMarker(errorOutputHandler.getOutputLines());
+            Map<String, String> ips = parseBatchOutput(outputHandler.getOutputLines());
+            for (Lookup lookup : batch) {
+                List<String> error = errors.get(lookup.mac);
+                String ip = ips.get(lookup.mac);
+                if (error != null) {
+                    lookup.result.setException(new RuntimeException("Had stderror: " + Joiner.on('\n').join(error)));
+                } else if (ip != null) {
+                    log.debug("Found IP={} for MAC={}", ip, lookup.mac);
+                    lookup.result.set(ip);
+                }
+            }
+        } catch (RuntimeException e) {
+            // retry with a fresh connection on the next tick
+            log.warn("IP lookup on {} failed: {}", url.getHost(), e.getMessage());
+            closeConnection();
+        }
+    }
+
+    private synchronized void closeConnection() {
+        if (connection != null) {
+            log.debug("Closing IP lookup connection to {}", url.getHost());
+            try {
+                connection.close();
+            } finally {
+                connection = null;
+            }
+        }
+    }
+
+    /** Combine the per MAC commands into one shell command, preceding each by a marker line on stdout and stderr. */
+    static String buildBatchCommand(Map<String, String> commandsByMac) {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, String> e : commandsByMac.entrySet()) {
+            if (sb.length() > 0) {
+                sb.append("; ");
+            }
+            String marker = "echo '" + MARKER + ' ' + e.getKey() + "'";
+            sb.append(marker).append("; ").append(marker).append(" >&2; ").append(e.getValue());
+        }
+        return sb.toString();
+    }
+
+    /** Map each MAC to the first output line following its marker, MACs without output are left out. */
+    static Map<String, String> parseBatchOutput(List<String> lines) {
+        Map<String, String> ips = Maps.newHashMap();
+        for (Map.Entry<String, List<String>> e : groupByMarker(lines).entrySet()) {
+            ips.put(e.getKey(), e.getValue().get(0));
+        }
+        return ips;
+    }
+
+    /** Map each MAC to the non empty lines following its marker, MACs without any are left out. */
+    static Map<String, List<String>> groupByMarker(List<String> lines) {
+        Map<String, List<String>> byMac = Maps.newHashMap();
+        String mac = null;
+        for (String line : lines) {
+            String trimmed = line.trim();
+            if (trimmed.startsWith(MARKER + " ")) {
+                mac = trimmed.substring(MARKER.length() + 1);
+            } else if (mac != null && !trimmed.isEmpty()) {
+                List<String> macLines = byMac.get(mac);
+                if (macLines == null) {
+                    macLines = Lists.newArrayList();
+                    byMac.put(mac, macLines);
+                }
+                macLines.add(trimmed);
+            }
+        }
+        return byMac;
+    }
+
+    private static class Lookup {
+        private final String mac;
+        private final String command;
+        private final long deadline;
+        private final SettableFuture<String> result = SettableFuture.create();
+
+        Lookup(String mac, String command, long deadline) {
+            this.mac = mac;
+            this.command = command;
+            this.deadline = deadline;
+        }
+    }
+}
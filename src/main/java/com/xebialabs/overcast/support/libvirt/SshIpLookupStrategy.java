@@ -7,17 +7,12 @@ import java.text.MessageFormat;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.xebialabs.overthere.CmdLine;
-import com.xebialabs.overthere.OverthereConnection;
-import com.xebialabs.overthere.util.CapturingOverthereExecutionOutputHandler;
-
 import static com.xebialabs.overcast.OvercastProperties.getOvercastProperty;
 import static com.xebialabs.overcast.OvercastProperties.getRequiredOvercastProperty;
-import static com.xebialabs.overcast.OverthereUtil.overthereConnectionFromURI;
-import static com.xebialabs.overthere.util.CapturingOverthereExecutionOutputHandler.capturingHandler;
 
 /**
  * {@link IpLookupStrategy} that uses SSH to execute a command on a remote host to look up the IP based on the MAC.
+ * Lookups for the same URL share one connection and are batched, see {@link SshIpLookupService}.
  */
 public class SshIpLookupStrategy implements IpLookupStrategy {
     private static final Logger log = LoggerFactory.getLogger(SshIpLookupStrategy.class);
@@ -50,42 +45,7 @@ public class SshIpLookupStrategy implements IpLookupStrategy {
 
     @Override
     public String lookup(String mac) {
-        CmdLine cmdLine = new CmdLine();
-        String fragment = MessageFormat.format(command, mac);
-        cmdLine.addRaw(fragment);
-        log.info("Executing '{}'", cmdLine);
-
-        OverthereConnection connection = overthereConnectionFromURI(url);
-        try {
-            int seconds = timeout;
-            while (seconds > 0) {
-                CapturingOverthereExecutionOutputHandler outputHandler = capturingHandler();
-                CapturingOverthereExecutionOutputHandler errorOutputHandler = capturingHandler();
-                connection.execute(outputHandler, errorOutputHandler, cmdLine);
-                if (!errorOutputHandler.getOutputLines().isEmpty()) {
-                    throw new RuntimeException("Had stderror: " + errorOutputHandler.getOutput());
-                }
-                if (outputHandler.getOutputLines().isEmpty()) {
-                    sleep(1);
-                    seconds--;
-                    log.debug("No IP found after will try for {} seconds", seconds);
-                    continue;
-                }
-                String line = outputHandler.getOutputLines().get(0);
-                log.debug("Found IP={} for MAC={}", line, mac);
-                return outputHandler.getOutputLines().get(0);
-            }
-            throw new RuntimeException("No IP found for MAC: " + mac);
-        } finally {
-            connection.close();
-        }
-    }
-
-    private static void sleep(final int seconds) {
-        try {
-            Thread.sleep(seconds * 1000);
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-        }
+        log.info("Looking up IP for MAC={} using '{}'", mac, MessageFormat.format(command, mac));
+        return SshIpLookupService.forUrl(url).lookup(command, mac, timeout);
     }
 }
@@ -0,0 +1,39 @@
+package com.xebialabs.overcast.support.libvirt;
+
+import com.xebialabs.overcast.command.CommandProcessor;
+
+import static com.xebialabs.overcast.command.Command.aCommand;
+
+/**
+ * Runs {@code virsh} for the few operations the libvirt java bindings do not expose.
+ */
+public class VirshDriver {
+
+    private final String libvirtURL;
+    private final CommandProcessor commandProcessor;
+
+    public VirshDriver(String libvirtURL, CommandProcessor commandProcessor) {
+        this.libvirtURL = libvirtURL;
+        this.commandProcessor = commandProcessor;
+    }
+
+    /**
+     * Executes custom virsh command against the configured libvirt URL.
+     */
+    public String execute(String... command) {
+        return commandProcessor.run(aCommand("virsh").withOptions("-c", libvirtURL).withArguments(command)).getOutput();
+    }
+
+    /**
+     * Sends a JSON command to the qemu guest agent running inside a domain.
+     *
+     * @param timeout seconds to wait for the agent to respond.
+     */
+    public String qemuAgentCommand(String domain, String json, int timeout) {
+        return execute("qemu-agent-command", domain, "--timeout", String.valueOf(timeout), json);
+    }
+
+    public String getLibvirtURL() {
+        return libvirtURL;
+    }
+}
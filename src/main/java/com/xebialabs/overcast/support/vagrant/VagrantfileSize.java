@@ -0,0 +1,72 @@
+package com.xebialabs.overcast.support.vagrant;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+/**
+ * vCPUs and memory a Vagrantfile gives its VM, set like {@code vb.cpus = 2} and {@code vb.memory = 2048} or with
+ * {@code --cpus} and {@code --memory} of a {@code vb.customize}. When it defines several VMs the largest values are
+ * taken.
+ */
+public class VagrantfileSize {
+    private static final Logger log = LoggerFactory.getLogger(VagrantfileSize.class);
+
+    private static final Pattern COMMENT = Pattern.compile("#.*");
+    private static final Pattern CPUS = Pattern.compile("(?:\\.cpus\\s*=|[\"']--cpus[\"']\\s*,)\\s*[\"']?(\\d+)");
+    private static final Pattern MEMORY = Pattern.compile("(?:\\.memory\\s*=|[\"']--memory[\"']\\s*,)\\s*[\"']?(\\d+)");
+
+    private final Integer cpus;
+    private final Long memory;
+
+    VagrantfileSize(Integer cpus, Long memory) {
+        this.cpus = cpus;
+        this.memory = memory;
+    }
+
+    /** Read the Vagrantfile in the directory, a missing or unreadable one has no size. */
+    public static VagrantfileSize read(File vagrantDir) {
+        File vagrantfile = new File(vagrantDir, "Vagrantfile");
+        try {
+            return parse(Files.toString(vagrantfile, Charsets.UTF_8));
+        } catch (IOException e) {
+            log.warn("Unable to read {}: {}", vagrantfile, e.getMessage());
+            return new VagrantfileSize(null, null);
+        }
+    }
+
+    static VagrantfileSize parse(String vagrantfile) {
+        String code = COMMENT.matcher(vagrantfile).replaceAll("");
+        Long cpus = largest(CPUS, code);
+        return new VagrantfileSize(cpus != null ? cpus.intValue() : null, largest(MEMORY, code));
+    }
+
+    private static Long largest(Pattern pattern, String code) {
+        Long result = null;
+        Matcher m = pattern.matcher(code);
+        while (m.find()) {
+            long value = Long.parseLong(m.group(1));
+            if (result == null || value > result) {
+                result = value;
+            }
+        }
+        return result;
+    }
+
+    /** Number of vCPUs, or {@code null} when the Vagrantfile does not set it. */
+    public Integer getCpus() {
+        return cpus;
+    }
+
+    /** Memory in MiB, or {@code null} when the Vagrantfile does not set it. */
+    public Long getMemory() {
+        return memory;
+    }
+}
@@ -9,6 +9,7 @@ import com.xebialabs.overcast.command.CommandProcessor;
 import static com.google.common.base.Splitter.on;
 import static com.google.common.collect.Collections2.filter;
 import static com.google.common.collect.Lists.newArrayList;
+import static com.google.common.collect.Maps.newHashMap;
 import static com.google.common.collect.Sets.newHashSet;
 import static com.xebialabs.overcast.command.Command.aCommand;
 import static com.xebialabs.overcast.support.virtualbox.VirtualboxState.POWEROFF;
@@ -29,6 +30,32 @@ public class VirtualboxDriver {
         return VirtualboxState.fromStatusString(execute("showvminfo", vm));
     }
 
+    /**
+     * Fetches the number of CPUs of the VM.
+     */
+    public int getCpus(String vm) {
+        return Integer.parseInt(vmInfo(vm).get("cpus"));
+    }
+
+    /**
+     * Fetches the memory of the VM in MiB.
+     */
+    public long getMemory(String vm) {
+        return Long.parseLong(vmInfo(vm).get("memory"));
+    }
+
+    private Map<String, String> vmInfo(String vm) {
+        // values may contain '=' and keys may repeat, so not split with a MapSplitter
+        Map<String, String> info = newHashMap();
+        for (String line : Splitter.on('\n').omitEmptyStrings().trimResults().split(execute("showvminfo", vm, "--machinereadable"))) {
+            int idx = line.indexOf('=');
+            if (idx > 0 && !info.containsKey(line.substring(0, idx))) {
+                info.put(line.substring(0, idx), line.substring(idx + 1).replace("\"", ""));
+            }
+        }
+        return info;
+    }
+
     /**
      * Checks if VM exists. Accepts UUID or VM name as an argument.
      */
@@ -100,4 +127,35 @@ public class VirtualboxDriver {
     public void createSnapshot(String vm, String name) {
         execute("snapshot", vm, "take", name, "--description", "'Snapshot taken by Overcast.'");
     }
+
+    public void deleteSnapshot(String vm, String name) {
+        execute("snapshot", vm, "delete", name);
+    }
+
+    /**
+     * Creates and registers a linked clone of the VM whose disks are differencing images of those of the snapshot.
+     *
+     * @return the UUID of the clone.
+     */
+    public String cloneLinked(String vm, String snapshot, String name) {
+        execute("clonevm", vm, "--snapshot", snapshot, "--options", "link", "--name", name, "--register");
+        return vmInfo(name).get("UUID");
+    }
+
+    /**
+     * Unregisters the VM and deletes its files.
+     */
+    public void deleteVm(String vm) {
+        execute("unregistervm", vm, "--delete");
+    }
+
+    /**
+     * Fetches the IPv4 address of the first network adapter as reported by the guest additions, or {@code null}.
+     */
+    public String getGuestIp(String vm) {
+        final String prefix = "Value: ";
+
+        String v = execute("guestproperty", "get", vm, "/VirtualBox/GuestInfo/Net/0/V4/IP").trim();
+        return v.startsWith(prefix) ? v.substring(prefix.length()) : null;
+    }
 }
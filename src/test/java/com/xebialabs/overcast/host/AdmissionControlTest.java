@@ -0,0 +1,143 @@
+package com.xebialabs.overcast.host;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class AdmissionControlTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void shouldBeDisabledWithoutBudget() {
+        assertThat(new AdmissionControl(0, 0, 0).isEnabled(), is(false));
+        assertThat(new AdmissionControl(0, 4096, 0).isEnabled(), is(true));
+    }
+
+    @Test
+    public void shouldWaitUntilResourcesAreReleased() throws InterruptedException {
+        AdmissionControl control = new AdmissionControl(4, 0, 0);
+        AdmissionControl.Admission first = control.admit("first", 3, 1024);
+
+        Waiter second = new Waiter(control, "second", 2);
+        second.start();
+        awaitQueued(control, 1);
+        assertThat(second.admitted.getCount(), is(1L));
+
+        first.release();
+        assertThat(second.admitted.await(5, TimeUnit.SECONDS), is(true));
+        assertThat(control.getAdmittedCount(), is(2L));
+    }
+
+    @Test
+    public void shouldNotLetSmallVmsOvertakeLargeOne() throws InterruptedException {
+        AdmissionControl control = new AdmissionControl(4, 0, 0);
+        AdmissionControl.Admission running = control.admit("running", 2, 0);
+
+        Waiter large = new Waiter(control, "large", 4);
+        large.start();
+        awaitQueued(control, 1);
+        Waiter small = new Waiter(control, "small", 1);
+        small.start();
+        awaitQueued(control, 2);
+
+        // the small one would fit, but the large one is first in line
+        assertThat(small.admitted.await(200, TimeUnit.MILLISECONDS), is(false));
+
+        running.release();
+        assertThat(large.admitted.await(5, TimeUnit.SECONDS), is(true));
+        assertThat(small.admitted.getCount(), is(1L));
+
+        large.admission.release();
+        assertThat(small.admitted.await(5, TimeUnit.SECONDS), is(true));
+        assertThat(control.getMaxWaitMillis() > 0, is(true));
+    }
+
+    @Test
+    public void shouldFreeBootSlotWhenBooted() throws InterruptedException {
+        AdmissionControl control = new AdmissionControl(0, 0, 1);
+        AdmissionControl.Admission booting = control.admit("booting", 1, 0);
+
+        Waiter next = new Waiter(control, "next", 1);
+        next.start();
+        awaitQueued(control, 1);
+
+        booting.bootFinished();
+        assertThat(next.admitted.await(5, TimeUnit.SECONDS), is(true));
+    }
+
+    @Test
+    public void shouldAdmitVmLargerThanBudgetWhenIdle() {
+        AdmissionControl control = new AdmissionControl(2, 1024, 0);
+        AdmissionControl.Admission admission = control.admit("huge", 8, 16384);
+
+        assertThat(admission.getWaitMillis() < 1000, is(true));
+    }
+
+    @Test
+    public void shouldShareBudgetThroughTicketDirectory() throws InterruptedException {
+        File dir = folder.newFolder("admission");
+        AdmissionControl one = new AdmissionControl(4, 0, 0, dir);
+        AdmissionControl other = new AdmissionControl(4, 0, 0, dir);
+        AdmissionControl.Admission first = one.admit("first", 3, 0);
+
+        Waiter second = new Waiter(other, "second", 2);
+        second.start();
+        assertThat(second.admitted.await(300, TimeUnit.MILLISECONDS), is(false));
+
+        first.release();
+        assertThat(second.admitted.await(5, TimeUnit.SECONDS), is(true));
+    }
+
+    @Test
+    public void shouldRemoveTicketsNoLongerLocked() throws IOException {
+        File dir = folder.newFolder("admission");
+        File stale = new File(dir, "gone-1.ticket");
+        FileWriter writer = new FileWriter(stale);
+        writer.write("4 0 1\n");
+        writer.close();
+
+        AdmissionControl.Admission admission = new AdmissionControl(4, 0, 0, dir).admit("after", 4, 0);
+
+        assertThat(admission.getWaitMillis() < 1000, is(true));
+        assertThat(stale.exists(), is(false));
+    }
+
+    private static void awaitQueued(AdmissionControl control, int length) throws InterruptedException {
+        for (int i = 0; i < 500 && control.getQueueLength() < length; i++) {
+            Thread.sleep(10);
+        }
+        assertThat(control.getQueueLength(), is(length));
+    }
+
+    private static class Waiter extends Thread {
+        private final AdmissionControl control;
+        private final String description;
+        private final int vcpus;
+        private final CountDownLatch admitted = new CountDownLatch(1);
+        private volatile AdmissionControl.Admission admission;
+
+        Waiter(AdmissionControl control, String description, int vcpus) {
+            this.control = control;
+            this.description = description;
+            this.vcpus = vcpus;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            admission = control.admit(description, vcpus, 0);
+            admitted.countDown();
+        }
+    }
+}
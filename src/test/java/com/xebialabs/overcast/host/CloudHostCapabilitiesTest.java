@@ -0,0 +1,85 @@
+package com.xebialabs.overcast.host;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class CloudHostCapabilitiesTest {
+
+    @Test
+    public void shouldResetThroughEveryWrapper() {
+        CountingCloudHost.Capable host = new CountingCloudHost.Capable();
+        for (CloudHost wrapper : wrappersOf(host)) {
+            assertThat(CloudHostCapabilities.canReset(wrapper), is(true));
+            CloudHostCapabilities.reset(wrapper);
+        }
+        assertThat(host.resets.get(), is(4));
+    }
+
+    @Test
+    public void shouldCheckpointThroughEveryWrapper() {
+        CountingCloudHost.Capable host = new CountingCloudHost.Capable();
+        for (CloudHost wrapper : wrappersOf(host)) {
+            assertThat(CloudHostCapabilities.canCheckpoint(wrapper), is(true));
+            CloudHost fork = CloudHostCapabilities.checkpoint(wrapper).fork();
+            assertThat(CloudHostCapabilities.canReset(fork), is(true));
+        }
+        assertThat(host.checkpoints.get(), is(4));
+    }
+
+    @Test
+    public void shouldOnlyHaveCapabilitiesOfWrappedHost() {
+        CountingCloudHost host = new CountingCloudHost();
+        for (CloudHost wrapper : wrappersOf(host)) {
+            assertThat(CloudHostCapabilities.canReset(wrapper), is(false));
+            assertThat(CloudHostCapabilities.canCheckpoint(wrapper), is(false));
+            assertThat(wrapper.getHostName(), is(host.getHostName()));
+        }
+    }
+
+    @Test
+    public void shouldKeepMethodsOfWrapper() {
+        AdmittedCloudHost admitted = new AdmittedCloudHost(new CountingCloudHost(), new AdmissionControl(0, 0, 0), "admitted", 1, 0);
+        admitted.setup();
+        assertThat(admitted.getWaitMillis(), is(0L));
+        assertThat(CloudHostCapabilities.canReset(admitted), is(false));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void shouldRefuseToResetWrappedHostThatCannotBe() {
+        CloudHost tunneled = new TunneledCloudHost(new CountingCloudHost(), "user", "password", ImmutableMap.of(22, 2222));
+        CloudHostCapabilities.reset(tunneled);
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void shouldRefuseToResetLazyHostThatCannotBe() {
+        LazyCloudHost host = new LazyCloudHost("lazy", new CountingCloudHost().factory());
+        host.setup();
+        host.getHostName();
+        CloudHostCapabilities.reset(host);
+    }
+
+    /** A tunneled, admitted, shared and lazy host around the host, all but the tunneled one set up. */
+    private static List<CloudHost> wrappersOf(CountingCloudHost host) {
+        List<CloudHost> wrappers = Lists.newArrayList();
+        wrappers.add(new TunneledCloudHost(host, "user", "password", ImmutableMap.of(22, 2222)));
+        CloudHost admitted = new AdmittedCloudHost(host, new AdmissionControl(0, 0, 0), "admitted", 1, 0);
+        admitted.setup();
+        wrappers.add(admitted);
+        CloudHost shared = new SharedCloudHosts().get("shared", host.factory(), 0);
+        shared.setup();
+        wrappers.add(shared);
+        CloudHost lazy = new LazyCloudHost("lazy", host.factory());
+        lazy.setup();
+        // a lazy host that is not used yet has nothing to reset
+        lazy.getHostName();
+        wrappers.add(lazy);
+        return wrappers;
+    }
+}
@@ -0,0 +1,100 @@
+package com.xebialabs.overcast.host;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.base.Supplier;
+
+/**
+ * Fake host for the tests of hosts that wrap, share or pool other hosts. Counts what is done to it, its setup can be
+ * held up with a latch and made to fail.
+ */
+class CountingCloudHost implements CloudHost {
+    final AtomicInteger created = new AtomicInteger();
+    final AtomicInteger setups = new AtomicInteger();
+    final AtomicInteger teardowns = new AtomicInteger();
+    volatile CountDownLatch setupLatch;
+    volatile boolean fail;
+
+    private final String hostName;
+    private final int portOffset;
+
+    CountingCloudHost() {
+        this("localhost", 0);
+    }
+
+    /**
+     * @param portOffset added to a port to get the port it is reachable on.
+     */
+    CountingCloudHost(String hostName, int portOffset) {
+        this.hostName = hostName;
+        this.portOffset = portOffset;
+    }
+
+    /** A factory that hands out this host, counting how often it is asked. */
+    Supplier<CloudHost> factory() {
+        return new Supplier<CloudHost>() {
+            @Override
+            public CloudHost get() {
+                created.incrementAndGet();
+                return CountingCloudHost.this;
+            }
+        };
+    }
+
+    @Override
+    public void setup() {
+        setups.incrementAndGet();
+        if (setupLatch != null) {
+            try {
+                setupLatch.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (fail) {
+            throw new IllegalStateException("boom");
+        }
+    }
+
+    @Override
+    public void teardown() {
+        teardowns.incrementAndGet();
+    }
+
+    @Override
+    public String getHostName() {
+        return hostName;
+    }
+
+    @Override
+    public int getPort(int port) {
+        return port + portOffset;
+    }
+
+    /** Counting host that can also be reset and checkpointed, its checkpoints fork new ones. */
+    static class Capable extends CountingCloudHost implements ResettableCloudHost, CheckpointableCloudHost {
+        final AtomicInteger resets = new AtomicInteger();
+        final AtomicInteger checkpoints = new AtomicInteger();
+
+        @Override
+        public void reset() {
+            resets.incrementAndGet();
+        }
+
+        @Override
+        public HostCheckpoint checkpoint() {
+            checkpoints.incrementAndGet();
+            return new HostCheckpoint() {
+                @Override
+                public CloudHost fork() {
+                    return new Capable();
+                }
+
+                @Override
+                public void delete() {
+                }
+            };
+        }
+    }
+}
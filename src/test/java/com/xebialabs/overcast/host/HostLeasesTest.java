@@ -0,0 +1,50 @@
+package com.xebialabs.overcast.host;
+
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class HostLeasesTest {
+
+    private final List<String> hosts = Lists.newArrayList("host-1", "host-2");
+    private HostLeases leases;
+
+    @Before
+    public void setUp() {
+        leases = new HostLeases(Files.createTempDir());
+    }
+
+    @Test
+    public void shouldLeaseEachHostOnce() {
+        HostLeases.Lease first = leases.claim(hosts, 0);
+        HostLeases.Lease second = leases.claim(hosts, 0);
+
+        assertThat(second.getHostname(), not(first.getHostname()));
+        assertThat(leases.tryClaim(first.getHostname()), nullValue());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void shouldFailWhenAllHostsAreLeased() {
+        leases.claim(hosts, 0);
+        leases.claim(hosts, 0);
+        leases.claim(hosts, 0);
+    }
+
+    @Test
+    public void shouldLeaseReleasedHostAgain() {
+        HostLeases.Lease first = leases.claim(hosts, 0);
+        leases.claim(hosts, 0);
+        first.release();
+
+        assertThat(leases.claim(hosts, 0).getHostname(), is(first.getHostname()));
+    }
+}
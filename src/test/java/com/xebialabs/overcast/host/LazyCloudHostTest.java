@@ -0,0 +1,90 @@
+package com.xebialabs.overcast.host;
+
+import java.net.ServerSocket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class LazyCloudHostTest {
+
+    private final CountingCloudHost actualHost = new CountingCloudHost();
+
+    @Test
+    public void shouldNotCreateHostThatIsNotUsed() {
+        LazyCloudHost host = new LazyCloudHost("lazy", actualHost.factory());
+        host.setup();
+        host.teardown();
+
+        assertThat(actualHost.created.get(), is(0));
+        assertThat(actualHost.teardowns.get(), is(0));
+    }
+
+    @Test
+    public void shouldSetUpHostOnFirstUse() {
+        LazyCloudHost host = new LazyCloudHost("lazy", actualHost.factory());
+        host.setup();
+        assertThat(host.isActive(), is(false));
+
+        assertThat(host.getHostName(), is("localhost"));
+        assertThat(host.getPort(22), is(22));
+        assertThat(host.isActive(), is(true));
+        assertThat(actualHost.setups.get(), is(1));
+
+        host.teardown();
+        assertThat(actualHost.teardowns.get(), is(1));
+
+        // set up again after teardown reuses the host
+        host.setup();
+        host.getHostName();
+        assertThat(actualHost.created.get(), is(1));
+        assertThat(actualHost.setups.get(), is(2));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void shouldNotSetUpHostThatIsNotWanted() {
+        new LazyCloudHost("lazy", actualHost.factory()).getHostName();
+    }
+
+    @Test
+    public void shouldNotRetryFailedSetup() {
+        actualHost.fail = true;
+        LazyCloudHost host = new LazyCloudHost("lazy", actualHost.factory());
+        host.setup();
+        for (int i = 0; i < 2; i++) {
+            try {
+                host.getHostName();
+                fail("Setup should have failed");
+            } catch (RuntimeException expected) {
+                // the first failure is reported to every caller
+            }
+        }
+        assertThat(actualHost.setups.get(), is(1));
+    }
+
+    @Test
+    public void shouldSetUpHostInBackgroundWhenPortIsAskedFor() throws Exception {
+        ServerSocket server = new ServerSocket(0);
+        try {
+            actualHost.setupLatch = new CountDownLatch(1);
+            LazyCloudHost host = new LazyCloudHost("lazy", actualHost.factory());
+            host.setup();
+
+            ListenableFuture<Void> ready = host.whenPortReady(server.getLocalPort());
+            assertThat(ready.isDone(), is(false));
+
+            actualHost.setupLatch.countDown();
+            ready.get(5, TimeUnit.SECONDS);
+            assertThat(host.isActive(), is(true));
+            assertThat(actualHost.setups.get(), is(1));
+        } finally {
+            server.close();
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package com.xebialabs.overcast.host;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.base.Function;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class PoolDaemonTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final AtomicInteger created = new AtomicInteger();
+    private final List<CountingCloudHost> hosts = new CopyOnWriteArrayList<CountingCloudHost>();
+    private File tokenFile;
+    private PoolDaemon daemon;
+
+    @Before
+    public void setUp() throws Exception {
+        tokenFile = new File(folder.getRoot(), "daemon.token");
+        daemon = new PoolDaemon(0, DaemonToken.create(tokenFile), 1, new Function<String, CloudHost>() {
+            @Override
+            public CloudHost apply(String label) {
+                if (label.equals("failing")) {
+                    CountingCloudHost failing = new CountingCloudHost(label, 10000);
+                    failing.fail = true;
+                    return failing;
+                }
+                CountingCloudHost host = new CountingCloudHost(label + "-" + created.incrementAndGet(), 10000);
+                hosts.add(host);
+                return host;
+            }
+        });
+        daemon.addPool("pooled", 1, false);
+        daemon.addPool("failing", 1, false);
+        daemon.start();
+    }
+
+    @After
+    public void tearDown() {
+        daemon.close();
+    }
+
+    @Test
+    public void shouldOnlyServePooledLabels() {
+        assertThat(DaemonCloudHost.isPooled("pooled", daemon.getPort(), tokenFile), is(true));
+        assertThat(DaemonCloudHost.isPooled("other", daemon.getPort(), tokenFile), is(false));
+    }
+
+    @Test
+    public void shouldLeaseHostAndRefillPool() throws Exception {
+        DaemonCloudHost host = new DaemonCloudHost("pooled", daemon.getPort(), tokenFile, 1);
+        host.setup();
+        assertThat(host.getHostName(), is("pooled-1"));
+        assertThat(host.getPort(22), is(10022));
+
+        host.teardown();
+        waitFor(hosts.get(0).teardowns, 1);
+        waitFor(created, 2);
+
+        host.setup();
+        assertThat(host.getHostName(), is("pooled-2"));
+        host.teardown();
+    }
+
+    @Test
+    public void shouldFailLeaseWhenNoHostBecomesReady() {
+        DaemonCloudHost host = new DaemonCloudHost("failing", daemon.getPort(), tokenFile, 1);
+        try {
+            host.setup();
+            fail("Expected the lease to time out");
+        } catch (IllegalStateException expected) {
+            assertThat(expected.getMessage().contains("no host of failing became ready within 1 seconds"), is(true));
+        }
+        assertThat(host.getHostName(), nullValue());
+    }
+
+    @Test
+    public void shouldReleaseHostWhenConnectionCloses() throws Exception {
+        DaemonToken token = DaemonToken.read(tokenFile);
+        Socket connection = new Socket("localhost", daemon.getPort());
+        BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream(), "UTF-8"));
+        String challenge = DaemonToken.challenge();
+        send(connection, "HELLO " + challenge);
+        String[] reply = in.readLine().split(" ");
+        assertThat(token.verify(DaemonToken.DAEMON, challenge, reply[2]), is(true));
+        send(connection, "AUTH " + token.answer(DaemonToken.CLIENT, reply[1]));
+        assertThat(in.readLine(), is("OK"));
+        send(connection, "LEASE pooled");
+        assertThat(in.readLine(), is("OK pooled-1"));
+        connection.close();
+
+        waitFor(hosts.get(0).teardowns, 1);
+    }
+
+    @Test
+    public void shouldRefuseConnectionsWithoutToken() throws Exception {
+        Socket connection = new Socket("localhost", daemon.getPort());
+        try {
+            send(connection, "LEASE pooled");
+            String reply = new BufferedReader(new InputStreamReader(connection.getInputStream(), "UTF-8")).readLine();
+            assertThat(reply, is("ERROR not authenticated"));
+        } finally {
+            connection.close();
+        }
+
+        File otherToken = new File(folder.getRoot(), "other.token");
+        DaemonToken.create(otherToken);
+        assertThat(DaemonCloudHost.isPooled("pooled", daemon.getPort(), otherToken), is(false));
+    }
+
+    private static void send(Socket connection, String line) throws Exception {
+        connection.getOutputStream().write((line + "\n").getBytes("UTF-8"));
+    }
+
+    private static void waitFor(AtomicInteger counter, int value) throws InterruptedException {
+        for (int i = 0; i < 50 && counter.get() < value; i++) {
+            Thread.sleep(100);
+        }
+        assertThat(counter.get(), is(value));
+    }
+}
@@ -0,0 +1,68 @@
+package com.xebialabs.overcast.host;
+
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class PortProbesTest {
+
+    @Test
+    public void shouldCompleteWhenPortAcceptsConnections() throws Exception {
+        ServerSocket listening = new ServerSocket(0, 50, null);
+        try {
+            ListenableFuture<Void> ready = PortProbes.whenPortReady(localhost(), listening.getLocalPort());
+            ready.get(5, TimeUnit.SECONDS);
+        } finally {
+            listening.close();
+        }
+    }
+
+    @Test
+    public void shouldWaitUntilPortIsOpened() throws Exception {
+        ServerSocket probe = new ServerSocket(0);
+        int port = probe.getLocalPort();
+        probe.close();
+
+        ListenableFuture<Void> ready = PortProbes.whenPortReady(localhost(), port);
+        Thread.sleep(1500);
+        assertThat(ready.isDone(), is(false));
+
+        ServerSocket listening = new ServerSocket();
+        try {
+            listening.setReuseAddress(true);
+            listening.bind(new InetSocketAddress(port));
+            ready.get(5, TimeUnit.SECONDS);
+        } finally {
+            listening.close();
+        }
+    }
+
+    private static CloudHost localhost() {
+        return new CloudHost() {
+            @Override
+            public void setup() {
+            }
+
+            @Override
+            public void teardown() {
+            }
+
+            @Override
+            public String getHostName() {
+                return "localhost";
+            }
+
+            @Override
+            public int getPort(int port) {
+                return port;
+            }
+        };
+    }
+}
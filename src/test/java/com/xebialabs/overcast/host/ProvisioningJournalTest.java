@@ -0,0 +1,86 @@
+package com.xebialabs.overcast.host;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class ProvisioningJournalTest {
+
+    private File file;
+    private ProvisioningJournal journal;
+
+    @Before
+    public void setUp() {
+        file = new File(Files.createTempDir(), "journal");
+        journal = new ProvisioningJournal(file);
+    }
+
+    @Test
+    public void shouldKeepEntriesUntilReleased() {
+        String first = journal.record("libvirt", "qemu:///system", "base", "base-1");
+        journal.record("ec2", "https://ec2.amazonaws.com", "i-123");
+        journal.release(first);
+
+        List<ProvisioningJournal.Entry> entries = journal.readEntries();
+        assertThat(entries.size(), is(1));
+        assertThat(entries.get(0).getType(), is("ec2"));
+        assertThat(entries.get(0).getArgs(), is((List<String>) Lists.newArrayList("https://ec2.amazonaws.com", "i-123")));
+        assertThat(entries.get(0).getOwner(), is(journal.getOwner()));
+    }
+
+    @Test
+    public void shouldIgnoreTornLines() {
+        List<ProvisioningJournal.Entry> entries = ProvisioningJournal.parse("+\ta\towner\tvirtualbox\tvm-1\n+\tb\tow");
+        assertThat(entries.size(), is(1));
+        assertThat(entries.get(0).getId(), is("a"));
+    }
+
+    @Test
+    public void shouldCompactReleasedEntries() throws IOException {
+        String id = journal.record("virtualbox", "vm-1");
+        journal.record("virtualbox", "vm-2");
+        journal.release(id);
+        journal.compact();
+
+        List<String> lines = Files.readLines(file, Charset.forName("UTF-8"));
+        assertThat(lines.size(), is(1));
+        assertThat(lines.get(0).endsWith("\tvirtualbox\tvm-2"), is(true));
+    }
+
+    @Test
+    public void shouldConsiderOwnerWithoutLockDead() {
+        journal.record("virtualbox", "vm-1");
+        assertThat(journal.isOwnerAlive(journal.getOwner()), is(true));
+        assertThat(journal.isOwnerAlive("42@gone-1"), is(false));
+    }
+
+    @Test
+    public void shouldReclaimEntriesOfDeadOwners() throws IOException {
+        journal.record("virtualbox", "mine");
+        Files.append("+\tdead-1\t42@gone-1\tvirtualbox\torphan\n", file, Charset.forName("UTF-8"));
+
+        final List<String> reclaimed = Lists.newArrayList();
+        int count = new OrphanCollector() {
+            @Override
+            protected void reclaim(ProvisioningJournal.Entry entry) {
+                reclaimed.add(entry.getArgs().get(0));
+            }
+        }.collect(journal);
+
+        assertThat(count, is(1));
+        assertThat(reclaimed, is((List<String>) Lists.newArrayList("orphan")));
+        List<ProvisioningJournal.Entry> entries = journal.readEntries();
+        assertThat(entries.size(), is(1));
+        assertThat(entries.get(0).getArgs().get(0), is("mine"));
+    }
+}
@@ -0,0 +1,139 @@
+package com.xebialabs.overcast.host;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.google.common.base.Supplier;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class SharedCloudHostsTest {
+
+    private final SharedCloudHosts hosts = new SharedCloudHosts();
+
+    @Test
+    public void shouldShareSingleSetup() throws Exception {
+        final CountingCloudHost host = new CountingCloudHost();
+        host.setupLatch = new CountDownLatch(1);
+        final Supplier<CloudHost> factory = host.factory();
+
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            Future<?> first = executor.submit(setup(hosts.get("shared", factory, 0)));
+            Future<?> second = executor.submit(setup(hosts.get("shared", factory, 0)));
+            Thread.sleep(100);
+            host.setupLatch.countDown();
+            first.get(5, TimeUnit.SECONDS);
+            second.get(5, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdown();
+        }
+
+        assertThat(host.setups.get(), is(1));
+        assertThat(host.created.get(), is(1));
+    }
+
+    @Test
+    public void shouldTearDownWhenLastUserReleases() {
+        CountingCloudHost host = new CountingCloudHost();
+        CloudHost first = hosts.get("shared", host.factory(), 0);
+        CloudHost second = hosts.get("shared", host.factory(), 0);
+        first.setup();
+        second.setup();
+
+        first.teardown();
+        assertThat(host.teardowns.get(), is(0));
+        second.teardown();
+        assertThat(host.teardowns.get(), is(1));
+
+        // a new user gets a new host
+        CloudHost third = hosts.get("shared", host.factory(), 0);
+        third.setup();
+        assertThat(host.created.get(), is(2));
+        assertThat(host.setups.get(), is(2));
+    }
+
+    @Test
+    public void shouldReuseHostWithinGracePeriod() {
+        CountingCloudHost host = new CountingCloudHost();
+        CloudHost first = hosts.get("shared", host.factory(), 60);
+        first.setup();
+        first.teardown();
+        assertThat(host.teardowns.get(), is(0));
+
+        CloudHost second = hosts.get("shared", host.factory(), 60);
+        second.setup();
+        assertThat(host.setups.get(), is(1));
+        second.teardown();
+
+        hosts.tearDownIdle();
+        assertThat(host.teardowns.get(), is(1));
+    }
+
+    @Test
+    public void shouldFailUsersWaitingForFailedSetup() throws Exception {
+        final CountingCloudHost host = new CountingCloudHost();
+        host.setupLatch = new CountDownLatch(1);
+        host.fail = true;
+        Supplier<CloudHost> factory = host.factory();
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<?> first = executor.submit(setup(hosts.get("shared", factory, 0)));
+            Future<?> second = executor.submit(setup(hosts.get("shared", factory, 0)));
+            Thread.sleep(100);
+            host.setupLatch.countDown();
+            assertThat(failed(first), is(true));
+            assertThat(failed(second), is(true));
+        } finally {
+            executor.shutdown();
+        }
+        assertThat(host.setups.get(), is(1));
+    }
+
+    @Test
+    public void shouldResetHostOfOnlyUser() {
+        CountingCloudHost.Capable host = new CountingCloudHost.Capable();
+        CloudHost first = hosts.get("shared", host.factory(), 0);
+        first.setup();
+        CloudHostCapabilities.reset(first);
+        assertThat(host.resets.get(), is(1));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void shouldNotResetHostUsedByOthers() {
+        CountingCloudHost.Capable host = new CountingCloudHost.Capable();
+        CloudHost first = hosts.get("shared", host.factory(), 0);
+        CloudHost second = hosts.get("shared", host.factory(), 0);
+        first.setup();
+        second.setup();
+        CloudHostCapabilities.reset(first);
+    }
+
+    private static boolean failed(Future<?> f) throws Exception {
+        try {
+            f.get(5, TimeUnit.SECONDS);
+            return false;
+        } catch (ExecutionException e) {
+            return true;
+        }
+    }
+
+    private static Callable<Void> setup(final CloudHost host) {
+        return new Callable<Void>() {
+            @Override
+            public Void call() {
+                host.setup();
+                return null;
+            }
+        };
+    }
+}
@@ -0,0 +1,88 @@
+package com.xebialabs.overcast.host;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class TeardownReaperTest {
+
+    @Test
+    public void shouldTearDownInlineWhenNotAsync() {
+        final AtomicBoolean done = new AtomicBoolean();
+        new TeardownReaper(false).teardown("host", new Runnable() {
+            @Override
+            public void run() {
+                done.set(true);
+            }
+        });
+        assertThat(done.get(), is(true));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void shouldPropagateFailureWhenNotAsync() {
+        new TeardownReaper(false).teardown("host", new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalStateException("boom");
+            }
+        });
+    }
+
+    @Test
+    public void shouldReturnBeforeTeardownCompletesAndDrain() throws InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicBoolean done = new AtomicBoolean();
+        TeardownReaper reaper = new TeardownReaper(true);
+        reaper.teardown("slow host", new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                done.set(true);
+            }
+        });
+
+        assertThat(done.get(), is(false));
+        assertThat(reaper.getPending().size(), is(1));
+
+        release.countDown();
+        assertThat(reaper.drain(5000), is(true));
+        assertThat(done.get(), is(true));
+        assertThat(reaper.getPending().isEmpty(), is(true));
+    }
+
+    @Test
+    public void shouldReportFailedAndUnfinishedTeardowns() {
+        final CountDownLatch never = new CountDownLatch(1);
+        TeardownReaper reaper = new TeardownReaper(true);
+        reaper.teardown("broken host", new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalStateException("boom");
+            }
+        });
+        reaper.teardown("stuck host", new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    never.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+
+        assertThat(reaper.drain(200), is(false));
+        assertThat(reaper.getFailures().size(), is(1));
+        assertThat(reaper.getFailures().get(0).startsWith("broken host: "), is(true));
+        assertThat(reaper.getPending().contains("stuck host"), is(true));
+        never.countDown();
+    }
+}
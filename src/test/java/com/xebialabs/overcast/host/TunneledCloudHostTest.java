@@ -0,0 +1,109 @@
+package com.xebialabs.overcast.host;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import com.google.common.collect.ImmutableMap;
+
+import net.schmizz.sshj.SSHClient;
+import net.schmizz.sshj.common.DisconnectReason;
+import net.schmizz.sshj.connection.channel.direct.LocalPortForwarder;
+import net.schmizz.sshj.transport.DisconnectListener;
+import net.schmizz.sshj.transport.Transport;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class TunneledCloudHostTest {
+
+    private static final int KEEP_ALIVE_INTERVAL = 60;
+
+    @Test
+    public void shouldKeepListenerAndOpenChannelsOnNewConnectionAfterTransportDrops() throws Exception {
+        SSHClient first = client();
+        SSHClient unreachable = client();
+        doThrow(new IOException("connection refused")).when(unreachable).connect("remote", 22);
+        SSHClient second = client();
+        int localPort = freePort();
+        FakeSshTunnel host = new FakeSshTunnel(localPort, first, unreachable, second);
+        host.setup();
+        try {
+            connectTo(localPort);
+            assertThat(host.channelsOpenedOn.poll(5, TimeUnit.SECONDS), sameInstance(first));
+
+            ArgumentCaptor<DisconnectListener> listener = ArgumentCaptor.forClass(DisconnectListener.class);
+            verify(first.getTransport()).setDisconnectListener(listener.capture());
+            listener.getValue().notifyDisconnect(DisconnectReason.CONNECTION_LOST);
+            for (int i = 0; i < 50 && host.getReconnectCount() == 0; i++) {
+                Thread.sleep(100);
+            }
+
+            assertThat(host.getReconnectCount(), is(1));
+            // the first attempt failed, the next one waited before retrying
+            assertTrue(host.getTotalDowntimeMillis() >= 250);
+            connectTo(localPort);
+            assertThat(host.channelsOpenedOn.poll(5, TimeUnit.SECONDS), sameInstance(second));
+        } finally {
+            host.teardown();
+        }
+        verify(first).disconnect();
+    }
+
+    private static SSHClient client() {
+        SSHClient client = mock(SSHClient.class);
+        when(client.getTransport()).thenReturn(mock(Transport.class));
+        return client;
+    }
+
+    private static int freePort() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+
+    private static void connectTo(int port) throws IOException {
+        new Socket("localhost", port).close();
+    }
+
+    /** Tunnel over mocked SSH clients, handed out in order for each connection attempt. */
+    private static class FakeSshTunnel extends TunneledCloudHost {
+        private final List<SSHClient> clients = new CopyOnWriteArrayList<SSHClient>();
+        final BlockingQueue<SSHClient> channelsOpenedOn = new LinkedBlockingQueue<SSHClient>();
+
+        FakeSshTunnel(int localPort, SSHClient... clients) {
+            super(new CountingCloudHost("remote", 0), "user", "password", ImmutableMap.of(8080, localPort), KEEP_ALIVE_INTERVAL, 10);
+            for (SSHClient client : clients) {
+                this.clients.add(client);
+            }
+        }
+
+        @Override
+        SSHClient newClient() {
+            return clients.remove(0);
+        }
+
+        @Override
+        LocalPortForwarder.DirectTCPIPChannel openChannel(SSHClient c, Socket socket, LocalPortForwarder.Parameters params) {
+            channelsOpenedOn.add(c);
+            return mock(LocalPortForwarder.DirectTCPIPChannel.class);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.xebialabs.overcast.support.libvirt;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.google.common.io.Files;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class DhcpLeaseIndexTest {
+
+    @Test
+    public void shouldParseDnsmasqLeases() {
+        Map<String, String> leases = DhcpLeaseIndex.parseLeases(
+            "1400000000 52:54:00:AA:BB:01 192.168.122.10 clone-1 01:52:54:00:aa:bb:01\n" +
+            "1400000001 52:54:00:aa:bb:02 192.168.122.11 * *\n" +
+            "duid 00:01:00:01:1a:2b:3c:4d\n");
+
+        assertThat(leases.size(), is(2));
+        assertThat(leases.get("52:54:00:aa:bb:01"), is("192.168.122.10"));
+        assertThat(leases.get("52:54:00:aa:bb:02"), is("192.168.122.11"));
+    }
+
+    @Test
+    public void shouldParseLibvirtStatusFile() {
+        Map<String, String> leases = DhcpLeaseIndex.parseLeases("[\n" +
+            "  {\n" +
+            "    \"ip-address\": \"192.168.122.20\",\n" +
+            "    \"mac-address\": \"52:54:00:aa:bb:03\",\n" +
+            "    \"hostname\": \"clone-2\",\n" +
+            "    \"expiry-time\": 1400000000\n" +
+            "  }\n" +
+            "]\n");
+
+        assertThat(leases.size(), is(1));
+        assertThat(leases.get("52:54:00:aa:bb:03"), is("192.168.122.20"));
+    }
+
+    @Test
+    public void shouldFindLeaseInWatchedFile() throws Exception {
+        File leases = File.createTempFile("overcast", ".leases");
+        leases.deleteOnExit();
+        Files.write("1400000000 52:54:00:aa:bb:04 192.168.122.30 clone-3 *\n", leases, Charset.defaultCharset());
+
+        DhcpLeaseIndex index = DhcpLeaseIndex.getInstance();
+        index.watch(leases);
+
+        assertThat(index.await("52:54:00:AA:BB:04", 1000), is("192.168.122.30"));
+        assertThat(index.await("52:54:00:aa:bb:05", 10), nullValue());
+    }
+}
@@ -0,0 +1,64 @@
+package com.xebialabs.overcast.support.libvirt;
+
+import java.io.File;
+
+import org.junit.Test;
+
+import com.google.common.io.Files;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class DhcpReservationsTest {
+
+    @Test
+    public void shouldDeriveMacFromIp() {
+        assertThat(DhcpReservations.macForIp("192.168.122.101"), is("52:54:00:a8:7a:65"));
+        assertThat(DhcpReservations.macForIp("10.0.1.2"), is("52:54:00:00:01:02"));
+    }
+
+    @Test
+    public void shouldConvertIpToLongAndBack() {
+        long ip = DhcpReservations.ipToLong("192.168.122.255");
+        assertThat(DhcpReservations.longToIp(ip + 1), is("192.168.123.0"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectInvalidIp() {
+        DhcpReservations.ipToLong("192.168.300.1");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectInvalidRange() {
+        new DhcpReservations(null, null, "default", "192.168.122.100", null, 0);
+    }
+
+    @Test
+    public void shouldOnlyReclaimEntriesOfDeadOwnersOrUnownedEntriesPastTimeout() {
+        // the claim file could be locked, so a recorded owner is dead
+        assertThat(DhcpReservations.isReclaimable("1234@build", 1000, 2000, 3600000), is(true));
+        // nobody on this machine registered the entry
+        assertThat(DhcpReservations.isReclaimable(null, 0, 2000, 3600000), is(false));
+        assertThat(DhcpReservations.isReclaimable("-", 1000, 2000, 3600000), is(false));
+        assertThat(DhcpReservations.isReclaimable("-", 1000, 3601001, 3600000), is(true));
+    }
+
+    @Test
+    public void shouldReadOwnerOfReleasedClaim() {
+        File file = new File(Files.createTempDir(), "default-192.168.122.100.lock");
+        DhcpReservations.Claim claim = DhcpReservations.Claim.tryLock(file);
+        assertThat(claim.getOwner(), nullValue());
+        claim.write("1234@build", 1000);
+        claim.close();
+
+        claim = DhcpReservations.Claim.tryLock(file);
+        assertThat(claim.getOwner(), is("1234@build"));
+        assertThat(claim.getSince(), is(1000L));
+        claim.clear();
+
+        claim = DhcpReservations.Claim.tryLock(file);
+        assertThat(claim.getOwner(), nullValue());
+        claim.close();
+    }
+}
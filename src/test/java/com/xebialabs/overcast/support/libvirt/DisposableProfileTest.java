@@ -0,0 +1,86 @@
+package com.xebialabs.overcast.support.libvirt;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.List;
+
+import org.jdom2.Document;
+import org.jdom2.Element;
+import org.jdom2.JDOMException;
+import org.jdom2.input.SAXBuilder;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class DisposableProfileTest {
+
+    private static final String DOMAIN_XML = "<domain type='kvm'><name>base</name>"
+        + "<os><type>hvm</type><bootmenu enable='yes'/></os>"
+        + "<devices>"
+        + "<disk type='file' device='disk'><driver name='qemu' type='qcow2' cache='none' io='native'/>"
+        + "<source file='/var/lib/libvirt/images/base.qcow2'/><target dev='hda' bus='ide'/>"
+        + "<address type='drive' controller='0' bus='0' target='0' unit='0'/></disk>"
+        + "<disk type='file' device='cdrom'><driver name='qemu' type='raw'/><target dev='hdc' bus='ide'/></disk>"
+        + "<disk type='file' device='disk'><driver name='qemu' type='qcow2'/>"
+        + "<source file='/var/lib/libvirt/images/data.qcow2'/><target dev='vda' bus='virtio'/>"
+        + "<address type='pci' domain='0x0000' bus='0x00' slot='0x07' function='0x0'/></disk>"
+        + "<interface type='network'><source network='default'/><model type='e1000'/>"
+        + "<address type='pci' domain='0x0000' bus='0x00' slot='0x03' function='0x0'/></interface>"
+        + "<channel type='spicevmc'><target type='virtio' name='com.redhat.spice.0'/></channel>"
+        + "<sound model='ich6'/>"
+        + "<redirdev bus='usb' type='spicevmc'/>"
+        + "<graphics type='spice' autoport='yes'/>"
+        + "<graphics type='vnc' port='-1'/>"
+        + "<video><model type='qxl' ram='65536' vram='65536' heads='1'/></video>"
+        + "</devices></domain>";
+
+    @Test
+    public void shouldTuneDisks() throws Exception {
+        Document doc = apply();
+
+        List<Element> disks = doc.getRootElement().getChild("devices").getChildren("disk");
+        assertThat(disks.size(), is(2));
+
+        Element first = disks.get(0);
+        assertThat(first.getChild("driver").getAttributeValue("cache"), is("unsafe"));
+        assertThat(first.getChild("driver").getAttributeValue("io"), nullValue());
+        assertThat(first.getChild("target").getAttributeValue("bus"), is("virtio"));
+        assertThat(first.getChild("target").getAttributeValue("dev"), is("vda"));
+        assertThat(first.getChild("address"), nullValue());
+
+        Element second = disks.get(1);
+        assertThat(second.getChild("driver").getAttributeValue("cache"), is("unsafe"));
+        assertThat(second.getChild("target").getAttributeValue("dev"), is("vdb"));
+        assertThat(second.getChild("address").getAttributeValue("slot"), is("0x07"));
+    }
+
+    @Test
+    public void shouldUseVirtioNetwork() throws Exception {
+        Element iface = apply().getRootElement().getChild("devices").getChild("interface");
+
+        assertThat(iface.getChild("model").getAttributeValue("type"), is("virtio"));
+        assertThat(iface.getChild("address"), nullValue());
+    }
+
+    @Test
+    public void shouldRemoveUnusedDevices() throws Exception {
+        Document doc = apply();
+        Element devices = doc.getRootElement().getChild("devices");
+
+        assertThat(devices.getChild("channel"), nullValue());
+        assertThat(devices.getChild("sound"), nullValue());
+        assertThat(devices.getChild("redirdev"), nullValue());
+        assertThat(devices.getChild("video"), nullValue());
+        assertThat(devices.getChildren("graphics").size(), is(1));
+        assertThat(devices.getChild("graphics").getAttributeValue("type"), is("vnc"));
+        assertThat(doc.getRootElement().getChild("os").getChild("bootmenu"), nullValue());
+    }
+
+    private static Document apply() throws JDOMException, IOException {
+        Document doc = new SAXBuilder().build(new StringReader(DOMAIN_XML));
+        DisposableProfile.apply(doc);
+        return doc;
+    }
+}
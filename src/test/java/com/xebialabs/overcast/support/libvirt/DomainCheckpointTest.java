@@ -0,0 +1,39 @@
+package com.xebialabs.overcast.support.libvirt;
+
+import java.io.StringReader;
+
+import org.jdom2.Document;
+import org.jdom2.Element;
+import org.jdom2.input.SAXBuilder;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class DomainCheckpointTest {
+
+    private static final String CLONE_XML = "<domain type='kvm'><name>base-1234</name><uuid>8f6f7e0e-1bd4-4a43-9f0a-3b2c8b0e3c3e</uuid>"
+        + "<description>my clone</description>"
+        + "<devices><disk type='file' device='disk'><driver name='qemu' type='qcow2'/><source file='/var/lib/libvirt/images/base-base-1234.qcow2'/>"
+        + "<target dev='vda'/></disk>"
+        + "<interface type='network'><mac address='52:54:00:12:34:56'/><source network='default'/></interface></devices>"
+        + "</domain>";
+
+    @Test
+    public void shouldDefineCheckpointOnDisksOfClone() throws Exception {
+        Document clone = new SAXBuilder().build(new StringReader(CLONE_XML));
+
+        Document xml = DomainCheckpoint.checkpointXml(clone, DomainCheckpoint.checkpointName("base", "abcd"), "base-1234");
+
+        Element root = xml.getRootElement();
+        assertThat(root.getChildText("name"), is("base.checkpoint-abcd"));
+        assertThat(root.getChild("uuid"), nullValue());
+        assertThat(root.getChildText("description"), is("overcast checkpoint of base-1234"));
+        Element devices = root.getChild("devices");
+        assertThat(devices.getChild("disk").getChild("source").getAttributeValue("file"), is("/var/lib/libvirt/images/base-base-1234.qcow2"));
+        assertThat(devices.getChild("interface").getChild("mac"), nullValue());
+        // the clone is left alone
+        assertThat(clone.getRootElement().getChildText("name"), is("base-1234"));
+    }
+}
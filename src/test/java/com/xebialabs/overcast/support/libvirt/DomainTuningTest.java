@@ -0,0 +1,87 @@
+package com.xebialabs.overcast.support.libvirt;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import org.jdom2.Document;
+import org.jdom2.Element;
+import org.jdom2.JDOMException;
+import org.jdom2.input.SAXBuilder;
+import org.junit.Test;
+
+import static com.xebialabs.overcast.support.libvirt.DomainTuning.domainTuning;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class DomainTuningTest {
+
+    private static final String DOMAIN_XML = "<domain type='kvm'><name>base</name>"
+        + "<memory unit='GiB'>4</memory><currentMemory unit='GiB'>4</currentMemory>"
+        + "<vcpu placement='static' current='2'>4</vcpu>"
+        + "<memoryBacking><nosharepages/></memoryBacking>"
+        + "<cputune><vcpupin vcpu='0' cpuset='0'/><vcpupin vcpu='3' cpuset='3'/></cputune>"
+        + "<cpu><topology sockets='1' cores='2' threads='2'/><numa><cell cpus='0-3' memory='4194304'/></numa></cpu>"
+        + "<devices><memballoon model='virtio'><address type='pci' slot='0x06'/></memballoon></devices>"
+        + "</domain>";
+
+    @Test
+    public void shouldLeaveDomainAloneWithoutSettings() throws Exception {
+        Document doc = parse();
+        domainTuning().apply(doc);
+
+        assertThat(doc.getRootElement().getChildText("vcpu"), is("4"));
+        assertThat(doc.getRootElement().getChild("memoryBacking").getChild("nosharepages"), notNullValue());
+    }
+
+    @Test
+    public void shouldResizeClone() throws Exception {
+        Document doc = parse();
+        domainTuning().withMemory(1024L).withCurrentMemory(512L).withVcpus(2).withCpuset("4-7").apply(doc);
+        Element root = doc.getRootElement();
+
+        assertThat(root.getChildText("memory"), is("1048576"));
+        assertThat(root.getChild("memory").getAttributeValue("unit"), is("KiB"));
+        assertThat(root.getChildText("currentMemory"), is("524288"));
+        assertThat(root.getChildText("vcpu"), is("2"));
+        assertThat(root.getChild("vcpu").getAttributeValue("current"), nullValue());
+        assertThat(root.getChild("vcpu").getAttributeValue("cpuset"), is("4-7"));
+        assertThat(root.getChild("cpu").getChild("topology").getAttributeValue("sockets"), is("2"));
+        assertThat(root.getChild("cpu").getChild("numa"), nullValue());
+        assertThat(root.getChild("cputune").getChildren("vcpupin").size(), is(1));
+    }
+
+    @Test
+    public void shouldConfigureMemoryBacking() throws Exception {
+        Document doc = parse();
+        domainTuning().withSharePages(true).withHugepages(true).apply(doc);
+        Element backing = doc.getRootElement().getChild("memoryBacking");
+
+        assertThat(backing.getChild("nosharepages"), nullValue());
+        assertThat(backing.getChild("hugepages"), notNullValue());
+
+        domainTuning().withHugepages(false).apply(doc);
+        assertThat(doc.getRootElement().getChild("memoryBacking"), nullValue());
+    }
+
+    @Test
+    public void shouldConfigureBalloon() throws Exception {
+        Document doc = parse();
+        domainTuning().withBalloonStatsPeriod(5).apply(doc);
+        Element memballoon = doc.getRootElement().getChild("devices").getChild("memballoon");
+
+        assertThat(memballoon.getAttributeValue("model"), is("virtio"));
+        assertThat(memballoon.getChild("address"), notNullValue());
+        assertThat(memballoon.getChild("stats").getAttributeValue("period"), is("5"));
+
+        domainTuning().withBalloon("none").apply(doc);
+        memballoon = doc.getRootElement().getChild("devices").getChild("memballoon");
+        assertThat(memballoon.getAttributeValue("model"), is("none"));
+        assertThat(memballoon.getChildren().isEmpty(), is(true));
+    }
+
+    private static Document parse() throws JDOMException, IOException {
+        return new SAXBuilder().build(new StringReader(DOMAIN_XML));
+    }
+}
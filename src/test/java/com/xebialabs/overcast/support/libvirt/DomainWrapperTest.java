@@ -0,0 +1,139 @@
+package com.xebialabs.overcast.support.libvirt;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.libvirt.Connect;
+import org.libvirt.Domain;
+import org.libvirt.LibvirtException;
+import org.libvirt.StoragePool;
+import org.libvirt.StorageVol;
+import org.libvirt.StorageVolInfo;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import static java.util.Arrays.asList;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.contains;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class DomainWrapperTest {
+
+    private static final String POOL = "/var/lib/libvirt/images/";
+
+    private final Connect connect = mock(Connect.class);
+    private final StoragePool pool = mock(StoragePool.class);
+
+    @Test
+    public void shouldOnlyDeleteOldUnreferencedOverlaysOfTheBaseDomain() throws LibvirtException {
+        long now = System.currentTimeMillis() / 1000;
+        Domain base = domain("base", POOL + "base.qcow2");
+        StorageVol baseVolume = volume("base.qcow2", null, now - 3600);
+        Domain running = domain("base-running", POOL + "base-base-running.qcow2");
+        when(connect.listDomains()).thenReturn(new int[] {7});
+        when(connect.domainLookupByID(7)).thenReturn(running);
+        when(connect.listDefinedDomains()).thenReturn(new String[] {"base", "undefined-meanwhile"});
+        when(connect.domainLookupByName("base")).thenReturn(base);
+        when(connect.domainLookupByName("undefined-meanwhile")).thenThrow(mock(LibvirtException.class));
+        when(connect.storageVolLookupByPath(POOL + "base.qcow2")).thenReturn(baseVolume);
+        when(connect.listStoragePools()).thenReturn(new String[] {"default"});
+        when(connect.storagePoolLookupByName("default")).thenReturn(pool);
+
+        StorageVol inUse = volume("base-base-running.qcow2", POOL + "base.qcow2", now - 3600);
+        StorageVol young = volume("base-base-starting.qcow2", POOL + "base.qcow2", now - 10);
+        StorageVol old = volume("base-base-crashed.qcow2", POOL + "base.qcow2", now - 3600);
+        StorageVol other = volume("base-base-other.qcow2", POOL + "other.qcow2", now - 3600);
+        when(pool.listVolumes()).thenReturn(new String[] {"base.qcow2", "base-base-running.qcow2", "base-base-starting.qcow2",
+            "base-base-crashed.qcow2", "base-base-other.qcow2", "base-base-torn-down.qcow2"});
+        when(pool.storageVolLookupByName("base-base-torn-down.qcow2")).thenThrow(mock(LibvirtException.class));
+
+        List<String> deleted = DomainWrapper.newWrapper(base).deleteOrphanedCloneDisks(60);
+
+        assertThat(deleted, is(asList("base-base-crashed.qcow2")));
+        verify(old).delete(0);
+        verify(inUse, never()).delete(0);
+        verify(young, never()).delete(0);
+        verify(other, never()).delete(0);
+        verify(baseVolume, never()).delete(0);
+    }
+
+    @Test
+    public void shouldCreateOverlaysConcurrentlyAndRemoveThemWhenOneFails() throws LibvirtException {
+        Domain base = domain("base", POOL + "base-a.qcow2", POOL + "base-b.qcow2");
+        backingVolume("base-a.qcow2");
+        backingVolume("base-b.qcow2");
+        final CountDownLatch bothStarted = new CountDownLatch(2);
+        final StorageVol created = mock(StorageVol.class);
+        when(pool.storageVolCreateXML(contains("<name>base-a-clone.qcow2</name>"), eq(0))).thenAnswer(new Answer<StorageVol>() {
+            @Override
+            public StorageVol answer(InvocationOnMock invocation) throws Throwable {
+                bothStarted.countDown();
+                assertTrue("overlays are created one after the other", bothStarted.await(5, TimeUnit.SECONDS));
+                return created;
+            }
+        });
+        when(pool.storageVolCreateXML(contains("<name>base-b-clone.qcow2</name>"), eq(0))).thenAnswer(new Answer<StorageVol>() {
+            @Override
+            public StorageVol answer(InvocationOnMock invocation) throws Throwable {
+                bothStarted.countDown();
+                bothStarted.await(5, TimeUnit.SECONDS);
+                throw mock(LibvirtException.class);
+            }
+        });
+
+        try {
+            DomainWrapper.newWrapper(base).cloneWithBackingStore("clone");
+            fail("Expected the clone to fail");
+        } catch (LibvirtRuntimeException expected) {
+            // the second overlay could not be created
+        }
+
+        verify(created).delete(0);
+        verify(connect, never()).domainDefineXML(anyString());
+    }
+
+    private Domain domain(String name, String... disks) throws LibvirtException {
+        Domain domain = mock(Domain.class);
+        when(domain.getName()).thenReturn(name);
+        when(domain.getConnect()).thenReturn(connect);
+        StringBuilder xml = new StringBuilder("<domain><name>" + name + "</name><devices>");
+        char dev = 'a';
+        for (String disk : disks) {
+            xml.append("<disk type='file' device='disk'><driver name='qemu' type='qcow2'/><source file='").append(disk)
+                .append("'/><target dev='vd").append(dev++).append("' bus='virtio'/></disk>");
+        }
+        when(domain.getXMLDesc(0)).thenReturn(xml.append("</devices></domain>").toString());
+        return domain;
+    }
+
+    private void backingVolume(String name) throws LibvirtException {
+        StorageVolInfo info = mock(StorageVolInfo.class);
+        info.capacity = 1024 * 1024 * 1024;
+        StorageVol volume = volume(name, null, 0);
+        when(volume.getInfo()).thenReturn(info);
+        when(volume.storagePoolLookupByVolume()).thenReturn(pool);
+        when(connect.storageVolLookupByPath(POOL + name)).thenReturn(volume);
+    }
+
+    private StorageVol volume(String name, String backingFile, long mtime) throws LibvirtException {
+        StorageVol volume = mock(StorageVol.class);
+        when(volume.getName()).thenReturn(name);
+        when(volume.getPath()).thenReturn(POOL + name);
+        when(volume.getXMLDesc(0)).thenReturn("<volume><name>" + name + "</name>"
+            + "<target><path>" + POOL + name + "</path><timestamps><mtime>" + mtime + ".123456789</mtime></timestamps></target>"
+            + (backingFile == null ? "" : "<backingStore><path>" + backingFile + "</path></backingStore>")
+            + "</volume>");
+        when(pool.storageVolLookupByName(name)).thenReturn(volume);
+        return volume;
+    }
+}
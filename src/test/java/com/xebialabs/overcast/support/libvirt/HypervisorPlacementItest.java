@@ -0,0 +1,48 @@
+package com.xebialabs.overcast.support.libvirt;
+
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+/** Uses the test driver of libvirt, which has a running domain named {@code test}. */
+public class HypervisorPlacementItest {
+
+    private static final String TEST_URL = "test:///default";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void shouldSkipUnreachableHosts() {
+        HypervisorPlacement placement = new HypervisorPlacement(Arrays.asList("test:///no/such/file.xml", TEST_URL), "test", 0, 1, folder.getRoot());
+
+        String url = placement.acquire();
+        try {
+            assertThat(url, is(TEST_URL));
+        } finally {
+            placement.release(url);
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void shouldWaitForHostBelowMaximum() {
+        HypervisorPlacement placement = new HypervisorPlacement(Arrays.asList(TEST_URL, TEST_URL), "test", 1, 1, folder.getRoot());
+
+        String url = placement.acquire();
+        try {
+            placement.acquire();
+        } finally {
+            placement.release(url);
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void shouldFailWithoutHostWithBaseDomain() {
+        new HypervisorPlacement(Arrays.asList(TEST_URL), "no-such-domain", 0, 1, folder.getRoot()).acquire();
+    }
+}
@@ -0,0 +1,77 @@
+package com.xebialabs.overcast.support.libvirt;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class HypervisorPlacementTest {
+
+    private static final long GIB = 1024L * 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void shouldPickHostWithFewestDomainsPerCpu() {
+        HypervisorPlacement.NodeLoad busy = new HypervisorPlacement.NodeLoad("qemu+ssh://a/system", 8, 12, 30 * GIB, 0);
+        HypervisorPlacement.NodeLoad idle = new HypervisorPlacement.NodeLoad("qemu+ssh://b/system", 16, 8, 10 * GIB, 0);
+
+        assertThat(HypervisorPlacement.leastLoaded(Arrays.asList(busy, idle), 0), is(idle));
+    }
+
+    @Test
+    public void shouldCountClonesPlacedByThisJvm() {
+        HypervisorPlacement.NodeLoad a = new HypervisorPlacement.NodeLoad("qemu+ssh://a/system", 8, 2, 10 * GIB, 4);
+        HypervisorPlacement.NodeLoad b = new HypervisorPlacement.NodeLoad("qemu+ssh://b/system", 8, 4, 10 * GIB, 0);
+
+        assertThat(HypervisorPlacement.leastLoaded(Arrays.asList(a, b), 0), is(b));
+    }
+
+    @Test
+    public void shouldPreferMoreFreeMemoryOnEqualLoad() {
+        HypervisorPlacement.NodeLoad small = new HypervisorPlacement.NodeLoad("qemu+ssh://a/system", 8, 4, 4 * GIB, 0);
+        HypervisorPlacement.NodeLoad large = new HypervisorPlacement.NodeLoad("qemu+ssh://b/system", 8, 4, 40 * GIB, 0);
+
+        assertThat(HypervisorPlacement.leastLoaded(Arrays.asList(small, large), 0), is(large));
+    }
+
+    @Test
+    public void shouldRespectMaximumClonesPerHost() {
+        HypervisorPlacement.NodeLoad full = new HypervisorPlacement.NodeLoad("qemu+ssh://a/system", 32, 0, 40 * GIB, 2);
+        HypervisorPlacement.NodeLoad loaded = new HypervisorPlacement.NodeLoad("qemu+ssh://b/system", 4, 10, 4 * GIB, 1);
+
+        assertThat(HypervisorPlacement.leastLoaded(Arrays.asList(full, loaded), 2), is(loaded));
+        assertThat(HypervisorPlacement.leastLoaded(Arrays.asList(full), 2), nullValue());
+    }
+
+    @Test
+    public void shouldShareMaximumThroughSlotDirectory() throws IOException {
+        File slotDir = folder.newFolder("placement");
+        String url = "qemu+ssh://a/system";
+        HypervisorPlacement one = new HypervisorPlacement(Arrays.asList(url), "base", 1, 1, slotDir);
+        HypervisorPlacement other = new HypervisorPlacement(Arrays.asList(url), "base", 1, 1, slotDir);
+        // left behind by a JVM that is gone, not locked
+        new File(slotDir, "qemu_ssh___a_system@0.slot").createNewFile();
+
+        one.acquire(url);
+        try {
+            other.acquire(url);
+            fail("Placed a second clone on " + url);
+        } catch (IllegalStateException expected) {
+            // timed out
+        }
+
+        one.release(url);
+        other.acquire(url);
+        other.release(url);
+    }
+}
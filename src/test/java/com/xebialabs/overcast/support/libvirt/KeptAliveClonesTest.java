@@ -0,0 +1,63 @@
+package com.xebialabs.overcast.support.libvirt;
+
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.google.common.collect.Maps;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class KeptAliveClonesTest {
+
+    @Test
+    public void shouldRoundTripTag() {
+        Map<String, String> tag = Maps.newLinkedHashMap();
+        tag.put("hash", "0123456789ab");
+        tag.put("ip", "192.168.122.10");
+        tag.put("ttl", "3600");
+        tag.put("idle-since", "1400000000");
+
+        String description = KeptAliveClones.formatTag(tag);
+
+        assertThat(description, is("overcast-keep-alive hash=0123456789ab ip=192.168.122.10 ttl=3600 idle-since=1400000000"));
+        assertThat(KeptAliveClones.parseTag(description), is(tag));
+    }
+
+    @Test
+    public void shouldIgnoreOtherDescriptions() {
+        assertThat(KeptAliveClones.parseTag("my test box").isEmpty(), is(true));
+        assertThat(KeptAliveClones.parseTag(null).isEmpty(), is(true));
+    }
+
+    @Test
+    public void shouldExpireIdleClonesAfterTtl() {
+        Map<String, String> tag = KeptAliveClones.parseTag("overcast-keep-alive hash=a ttl=60 idle-since=1000");
+
+        assertThat(KeptAliveClones.isExpired(tag, 1060), is(false));
+        assertThat(KeptAliveClones.isExpired(tag, 1061), is(true));
+        assertThat(KeptAliveClones.isExpired(KeptAliveClones.parseTag("overcast-keep-alive hash=a ttl=60"), 5000), is(false));
+    }
+
+    @Test
+    public void shouldKeepReservationInTag() {
+        Map<String, String> tag = KeptAliveClones.parseTag(
+            "overcast-keep-alive hash=a ip=192.168.122.101 dhcp-network=default dhcp-mac=52:54:00:a8:7a:65 ttl=60 idle-since=1000");
+
+        DhcpReservations.Reservation reservation = KeptAliveClones.getReservation(tag);
+        assertThat(reservation.getMac(), is("52:54:00:a8:7a:65"));
+        assertThat(reservation.getIp(), is("192.168.122.101"));
+        assertThat(KeptAliveClones.getReservation(KeptAliveClones.parseTag("overcast-keep-alive hash=a ip=10.0.0.1")), nullValue());
+    }
+
+    @Test
+    public void shouldHashConfiguration() {
+        String hash = KeptAliveClones.configHash("qemu:///system", "base", "br0", null);
+
+        assertThat(KeptAliveClones.configHash("qemu:///system", "base", "br0", null), is(hash));
+        assertThat(KeptAliveClones.configHash("qemu:///system", "base.layer-1", "br0", null), not(hash));
+    }
+}
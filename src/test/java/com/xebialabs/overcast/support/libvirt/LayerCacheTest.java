@@ -0,0 +1,61 @@
+package com.xebialabs.overcast.support.libvirt;
+
+import org.junit.Test;
+import org.libvirt.Domain;
+import org.libvirt.DomainInfo;
+import org.libvirt.DomainInfo.DomainState;
+import org.libvirt.LibvirtException;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class LayerCacheTest {
+
+    @Test
+    public void shouldDeriveKeyFromParentAndInputs() {
+        String key = LayerCache.layerKey("base", "ansible-playbook -i {0}, app.yml", "abc123");
+
+        assertThat(key.length(), is(12));
+        assertThat(LayerCache.layerKey("base", "ansible-playbook -i {0}, app.yml", "abc123"), is(key));
+        assertThat(LayerCache.layerKey("other", "ansible-playbook -i {0}, app.yml", "abc123"), not(key));
+        assertThat(LayerCache.layerKey("base", "ansible-playbook -i {0}, app.yml", "def456"), not(key));
+        assertThat(LayerCache.layerKey("base", "ansible-playbook -i {0}, data.yml", "abc123"), not(key));
+    }
+
+    @Test
+    public void shouldReadDepthFromDescription() throws LibvirtException {
+        assertThat(LayerCache.getDepth(wrap("<domain><name>base.layer-1</name><description>overcast layer depth=3</description></domain>")), is(3));
+        assertThat(LayerCache.getDepth(wrap("<domain><name>base</name><description>my base</description></domain>")), is(0));
+        assertThat(LayerCache.getDepth(wrap("<domain><name>base</name></domain>")), is(0));
+    }
+
+    @Test
+    public void shouldOnlyAcceptShutOffLayersWithDepth() throws LibvirtException {
+        String frozen = "<domain><name>base.layer-1</name><description>overcast layer depth=1</description></domain>";
+        assertThat(LayerCache.isFrozen(wrap(frozen, DomainState.VIR_DOMAIN_SHUTOFF)), is(true));
+        // still being provisioned
+        assertThat(LayerCache.isFrozen(wrap(frozen, DomainState.VIR_DOMAIN_RUNNING)), is(false));
+        // a clone of the parent that was never frozen
+        assertThat(LayerCache.isFrozen(wrap("<domain><name>base.layer-1</name><description>my base</description></domain>",
+            DomainState.VIR_DOMAIN_SHUTOFF)), is(false));
+        assertThat(LayerCache.isFrozen(wrap("<domain><name>base.layer-1</name></domain>", DomainState.VIR_DOMAIN_SHUTOFF)), is(false));
+    }
+
+    private static DomainWrapper wrap(String xml) throws LibvirtException {
+        Domain domain = mock(Domain.class);
+        when(domain.getXMLDesc(0)).thenReturn(xml);
+        return DomainWrapper.newWrapper(domain);
+    }
+
+    private static DomainWrapper wrap(String xml, DomainState state) throws LibvirtException {
+        Domain domain = mock(Domain.class);
+        when(domain.getXMLDesc(0)).thenReturn(xml);
+        DomainInfo info = new DomainInfo();
+        info.state = state;
+        when(domain.getInfo()).thenReturn(info);
+        return DomainWrapper.newWrapper(domain);
+    }
+}
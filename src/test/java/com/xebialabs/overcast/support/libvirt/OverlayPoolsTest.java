@@ -0,0 +1,61 @@
+package com.xebialabs.overcast.support.libvirt;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.libvirt.Connect;
+import org.libvirt.LibvirtException;
+import org.libvirt.StoragePool;
+import org.libvirt.StoragePoolInfo;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class OverlayPoolsTest {
+
+    private static final long MIB = 1024 * 1024;
+
+    @Test
+    public void shouldSkipFullAndMissingPools() throws LibvirtException {
+        Connect connect = mock(Connect.class);
+        pool(connect, "full", StoragePoolInfo.StoragePoolState.VIR_STORAGE_POOL_RUNNING, 10 * MIB);
+        pool(connect, "stopped", StoragePoolInfo.StoragePoolState.VIR_STORAGE_POOL_INACTIVE, 4096 * MIB);
+        StoragePool roomy = pool(connect, "roomy", StoragePoolInfo.StoragePoolState.VIR_STORAGE_POOL_RUNNING, 4096 * MIB);
+        when(connect.storagePoolLookupByName("missing")).thenThrow(mock(LibvirtException.class));
+
+        OverlayPools pools = new OverlayPools(connect, Arrays.asList("full", "stopped", "missing", "roomy"), 1024 * MIB);
+        List<StoragePool> candidates = pools.candidates();
+
+        assertThat(candidates.size(), is(1));
+        assertThat(candidates.get(0), is(roomy));
+    }
+
+    @Test
+    public void shouldRotateOverPools() throws LibvirtException {
+        Connect connect = mock(Connect.class);
+        StoragePool a = pool(connect, "a", StoragePoolInfo.StoragePoolState.VIR_STORAGE_POOL_RUNNING, 4096 * MIB);
+        StoragePool b = pool(connect, "b", StoragePoolInfo.StoragePoolState.VIR_STORAGE_POOL_RUNNING, 4096 * MIB);
+
+        OverlayPools pools = new OverlayPools(connect, Arrays.asList("a", "b"), 1024 * MIB);
+        List<StoragePool> first = pools.candidates();
+        List<StoragePool> second = pools.candidates();
+
+        assertThat(first.size(), is(2));
+        assertThat(second.size(), is(2));
+        assertThat(second.get(0), is(first.get(1)));
+        assertThat(second.get(1), is(first.get(0)));
+    }
+
+    private static StoragePool pool(Connect connect, String name, StoragePoolInfo.StoragePoolState state, long available) throws LibvirtException {
+        StoragePoolInfo info = mock(StoragePoolInfo.class);
+        info.state = state;
+        info.available = available;
+        StoragePool pool = mock(StoragePool.class);
+        when(pool.getInfo()).thenReturn(info);
+        when(connect.storagePoolLookupByName(name)).thenReturn(pool);
+        return pool;
+    }
+}
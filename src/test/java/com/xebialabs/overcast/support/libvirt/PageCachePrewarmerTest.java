@@ -0,0 +1,65 @@
+package com.xebialabs.overcast.support.libvirt;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.libvirt.Connect;
+import org.libvirt.LibvirtException;
+import org.libvirt.StorageVol;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class PageCachePrewarmerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void shouldReportResidencyOfWholeFile() throws IOException {
+        File image = folder.newFile("base.qcow2");
+        // spans several chunks, the last one partial
+        byte[] data = new byte[9 * 1024 * 1024 + 123];
+        FileOutputStream out = new FileOutputStream(image);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+
+        PageCachePrewarmer.Residency residency = PageCachePrewarmer.prewarm(image);
+
+        assertThat(residency.getSize(), is((long) data.length));
+        assertTrue(residency.getResidentBefore() <= residency.getSize());
+        assertTrue(residency.getResidentAfter() <= residency.getSize());
+    }
+
+    @Test
+    public void shouldSkipImagesThatAreNotReadable() {
+        assertThat(PageCachePrewarmer.prewarm(new File(folder.getRoot(), "missing.qcow2").getPath()), nullValue());
+    }
+
+    @Test
+    public void shouldEndBackingChainAtFileOutsideEveryPool() throws LibvirtException {
+        Connect connect = mock(Connect.class);
+        when(connect.listStoragePools()).thenReturn(new String[0]);
+        StorageVol volume = mock(StorageVol.class);
+        when(volume.getPath()).thenReturn("/var/lib/libvirt/images/clone.qcow2");
+        when(volume.getXMLDesc(0)).thenReturn("<volume><backingStore><path>/srv/base.qcow2</path></backingStore></volume>");
+
+        List<String> chain = PageCachePrewarmer.backingChain(connect, volume);
+
+        assertThat(chain.get(0), is("/var/lib/libvirt/images/clone.qcow2"));
+        assertThat(chain.get(1), is("/srv/base.qcow2"));
+        assertThat(chain.size(), is(2));
+    }
+}
@@ -0,0 +1,73 @@
+package com.xebialabs.overcast.support.libvirt;
+
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import com.xebialabs.overcast.command.Command;
+import com.xebialabs.overcast.command.CommandProcessor;
+import com.xebialabs.overcast.command.CommandResponse;
+import com.xebialabs.overcast.command.NonZeroCodeException;
+
+import static com.xebialabs.overcast.command.Command.aCommand;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.when;
+
+public class QemuGuestAgentTest {
+
+    private static final String INTERFACES = "{\"return\":[" +
+        "{\"name\":\"lo\",\"ip-addresses\":[{\"ip-address-type\":\"ipv4\",\"ip-address\":\"127.0.0.1\",\"prefix\":8}],\"hardware-address\":\"00:00:00:00:00:00\"}," +
+        "{\"name\":\"eth0\",\"ip-addresses\":[{\"ip-address-type\":\"ipv6\",\"ip-address\":\"fe80::5054:ff:fe12:3456\",\"prefix\":64}," +
+        "{\"ip-address-type\":\"ipv4\",\"ip-address\":\"192.168.122.42\",\"prefix\":24}],\"hardware-address\":\"52:54:00:12:34:56\"}]}";
+
+    private static final Command ping = aCommand("virsh").withOptions("-c", "test:///default")
+        .withArguments("qemu-agent-command", "clone", "--timeout", "5", "{\"execute\":\"guest-ping\"}");
+
+    @Mock
+    private CommandProcessor commandProcessor;
+
+    private QemuGuestAgent agent;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        agent = new QemuGuestAgent(new VirshDriver("test:///default", commandProcessor), "clone");
+    }
+
+    @Test
+    public void shouldParseIpv4AddressesByMac() {
+        Map<String, List<String>> addresses = QemuGuestAgent.parseInterfaces(INTERFACES);
+
+        assertThat(addresses.size(), is(2));
+        assertThat(addresses.get("00:00:00:00:00:00").isEmpty(), is(true));
+        assertThat(addresses.get("52:54:00:12:34:56").size(), is(1));
+        assertThat(addresses.get("52:54:00:12:34:56").get(0), is("192.168.122.42"));
+    }
+
+    @Test
+    public void shouldSelectIpOfMac() {
+        Map<String, List<String>> addresses = QemuGuestAgent.parseInterfaces(INTERFACES);
+
+        assertThat(QemuGuestAgent.selectIp(addresses, "52:54:00:12:34:56"), is("192.168.122.42"));
+        assertThat(QemuGuestAgent.selectIp(addresses, null), is("192.168.122.42"));
+        assertThat(QemuGuestAgent.selectIp(addresses, "52:54:00:ff:ff:ff"), nullValue());
+    }
+
+    @Test
+    public void shouldPingAgent() {
+        when(commandProcessor.run(ping)).thenReturn(new CommandResponse(0, "", "{\"return\":{}}"));
+        assertThat(agent.ping(), is(true));
+    }
+
+    @Test
+    public void shouldReportDeadAgent() {
+        when(commandProcessor.run(ping)).thenThrow(new NonZeroCodeException(ping, new CommandResponse(1, "error: Guest agent is not responding", "")));
+        assertThat(agent.ping(), is(false));
+    }
+}
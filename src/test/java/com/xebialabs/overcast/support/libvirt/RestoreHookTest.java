@@ -0,0 +1,48 @@
+package com.xebialabs.overcast.support.libvirt;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class RestoreHookTest {
+
+    @Mock
+    private VirshDriver virsh;
+
+    @Mock
+    private DomainWrapper clone;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        when(clone.getName()).thenReturn("clone");
+        when(clone.getMacs()).thenReturn(Collections.singletonMap("default", "52:54:00:12:34:56"));
+    }
+
+    @Test
+    public void shouldFlapLinkOfEveryInterface() {
+        RestoreHook.LINK.afterRestore(virsh, clone);
+
+        InOrder inOrder = inOrder(virsh);
+        inOrder.verify(virsh).execute("domif-setlink", "clone", "52:54:00:12:34:56", "down");
+        inOrder.verify(virsh).execute("domif-setlink", "clone", "52:54:00:12:34:56", "up");
+    }
+
+    @Test
+    public void shouldContinueAfterFailingHook() {
+        when(virsh.execute("domif-setlink", "clone", "52:54:00:12:34:56", "down")).thenThrow(new RuntimeException("no link"));
+
+        RestoreHook.runAll(Arrays.asList(RestoreHook.LINK, RestoreHook.CLOCK), virsh, clone);
+
+        verify(virsh).execute("domtime", "clone", "--now");
+    }
+}
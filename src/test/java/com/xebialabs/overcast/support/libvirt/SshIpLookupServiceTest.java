@@ -0,0 +1,56 @@
+package com.xebialabs.overcast.support.libvirt;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.google.common.collect.Maps;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class SshIpLookupServiceTest {
+
+    @Test
+    public void shouldPrecedeEachCommandWithMarker() {
+        Map<String, String> commands = Maps.newLinkedHashMap();
+        commands.put("52:54:00:00:00:01", "grep 52:54:00:00:00:01 leases");
+        commands.put("52:54:00:00:00:02", "grep 52:54:00:00:00:02 leases");
+
+        assertThat(SshIpLookupService.buildBatchCommand(commands),
+            is("echo 'overcast-mac 52:54:00:00:00:01'; echo 'overcast-mac 52:54:00:00:00:01' >&2; grep 52:54:00:00:00:01 leases; "
+                + "echo 'overcast-mac 52:54:00:00:00:02'; echo 'overcast-mac 52:54:00:00:00:02' >&2; grep 52:54:00:00:00:02 leases"));
+    }
+
+    @Test
+    public void shouldAttributeOutputToPrecedingMarker() {
+        Map<String, String> ips = SshIpLookupService.parseBatchOutput(Arrays.asList(
+            "overcast-mac 52:54:00:00:00:01",
+            "overcast-mac 52:54:00:00:00:02",
+            "10.0.0.2",
+            "10.0.0.3",
+            "overcast-mac 52:54:00:00:00:03",
+            "",
+            "  10.0.0.4  "));
+
+        assertThat(ips.get("52:54:00:00:00:01"), nullValue());
+        assertThat(ips.get("52:54:00:00:00:02"), is("10.0.0.2"));
+        assertThat(ips.get("52:54:00:00:00:03"), is("10.0.0.4"));
+        assertThat(ips.size(), is(2));
+    }
+
+    @Test
+    public void shouldAttributeErrorsToTheirMacOnly() {
+        Map<String, List<String>> errors = SshIpLookupService.groupByMarker(Arrays.asList(
+            "overcast-mac 52:54:00:00:00:01",
+            "overcast-mac 52:54:00:00:00:02",
+            "grep: leases: Permission denied",
+            "overcast-mac 52:54:00:00:00:03"));
+
+        assertThat(errors.get("52:54:00:00:00:02"), is(Arrays.asList("grep: leases: Permission denied")));
+        assertThat(errors.size(), is(1));
+    }
+}
@@ -0,0 +1,52 @@
+package com.xebialabs.overcast.support.vagrant;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class VagrantfileSizeTest {
+
+    @Test
+    public void shouldReadProviderSettings() {
+        VagrantfileSize size = VagrantfileSize.parse(
+            "Vagrant.configure(\"2\") do |config|\n" +
+            "  config.vm.box = \"centos\"\n" +
+            "  config.vm.provider \"virtualbox\" do |vb|\n" +
+            "    vb.cpus = 2\n" +
+            "    vb.memory = \"2048\"\n" +
+            "    # vb.memory = 8192\n" +
+            "  end\n" +
+            "end\n");
+
+        assertThat(size.getCpus(), is(2));
+        assertThat(size.getMemory(), is(2048L));
+    }
+
+    @Test
+    public void shouldReadCustomizeAndTakeLargestVm() {
+        VagrantfileSize size = VagrantfileSize.parse(
+            "config.vm.define :web do |web|\n" +
+            "  web.vm.provider :virtualbox do |vb|\n" +
+            "    vb.customize [\"modifyvm\", :id, \"--memory\", \"1024\", \"--cpus\", \"1\"]\n" +
+            "  end\n" +
+            "end\n" +
+            "config.vm.define :db do |db|\n" +
+            "  db.vm.provider :virtualbox do |vb|\n" +
+            "    vb.customize [\"modifyvm\", :id, \"--memory\", \"4096\", \"--cpus\", \"2\"]\n" +
+            "  end\n" +
+            "end\n");
+
+        assertThat(size.getCpus(), is(2));
+        assertThat(size.getMemory(), is(4096L));
+    }
+
+    @Test
+    public void shouldHaveNoSizeWhenNotSet() {
+        VagrantfileSize size = VagrantfileSize.parse("config.vm.box = \"centos\"\n");
+
+        assertThat(size.getCpus(), nullValue());
+        assertThat(size.getMemory(), nullValue());
+    }
+}